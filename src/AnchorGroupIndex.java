@@ -0,0 +1,306 @@
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * 基站分组与切换区域成员关系索引
+ * 维护 分组 -> 基站、基站 -> 分组、区域 -> 直接绑定基站、区域 -> 分组 以及 区域 -> 有效基站(直接绑定 + 分组成员),
+ * 查询只读内存,不经过JPA;首次查询时从数据库加载,之后由区域及分组编辑增量维护。
+ * 增量修改在事务提交后、持有写锁时判断是否已加载,加载期间到达的修改等待加载完成后再应用,不会丢失
+ *
+ * @author jobs
+ */
+@Component
+public class AnchorGroupIndex {
+
+    private static final long[] EMPTY = new long[0];
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Map<Long, LongHashSet> groupAnchors = new HashMap<>();
+
+    private final Map<Long, LongHashSet> anchorGroups = new HashMap<>();
+
+    private final Map<Long, LongHashSet> groupAreas = new HashMap<>();
+
+    private final Map<Long, LongHashSet> areaGroups = new HashMap<>();
+
+    private final Map<Long, LongHashSet> areaAnchors = new HashMap<>();
+
+    /*** 区域 -> 有效基站*/
+    private final Map<Long, LongHashSet> areaEffective = new HashMap<>();
+
+    private volatile boolean loaded;
+
+    /**
+     * @return 区域有效基站主键,包括分组成员
+     */
+    public long[] effectiveAnchors(long areaPk) {
+        return read(areaEffective, areaPk);
+    }
+
+    /**
+     * @return 基站是否为区域的有效基站
+     */
+    public boolean isEffectiveMember(long areaPk, long anchorPk) {
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            LongHashSet set = areaEffective.get(areaPk);
+            return null != set && set.contains(anchorPk);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long[] groupAnchors(long groupId) {
+        return read(groupAnchors, groupId);
+    }
+
+    public long[] anchorGroups(long anchorPk) {
+        return read(anchorGroups, anchorPk);
+    }
+
+    public long[] areaGroups(long areaPk) {
+        return read(areaGroups, areaPk);
+    }
+
+    private long[] read(Map<Long, LongHashSet> map, long key) {
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            LongHashSet set = map.get(key);
+            return null == set ? EMPTY : set.toArray();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 区域直接绑定的基站整体替换
+     */
+    public void setAreaAnchors(long areaPk, long[] anchorPks) {
+        mutate(() -> {
+            replace(areaAnchors, areaPk, anchorPks);
+            rebuildEffective(areaPk);
+        });
+    }
+
+    public void addAreaAnchor(long areaPk, long anchorPk) {
+        mutate(() -> {
+            link(areaAnchors, areaPk, anchorPk);
+            link(areaEffective, areaPk, anchorPk);
+        });
+    }
+
+    public void removeAreaAnchor(long areaPk, long anchorPk) {
+        mutate(() -> {
+            unlink(areaAnchors, areaPk, anchorPk);
+            rebuildEffective(areaPk);
+        });
+    }
+
+    /**
+     * 区域绑定的分组整体替换
+     */
+    public void setAreaGroups(long areaPk, long[] groupIds) {
+        mutate(() -> {
+            LongHashSet old = areaGroups.get(areaPk);
+            if (null != old) {
+                old.forEach(groupId -> unlink(groupAreas, groupId, areaPk));
+            }
+            replace(areaGroups, areaPk, groupIds);
+            for (long groupId : groupIds) {
+                link(groupAreas, groupId, areaPk);
+            }
+            rebuildEffective(areaPk);
+        });
+    }
+
+    /**
+     * 区域删除后调用
+     */
+    public void removeArea(long areaPk) {
+        mutate(() -> {
+            LongHashSet groups = areaGroups.remove(areaPk);
+            if (null != groups) {
+                groups.forEach(groupId -> unlink(groupAreas, groupId, areaPk));
+            }
+            areaAnchors.remove(areaPk);
+            areaEffective.remove(areaPk);
+        });
+    }
+
+    /**
+     * 分组成员整体替换,绑定该分组的区域重新计算有效基站
+     */
+    public void setGroupMembers(long groupId, long[] anchorPks) {
+        mutate(() -> {
+            LongHashSet old = groupAnchors.get(groupId);
+            if (null != old) {
+                old.forEach(anchorPk -> unlink(anchorGroups, anchorPk, groupId));
+            }
+            replace(groupAnchors, groupId, anchorPks);
+            for (long anchorPk : anchorPks) {
+                link(anchorGroups, anchorPk, groupId);
+            }
+            LongHashSet areas = groupAreas.get(groupId);
+            if (null != areas) {
+                areas.forEach(this::rebuildEffective);
+            }
+        });
+    }
+
+    /**
+     * 分组删除后调用
+     */
+    public void removeGroup(long groupId) {
+        mutate(() -> {
+            LongHashSet anchors = groupAnchors.remove(groupId);
+            if (null != anchors) {
+                anchors.forEach(anchorPk -> unlink(anchorGroups, anchorPk, groupId));
+            }
+            LongHashSet areas = groupAreas.remove(groupId);
+            if (null != areas) {
+                areas.forEach(areaPk -> {
+                    unlink(areaGroups, areaPk, groupId);
+                    rebuildEffective(areaPk);
+                });
+            }
+        });
+    }
+
+    /**
+     * 批量修改绑定关系后调用,下次查询时重新加载
+     */
+    public void invalidate() {
+        TransactionHooks.afterCommit(() -> {
+            lock.writeLock().lock();
+            try {
+                this.loaded = false;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        });
+    }
+
+    /**
+     * 事务提交后在写锁内应用修改,未加载时忽略,下次加载直接读取已提交的数据
+     */
+    private void mutate(Runnable change) {
+        TransactionHooks.afterCommit(() -> {
+            lock.writeLock().lock();
+            try {
+                if (loaded) {
+                    change.run();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        });
+    }
+
+    private void rebuildEffective(long areaPk) {
+        LongHashSet effective = new LongHashSet();
+        LongHashSet direct = areaAnchors.get(areaPk);
+        if (null != direct) {
+            direct.forEach(effective::add);
+        }
+        LongHashSet groups = areaGroups.get(areaPk);
+        if (null != groups) {
+            groups.forEach(groupId -> {
+                LongHashSet members = groupAnchors.get(groupId);
+                if (null != members) {
+                    members.forEach(effective::add);
+                }
+            });
+        }
+        if (effective.isEmpty()) {
+            areaEffective.remove(areaPk);
+        } else {
+            areaEffective.put(areaPk, effective);
+        }
+    }
+
+    private static void replace(Map<Long, LongHashSet> map, long key, long[] values) {
+        if (null == values || values.length == 0) {
+            map.remove(key);
+            return;
+        }
+        LongHashSet set = new LongHashSet(values.length);
+        for (long value : values) {
+            set.add(value);
+        }
+        map.put(key, set);
+    }
+
+    private static void link(Map<Long, LongHashSet> map, long key, long value) {
+        map.computeIfAbsent(key, k -> new LongHashSet()).add(value);
+    }
+
+    private static void unlink(Map<Long, LongHashSet> map, long key, long value) {
+        LongHashSet set = map.get(key);
+        if (null != set && set.remove(value) && set.isEmpty()) {
+            map.remove(key);
+        }
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            if (loaded) {
+                return;
+            }
+            groupAnchors.clear();
+            anchorGroups.clear();
+            groupAreas.clear();
+            areaGroups.clear();
+            areaAnchors.clear();
+            areaEffective.clear();
+            jdbcTemplate.query("select area_no, anchor_id from bus_swith_area_anchors",
+                    rs -> {
+                        link(areaAnchors, rs.getLong(1), rs.getLong(2));
+                    });
+            jdbcTemplate.query("select switch_area_id, group_id from bus_switch_group",
+                    rs -> {
+                        link(areaGroups, rs.getLong(1), rs.getLong(2));
+                        link(groupAreas, rs.getLong(2), rs.getLong(1));
+                    });
+            @SuppressWarnings("unchecked")
+            List<Object[]> members = entityManager.createQuery("select g.id, a.id from BusAnchorGroup g join g.anchors a")
+                    .getResultList();
+            for (Object[] row : members) {
+                long groupId = ((Number) row[0]).longValue();
+                long anchorPk = ((Number) row[1]).longValue();
+                link(groupAnchors, groupId, anchorPk);
+                link(anchorGroups, anchorPk, groupId);
+            }
+            for (Long areaPk : areaAnchors.keySet()) {
+                rebuildEffective(areaPk);
+            }
+            for (Long areaPk : areaGroups.keySet()) {
+                rebuildEffective(areaPk);
+            }
+            loaded = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ObjectUtils;
+
+import com.pinpoint.db.model.BusAnchor;
+import com.pinpoint.db.model.BusAnchorConfig;
+import com.pinpoint.db.model.BusAnchorVersion;
+import com.pinpoint.db.repository.IAnchorDao;
+import com.pinpoint.db.repository.ISwitchAreaDao;
+import com.pinpoint.global.AnchorVersionVariable;
+import com.pinpoint.utils.SpringUtil;
+
+/**
+ * 基站区域列表缓存
+ * 缓存每个基站下发的区域列表,只有在基站绑定关系、基站版本或区域集合变化时才重新计算;
+ * 区域集合变化通过全局版本号使全部缓存失效,单个基站的变化只使该基站的缓存失效,失效均在事务提交后生效;
+ * 基站版本号修改由基站编辑调用SwitchAreaServiceImpl.anchorConfigChanged失效,命中时不查询数据库
+ *
+ * @author jobs
+ */
+@Component
+public class AnchorRegionCache {
+
+    @Autowired
+    private ISwitchAreaDao switchAreaDao;
+
+    @Autowired
+    private IAnchorDao anchorDao;
+
+    private final AtomicLong areaSetVersion = new AtomicLong();
+
+    /*** 单个基站失效的序号*/
+    private final AtomicLong anchorEpoch = new AtomicLong();
+
+    /*** 基站主键 -> 最近一次失效的序号,加载开始后失效的结果不缓存*/
+    private final Map<Long, Long> invalidatedAt = new ConcurrentHashMap<>();
+
+    private final Map<Long, Entry> cache = new ConcurrentHashMap<>();
+
+    /**
+     * 查询基站的区域列表,未命中的基站一次批量加载
+     *
+     * @param anchorPks 基站主键
+     * @return 与getAreasByAnchorId结果一致的区域列表
+     */
+    public List<Object[]> getRegions(List<Long> anchorPks) {
+        long version = areaSetVersion.get();
+        List<Long> misses = new ArrayList<>();
+        for (Long anchorPk : anchorPks) {
+            Entry entry = cache.get(anchorPk);
+            if (null == entry || entry.areaSetVersion != version) {
+                misses.add(anchorPk);
+            }
+        }
+        Map<Long, Entry> loaded = misses.isEmpty() ? Collections.emptyMap() : load(misses, version);
+        List<Object[]> result = new ArrayList<>();
+        for (Long anchorPk : anchorPks) {
+            Entry entry = loaded.containsKey(anchorPk) ? loaded.get(anchorPk) : cache.get(anchorPk);
+            if (null != entry) {
+                result.addAll(entry.regions);
+            }
+        }
+        return result;
+    }
+
+    private Map<Long, Entry> load(Collection<Long> anchorPks, long version) {
+        long epoch = anchorEpoch.get();
+        Map<Long, Entry> loaded = new HashMap<>();
+        AnchorVersionVariable anchorVersionVar = (AnchorVersionVariable) SpringUtil.getBean(AnchorVersionVariable.class);
+        for (BusAnchor anchor : anchorDao.findAllById(anchorPks)) {
+            int regionNum = anchorVersionVar.getAnchorRegionNum();
+            BusAnchorConfig anchorConfig = anchor.getAnchorConfig();
+            BusAnchorVersion anchorVersion = Objects.nonNull(anchorConfig) && Objects.nonNull(anchorConfig.getVersionCode())
+                    ? anchorVersionVar.getVersionSpecByVersionCode(anchorConfig.getVersionCode()) : null;
+            if (!ObjectUtils.isEmpty(anchorVersion)) {
+                regionNum = anchorVersion.getRegionNum();
+            }
+            List<Object[]> regions = switchAreaDao.getAreasByAnchorId(Collections.singletonList(anchor.getId()), regionNum);
+            Entry entry = new Entry(version, ObjectUtils.isEmpty(regions) ? Collections.emptyList() : regions);
+            loaded.put(anchor.getId(), entry);
+            if (invalidatedAt.getOrDefault(anchor.getId(), Long.MIN_VALUE) <= epoch) {
+                cache.put(anchor.getId(), entry);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * 区域新增、删除或修改后调用,全部缓存失效,有事务时提交后生效
+     */
+    public void areaChanged() {
+        TransactionHooks.afterCommit(areaSetVersion::incrementAndGet);
+    }
+
+    /**
+     * 基站绑定关系、版本号或坐标变化后调用,有事务时提交后生效
+     */
+    public void invalidate(Long anchorPk) {
+        if (null != anchorPk) {
+            TransactionHooks.afterCommit(() -> {
+                invalidatedAt.put(anchorPk, anchorEpoch.incrementAndGet());
+                cache.remove(anchorPk);
+            });
+        }
+    }
+
+    public void invalidate(Collection<Long> anchorPks) {
+        anchorPks.forEach(this::invalidate);
+    }
+
+    private static class Entry {
+
+        final long areaSetVersion;
+
+        final List<Object[]> regions;
+
+        Entry(long areaSetVersion, List<Object[]> regions) {
+            this.areaSetVersion = areaSetVersion;
+            this.regions = regions;
+        }
+    }
+}
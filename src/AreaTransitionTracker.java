@@ -0,0 +1,201 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 标签当前所在区域状态表及迟滞判定
+ * 使用开放寻址的基本类型数组保存状态,每个标签只占固定的几个long,不产生装箱对象;
+ * 槽位是否占用单独记录,任意long值都可以作为标签ID
+ * 非线程安全,每个分区线程持有独立实例
+ *
+ * @author jobs
+ */
+public class AreaTransitionTracker {
+
+    /*** 连续多少次定位到新区域才确认切换*/
+    private final int threshold;
+
+    private boolean[] used;
+
+    private long[] keys;
+
+    private long[] current;
+
+    private long[] candidate;
+
+    private int[] hits;
+
+    /*** 所在地图,标签过期离开时用于事件*/
+    private Long[] mapIds;
+
+    /*** 最近一次定位时间*/
+    private long[] timestamps;
+
+    /*** 最近一次收到定位的本地时间,毫秒*/
+    private long[] seenMillis;
+
+    private int size;
+
+    public AreaTransitionTracker(int threshold) {
+        this(threshold, 1024);
+    }
+
+    public AreaTransitionTracker(int threshold, int initialCapacity) {
+        this.threshold = Math.max(1, threshold);
+        int capacity = Integer.highestOneBit(Math.max(16, initialCapacity) * 2 - 1);
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        used = new boolean[capacity];
+        keys = new long[capacity];
+        current = new long[capacity];
+        candidate = new long[capacity];
+        hits = new int[capacity];
+        mapIds = new Long[capacity];
+        timestamps = new long[capacity];
+        seenMillis = new long[capacity];
+        size = 0;
+    }
+
+    /**
+     * 根据本次定位到的区域更新标签状态
+     *
+     * @param tagId     标签ID
+     * @param mapId     地图ID,用于事件
+     * @param located   本次定位到的区域主键,0表示不在任何区域
+     * @param timestamp 定位时间
+     * @param now       本地当前时间,毫秒,用于判断标签是否长时间未定位
+     * @return 确认切换时返回事件,否则返回null
+     */
+    public SwitchAreaEvent update(long tagId, Long mapId, long located, long timestamp, long now) {
+        int slot = slot(tagId);
+        mapIds[slot] = mapId;
+        timestamps[slot] = timestamp;
+        seenMillis[slot] = now;
+        long from = current[slot];
+        if (located == from) {
+            hits[slot] = 0;
+            return null;
+        }
+        if (located == candidate[slot] && hits[slot] > 0) {
+            hits[slot]++;
+        } else {
+            candidate[slot] = located;
+            hits[slot] = 1;
+        }
+        if (hits[slot] < threshold) {
+            return null;
+        }
+        current[slot] = located;
+        hits[slot] = 0;
+
+        int type = from == 0 ? SwitchAreaEvent.ENTER : (located == 0 ? SwitchAreaEvent.LEAVE : SwitchAreaEvent.SWITCH);
+        return new SwitchAreaEvent(type, tagId, mapId, from, located, timestamp);
+    }
+
+    /**
+     * @return 标签当前确认所在的区域主键,未知时返回0
+     */
+    public long currentArea(long tagId) {
+        int slot = find(tagId);
+        return slot < 0 ? 0 : current[slot];
+    }
+
+    /**
+     * 删除idleBefore之后没有再定位的标签,仍在区域内的标签按最近一次定位时间产生离开事件
+     *
+     * @param idleBefore 本地时间,毫秒
+     * @return 过期标签的离开事件
+     */
+    public List<SwitchAreaEvent> expire(long idleBefore) {
+        List<SwitchAreaEvent> events = new ArrayList<>();
+        int expired = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (!used[i] || seenMillis[i] >= idleBefore) {
+                continue;
+            }
+            expired++;
+            if (current[i] != 0) {
+                events.add(new SwitchAreaEvent(SwitchAreaEvent.LEAVE, keys[i], mapIds[i], current[i], 0, timestamps[i]));
+            }
+        }
+        if (expired > 0) {
+            rebuild(keys.length, idleBefore);
+        }
+        return events;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        allocate(keys.length);
+    }
+
+    private int find(long tagId) {
+        int mask = keys.length - 1;
+        int slot = mix(tagId) & mask;
+        while (used[slot]) {
+            if (keys[slot] == tagId) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int slot(long tagId) {
+        int mask = keys.length - 1;
+        int slot = mix(tagId) & mask;
+        while (used[slot]) {
+            if (keys[slot] == tagId) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if ((size + 1) * 4 > keys.length * 3) {
+            rebuild(keys.length * 2, Long.MIN_VALUE);
+            return slot(tagId);
+        }
+        used[slot] = true;
+        keys[slot] = tagId;
+        size++;
+        return slot;
+    }
+
+    /**
+     * 按新容量重新放置,丢弃keepAfter之前未再定位的标签
+     */
+    private void rebuild(int capacity, long keepAfter) {
+        boolean[] oldUsed = used;
+        long[] oldKeys = keys, oldCurrent = current, oldCandidate = candidate, oldTimestamps = timestamps, oldSeen = seenMillis;
+        int[] oldHits = hits;
+        Long[] oldMapIds = mapIds;
+        allocate(capacity);
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (!oldUsed[i] || oldSeen[i] < keepAfter) {
+                continue;
+            }
+            int slot = mix(oldKeys[i]) & mask;
+            while (used[slot]) {
+                slot = (slot + 1) & mask;
+            }
+            used[slot] = true;
+            keys[slot] = oldKeys[i];
+            current[slot] = oldCurrent[i];
+            candidate[slot] = oldCandidate[i];
+            hits[slot] = oldHits[i];
+            mapIds[slot] = oldMapIds[i];
+            timestamps[slot] = oldTimestamps[i];
+            seenMillis[slot] = oldSeen[i];
+            size++;
+        }
+    }
+
+    static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
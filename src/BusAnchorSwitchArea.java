@@ -71,6 +71,11 @@ public class BusAnchorSwitchArea implements Serializable{
 	@Column(name = "disable_warning")
 	private Integer disableWarning;
 
+	/**乐观锁版本号*/
+	@Version
+	@Column(name = "version", columnDefinition = "bigint default 0")
+	private Long version = 0L;
+
 	/**级联保存、更新、删除、刷新;延迟加载*/
 	@OneToMany(cascade=CascadeType.ALL,fetch=FetchType.LAZY)
 	@JoinColumn(name = "area_no",referencedColumnName = "id",insertable=false,updatable=false)
@@ -269,4 +274,12 @@ public class BusAnchorSwitchArea implements Serializable{
 	public void setAnchorGroups(Set<BusAnchorGroup> anchorGroups) {
 		this.anchorGroups = anchorGroups;
 	}
+
+	public Long getVersion() {
+		return version;
+	}
+
+	public void setVersion(Long version) {
+		this.version = version;
+	}
 }
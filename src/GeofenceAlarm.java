@@ -0,0 +1,78 @@
+/**
+ * 区域围栏告警
+ *
+ * @author jobs
+ */
+public class GeofenceAlarm {
+
+    /*** 停留超时*/
+    public static final int DWELL = 1;
+
+    /*** 禁止进入的分组进入区域*/
+    public static final int FORBIDDEN = 2;
+
+    /*** 超出最大容纳人数*/
+    public static final int CAPACITY = 3;
+
+    private int type;
+
+    private long tagId;
+
+    private long areaPk;
+
+    private Long areaNo;
+
+    private long timestamp;
+
+    public GeofenceAlarm() {
+        super();
+    }
+
+    public GeofenceAlarm(int type, long tagId, long areaPk, Long areaNo, long timestamp) {
+        this.type = type;
+        this.tagId = tagId;
+        this.areaPk = areaPk;
+        this.areaNo = areaNo;
+        this.timestamp = timestamp;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public void setType(int type) {
+        this.type = type;
+    }
+
+    public long getTagId() {
+        return tagId;
+    }
+
+    public void setTagId(long tagId) {
+        this.tagId = tagId;
+    }
+
+    public long getAreaPk() {
+        return areaPk;
+    }
+
+    public void setAreaPk(long areaPk) {
+        this.areaPk = areaPk;
+    }
+
+    public Long getAreaNo() {
+        return areaNo;
+    }
+
+    public void setAreaNo(Long areaNo) {
+        this.areaNo = areaNo;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * 区域围栏规则
+ * 各项为0或null时表示不限制
+ *
+ * @author jobs
+ */
+public class GeofenceRule {
+
+    /*** 最长停留时间(毫秒)*/
+    private long maxDwellMillis;
+
+    /*** 禁止进入的标签分组*/
+    private LongHashSet forbiddenGroups;
+
+    /*** 最大容纳人数*/
+    private int capacity;
+
+    public GeofenceRule() {
+        super();
+    }
+
+    public GeofenceRule(long maxDwellMillis, long[] forbiddenGroups, int capacity) {
+        this.maxDwellMillis = maxDwellMillis;
+        this.capacity = capacity;
+        if (null != forbiddenGroups && forbiddenGroups.length > 0) {
+            this.forbiddenGroups = new LongHashSet(forbiddenGroups.length);
+            for (long groupId : forbiddenGroups) {
+                this.forbiddenGroups.add(groupId);
+            }
+        }
+    }
+
+    public boolean isForbidden(long groupId) {
+        return null != forbiddenGroups && forbiddenGroups.contains(groupId);
+    }
+
+    public long getMaxDwellMillis() {
+        return maxDwellMillis;
+    }
+
+    public void setMaxDwellMillis(long maxDwellMillis) {
+        this.maxDwellMillis = maxDwellMillis;
+    }
+
+    public LongHashSet getForbiddenGroups() {
+        return forbiddenGroups;
+    }
+
+    public void setForbiddenGroups(LongHashSet forbiddenGroups) {
+        this.forbiddenGroups = forbiddenGroups;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+}
@@ -0,0 +1,182 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 分层时间轮
+ * 4层、每层256格,第0层每格一个tick,上层到期时逐级下沉;
+ * 新增、取消均为O(1),大量定时器只占用链表节点,不需要每个定时器一个线程或ScheduledFuture
+ * 每个key同时只保留一个定时器,重复设置会覆盖原定时器
+ *
+ * @author jobs
+ */
+public class HierarchicalTimingWheel<T> {
+
+    private static final int LEVELS = 4;
+
+    private static final int BITS = 8;
+
+    private static final int SLOTS = 1 << BITS;
+
+    private static final int MASK = SLOTS - 1;
+
+    private final long tickMillis;
+
+    private final Node<T>[][] buckets;
+
+    private final Map<Long, Node<T>> nodes = new HashMap<>();
+
+    private long currentTick;
+
+    @SuppressWarnings("unchecked")
+    public HierarchicalTimingWheel(long tickMillis, long nowMillis) {
+        this.tickMillis = tickMillis;
+        this.buckets = new Node[LEVELS][SLOTS];
+        this.currentTick = nowMillis / tickMillis;
+    }
+
+    /**
+     * 设置定时器
+     *
+     * @param key            定时器标识
+     * @param deadlineMillis 到期时间
+     * @param payload        到期时返回的数据
+     */
+    public synchronized void schedule(long key, long deadlineMillis, T payload) {
+        cancel(key);
+        long deadlineTick = Math.max(currentTick + 1, deadlineMillis / tickMillis);
+        // 超出时间轮范围的定时器截断到最上层的最后一格
+        deadlineTick = Math.min(deadlineTick, currentTick | ((1L << (BITS * LEVELS)) - 1));
+        Node<T> node = new Node<>(key, deadlineTick, payload);
+        nodes.put(key, node);
+        insert(node);
+    }
+
+    /**
+     * 取消定时器
+     *
+     * @return 存在并取消时返回true
+     */
+    public synchronized boolean cancel(long key) {
+        Node<T> node = nodes.remove(key);
+        if (null == node) {
+            return false;
+        }
+        unlink(node);
+        return true;
+    }
+
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    /**
+     * 推进到当前时间并取出到期的定时器
+     *
+     * @param nowMillis 当前时间
+     * @return 到期定时器的数据
+     */
+    public synchronized List<T> advance(long nowMillis) {
+        List<T> expired = new ArrayList<>();
+        long target = nowMillis / tickMillis;
+        while (currentTick < target) {
+            currentTick++;
+            int slot = (int) (currentTick & MASK);
+            if (slot == 0) {
+                cascade(1);
+            }
+            Node<T> node = buckets[0][slot];
+            buckets[0][slot] = null;
+            while (null != node) {
+                Node<T> next = node.next;
+                node.prev = node.next = null;
+                node.level = -1;
+                nodes.remove(node.key);
+                expired.add(node.payload);
+                node = next;
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * 上层当前格的定时器下沉到下层
+     */
+    private void cascade(int level) {
+        if (level >= LEVELS) {
+            return;
+        }
+        int slot = (int) ((currentTick >>> (BITS * level)) & MASK);
+        if (slot == 0) {
+            cascade(level + 1);
+        }
+        Node<T> node = buckets[level][slot];
+        buckets[level][slot] = null;
+        while (null != node) {
+            Node<T> next = node.next;
+            node.prev = node.next = null;
+            insert(node);
+            node = next;
+        }
+    }
+
+    /**
+     * 按到期tick与当前tick最高的不同位所在层放入时间轮,保证上层格在下沉时不会被跳过
+     */
+    private void insert(Node<T> node) {
+        long diff = node.deadlineTick ^ currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && (diff >>> (BITS * (level + 1))) != 0) {
+            level++;
+        }
+        int slot = (int) ((node.deadlineTick >>> (BITS * level)) & MASK);
+        node.level = level;
+        node.slot = slot;
+        Node<T> head = buckets[level][slot];
+        node.next = head;
+        if (null != head) {
+            head.prev = node;
+        }
+        buckets[level][slot] = node;
+    }
+
+    private void unlink(Node<T> node) {
+        if (node.level < 0) {
+            return;
+        }
+        if (null != node.prev) {
+            node.prev.next = node.next;
+        } else {
+            buckets[node.level][node.slot] = node.next;
+        }
+        if (null != node.next) {
+            node.next.prev = node.prev;
+        }
+        node.prev = node.next = null;
+        node.level = -1;
+    }
+
+    private static class Node<T> {
+
+        final long key;
+
+        final long deadlineTick;
+
+        final T payload;
+
+        int level = -1;
+
+        int slot;
+
+        Node<T> prev;
+
+        Node<T> next;
+
+        Node(long key, long deadlineTick, T payload) {
+            this.key = key;
+            this.deadlineTick = deadlineTick;
+            this.payload = payload;
+        }
+    }
+}
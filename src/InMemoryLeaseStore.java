@@ -0,0 +1,90 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * 内存租约存储
+ * 语义与RedisUtils的Lua脚本实现一致,用于单机运行及测试
+ *
+ * @author jobs
+ */
+public class InMemoryLeaseStore implements LeaseStore {
+
+    private final LongSupplier clock;
+
+    /*** 租约名称 -> 当前占有*/
+    private final Map<String, Holder> leases = new HashMap<>();
+
+    /*** 租约名称 -> 最近发放的fencing token*/
+    private final Map<String, Long> tokens = new HashMap<>();
+
+    public InMemoryLeaseStore() {
+        this(System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock 当前时间,毫秒
+     */
+    public InMemoryLeaseStore(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    @Override
+    public synchronized Long tryAcquireLease(String name, String owner, long leaseMillis) {
+        if (null != current(name)) {
+            return null;
+        }
+        leases.put(name, new Holder(owner, clock.getAsLong() + leaseMillis));
+        return tokens.merge(name, 1L, Long::sum);
+    }
+
+    @Override
+    public synchronized boolean renewLease(String name, String owner, long leaseMillis) {
+        Holder holder = current(name);
+        if (null == holder || !holder.owner.equals(owner)) {
+            return false;
+        }
+        holder.expireMillis = clock.getAsLong() + leaseMillis;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean releaseLease(String name, String owner) {
+        Holder holder = current(name);
+        if (null == holder || !holder.owner.equals(owner)) {
+            return false;
+        }
+        leases.remove(name);
+        return true;
+    }
+
+    @Override
+    public synchronized Long reissueToken(String name, String owner, long minToken) {
+        Holder holder = current(name);
+        if (null == holder || !holder.owner.equals(owner)) {
+            return null;
+        }
+        return tokens.merge(name, 1L, (token, one) -> Math.max(token + one, minToken + 1));
+    }
+
+    private Holder current(String name) {
+        Holder holder = leases.get(name);
+        if (null != holder && holder.expireMillis <= clock.getAsLong()) {
+            leases.remove(name);
+            return null;
+        }
+        return holder;
+    }
+
+    private static class Holder {
+
+        private final String owner;
+
+        private long expireMillis;
+
+        Holder(String owner, long expireMillis) {
+            this.owner = owner;
+            this.expireMillis = expireMillis;
+        }
+    }
+}
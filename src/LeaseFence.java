@@ -0,0 +1,64 @@
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * fencing token校验
+ * bus_lease_fence按租约名称记录已写入的最大token,持有租约写数据库前在同一事务中更新该记录;
+ * token小于已记录值说明租约已被其它节点接管,拒绝写入。记录行锁持有到事务结束,新旧持有者的写入不会交错;
+ * 租约锁占有时按已记录值校正token,redis丢失计数后发放的token仍大于已写入的值
+ *
+ * @author jobs
+ */
+@Component
+public class LeaseFence {
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    /**
+     * 校验租约的fencing token,须在写入的事务中调用
+     *
+     * @throws ConcurrencyFailureException 租约已失去或token已过期
+     */
+    public void check(RedisLeaseLock.Lease lease) {
+        if (!TransactionSynchronizationManager.isActualTransactionActive()) {
+            throw new IllegalStateException("no active transaction");
+        }
+        if (!lease.isHeld()) {
+            throw new ConcurrencyFailureException("lease " + lease.getName() + " is lost, token=" + lease.getToken());
+        }
+        if (advance(lease.getName(), lease.getToken())) {
+            return;
+        }
+        try {
+            jdbcTemplate.update("insert into bus_lease_fence(name, token) values (?, ?)", lease.getName(), lease.getToken());
+        } catch (DuplicateKeyException e) {
+            // 其它节点同时插入,记录已存在时按token比较
+            if (!advance(lease.getName(), lease.getToken())) {
+                throw stale(lease);
+            }
+        }
+    }
+
+    /**
+     * @return 租约已写入的最大token,没有记录时返回0
+     */
+    public long lastToken(String name) {
+        List<Long> tokens = jdbcTemplate.queryForList("select token from bus_lease_fence where name = ?", Long.class, name);
+        return tokens.isEmpty() || null == tokens.get(0) ? 0L : tokens.get(0);
+    }
+
+    private boolean advance(String name, long token) {
+        return jdbcTemplate.update("update bus_lease_fence set token = ? where name = ? and token <= ?", token, name, token) > 0;
+    }
+
+    private static ConcurrencyFailureException stale(RedisLeaseLock.Lease lease) {
+        return new ConcurrencyFailureException("stale lease " + lease.getName() + ", token=" + lease.getToken());
+    }
+}
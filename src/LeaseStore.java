@@ -0,0 +1,41 @@
+/**
+ * 租约存储
+ * 租约锁及主节点选举只依赖这几个原子操作,生产环境由RedisUtils以Lua脚本实现,
+ * 测试时可替换为内嵌redis或内存实现
+ *
+ * @author jobs
+ */
+public interface LeaseStore {
+
+    /**
+     * 租约不存在时以owner占有,并递增该租约的fencing token
+     *
+     * @param name        租约名称
+     * @param owner       占有者标识
+     * @param leaseMillis 租约时长,毫秒
+     * @return 占有成功返回fencing token,租约已被占有返回null
+     */
+    Long tryAcquireLease(String name, String owner, long leaseMillis);
+
+    /**
+     * 仍由owner占有时延长租约
+     *
+     * @return false 租约已过期或被其它占有者持有
+     */
+    boolean renewLease(String name, String owner, long leaseMillis);
+
+    /**
+     * 仍由owner占有时释放租约,不会误删其它占有者的租约
+     *
+     * @return false 租约已过期或被其它占有者持有
+     */
+    boolean releaseLease(String name, String owner);
+
+    /**
+     * 仍由owner占有时重新发放大于minToken的fencing token,之后发放的token从新值继续递增;
+     * 用于存储丢失数据后token从头计数时,按数据库已记录的token校正
+     *
+     * @return 新的fencing token,租约已过期或被其它占有者持有返回null
+     */
+    Long reissueToken(String name, String owner, long minToken);
+}
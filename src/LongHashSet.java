@@ -0,0 +1,171 @@
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * long基本类型哈希集合
+ * 开放寻址、线性探测,删除时后移回填,不产生装箱对象;非线程安全
+ * Long.MIN_VALUE作为空槽标记,该值本身单独记录,任意long值都可以放入
+ *
+ * @author jobs
+ */
+public class LongHashSet {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private long[] keys;
+
+    /*** 是否包含Long.MIN_VALUE*/
+    private boolean hasEmptyKey;
+
+    private int size;
+
+    public LongHashSet() {
+        this(16);
+    }
+
+    public LongHashSet(int initialCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(16, initialCapacity) * 2 - 1);
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * @return 原来不存在时返回true
+     */
+    public boolean add(long key) {
+        if (key == EMPTY) {
+            if (hasEmptyKey) {
+                return false;
+            }
+            hasEmptyKey = true;
+            size++;
+            return true;
+        }
+        int mask = keys.length - 1;
+        int slot = AreaTransitionTracker.mix(key) & mask;
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        if (++size * 4 > keys.length * 3) {
+            rehash(keys.length * 2);
+        }
+        return true;
+    }
+
+    public boolean contains(long key) {
+        if (key == EMPTY) {
+            return hasEmptyKey;
+        }
+        int mask = keys.length - 1;
+        int slot = AreaTransitionTracker.mix(key) & mask;
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * @return 存在并删除时返回true
+     */
+    public boolean remove(long key) {
+        if (key == EMPTY) {
+            if (!hasEmptyKey) {
+                return false;
+            }
+            hasEmptyKey = false;
+            size--;
+            return true;
+        }
+        int mask = keys.length - 1;
+        int slot = AreaTransitionTracker.mix(key) & mask;
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                shiftBack(slot);
+                size--;
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * 删除后把同一探测链上后续的元素前移,保证查找不被空位截断
+     */
+    private void shiftBack(int gap) {
+        int mask = keys.length - 1;
+        int slot = (gap + 1) & mask;
+        while (keys[slot] != EMPTY) {
+            int home = AreaTransitionTracker.mix(keys[slot]) & mask;
+            if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+                keys[gap] = keys[slot];
+                gap = slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[gap] = EMPTY;
+    }
+
+    private void rehash(int capacity) {
+        long[] old = keys;
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        int mask = capacity - 1;
+        for (long key : old) {
+            if (key == EMPTY) {
+                continue;
+            }
+            int slot = AreaTransitionTracker.mix(key) & mask;
+            while (keys[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+        }
+    }
+
+    public void forEach(LongConsumer consumer) {
+        if (hasEmptyKey) {
+            consumer.accept(EMPTY);
+        }
+        for (long key : keys) {
+            if (key != EMPTY) {
+                consumer.accept(key);
+            }
+        }
+    }
+
+    public long[] toArray() {
+        long[] result = new long[size];
+        int i = 0;
+        if (hasEmptyKey) {
+            result[i++] = EMPTY;
+        }
+        for (long key : keys) {
+            if (key != EMPTY) {
+                result[i++] = key;
+            }
+        }
+        return result;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        hasEmptyKey = false;
+        size = 0;
+    }
+}
@@ -0,0 +1,111 @@
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Consumer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 主节点选举
+ * 各节点定期尝试占有同名租约,占有者为主节点并由租约锁自动续期;主节点失去租约或退出选举后,其它节点在下一轮接任。
+ * 身份变化回调在单独的线程中按顺序执行,回调耗时不会阻塞续期和竞选;回调执行时身份可能已再次变化,以isLeader为准
+ *
+ * @author jobs
+ */
+@Slf4j
+public class RedisLeaderElector {
+
+    private final RedisLeaseLock leaseLock;
+
+    private final String name;
+
+    private final long leaseMillis;
+
+    private final Consumer<Boolean> listener;
+
+    private final Executor callbacks;
+
+    private RedisLeaseLock.Lease lease;
+
+    private ScheduledFuture<?> task;
+
+    private boolean stopped;
+
+    RedisLeaderElector(RedisLeaseLock leaseLock, String name, long leaseMillis, Consumer<Boolean> listener, Executor callbacks) {
+        this.leaseLock = leaseLock;
+        this.name = name;
+        this.leaseMillis = leaseMillis;
+        this.listener = listener;
+        this.callbacks = callbacks;
+    }
+
+    synchronized void start(ScheduledFuture<?> task) {
+        this.task = task;
+    }
+
+    /**
+     * 检查主节点身份,非主节点时尝试竞选
+     */
+    synchronized void poll() {
+        if (stopped) {
+            return;
+        }
+        try {
+            if (null != lease) {
+                if (lease.isHeld()) {
+                    return;
+                }
+                lease.close();
+                lease = null;
+                changed(false);
+            }
+            lease = leaseLock.tryLock(name, leaseMillis);
+            if (null != lease) {
+                changed(true);
+            }
+        } catch (RuntimeException e) {
+            log.warn("主节点竞选异常,name=" + name, e);
+        }
+    }
+
+    public synchronized boolean isLeader() {
+        return null != lease && lease.isHeld();
+    }
+
+    /**
+     * @return 当前主节点任期的fencing token,非主节点返回null
+     */
+    public synchronized Long getToken() {
+        return isLeader() ? lease.getToken() : null;
+    }
+
+    /**
+     * 退出选举,是主节点时立即释放租约
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (null != task) {
+            task.cancel(false);
+        }
+        if (null != lease) {
+            lease.close();
+            lease = null;
+            changed(false);
+        }
+    }
+
+    private void changed(boolean leader) {
+        log.info((leader ? "成为主节点" : "不再是主节点") + ",name=" + name);
+        try {
+            callbacks.execute(() -> {
+                try {
+                    listener.accept(leader);
+                } catch (RuntimeException e) {
+                    log.error("主节点变化回调异常,name=" + name, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("租约锁已关闭,忽略主节点变化回调,name=" + name);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 集群租约锁
+ * 同名租约同一时间只有一个节点持有,持有期间后台按租约时长的1/3续期,续期失败或超过租约时长未续期成功即视为失去租约;
+ * 每次占有得到单调递增的fencing token,写共享资源时携带token可拒绝已失去租约的旧持有者;释放时比较占有者,不会误删其它节点的租约。
+ * 存储发放的token不大于LeaseFence已记录的值时(如redis丢失数据)重新发放,保证token不回退。
+ * 续期与竞选使用各自的线程,竞选时读取数据库不会延误续期
+ *
+ * @author jobs
+ */
+@Slf4j
+@Component
+public class RedisLeaseLock {
+
+    /*** 本节点标识*/
+    private static final String NODE_ID = UUID.randomUUID().toString();
+
+    /*** 等待租约时的重试间隔,毫秒*/
+    private static final long RETRY_MILLIS = 50L;
+
+    /*** 续期线程数*/
+    private static final int RENEWER_THREADS = 2;
+
+    @Autowired
+    private LeaseStore store;
+
+    /*** 数据库记录的fencing token,不经过Spring创建时为null,不校正token*/
+    @Autowired(required = false)
+    private LeaseFence fence;
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private ScheduledExecutorService renewer;
+
+    /*** 主节点竞选线程*/
+    private ScheduledExecutorService electors;
+
+    /*** 主节点变化回调线程,回调耗时不影响续期*/
+    private ExecutorService callbacks;
+
+    public RedisLeaseLock() {
+    }
+
+    /**
+     * 不经过Spring创建,用于内嵌redis或内存租约存储
+     */
+    public RedisLeaseLock(LeaseStore store) {
+        this.store = store;
+        init();
+    }
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger renewerIndex = new AtomicInteger();
+        renewer = Executors.newScheduledThreadPool(RENEWER_THREADS, r -> {
+            Thread thread = new Thread(r, "lease-renewer-" + renewerIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        electors = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "lease-elector");
+            thread.setDaemon(true);
+            return thread;
+        });
+        callbacks = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "lease-callback");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void destroy() {
+        electors.shutdownNow();
+        renewer.shutdownNow();
+        callbacks.shutdownNow();
+    }
+
+    /**
+     * 尝试占有租约,不等待
+     *
+     * @param name        租约名称
+     * @param leaseMillis 租约时长,毫秒;持有期间自动续期
+     * @return 租约,已被其它占有者持有时返回null
+     */
+    public Lease tryLock(String name, long leaseMillis) {
+        String owner = NODE_ID + ":" + sequence.incrementAndGet();
+        long acquireMillis = System.currentTimeMillis();
+        Long token = store.tryAcquireLease(name, owner, leaseMillis);
+        if (null == token) {
+            return null;
+        }
+        if (null != fence) {
+            try {
+                long recorded = fence.lastToken(name);
+                if (token <= recorded) {
+                    log.warn("fencing token不大于数据库记录,重新发放,name=" + name + ",token=" + token + ",recorded=" + recorded);
+                    token = store.reissueToken(name, owner, recorded);
+                    if (null == token) {
+                        return null;
+                    }
+                }
+            } catch (RuntimeException e) {
+                // 无法确认token是否有效时不持有租约
+                log.warn("读取fencing token记录异常,放弃租约,name=" + name, e);
+                release(name, owner);
+                return null;
+            }
+        }
+        Lease lease = new Lease(name, owner, token, leaseMillis, acquireMillis);
+        long period = Math.max(1L, leaseMillis / 3);
+        lease.renewal = renewer.scheduleWithFixedDelay(() -> renew(lease), period, period, TimeUnit.MILLISECONDS);
+        return lease;
+    }
+
+    /**
+     * 尝试占有租约,最多等待waitMillis毫秒
+     *
+     * @return 租约,等待超时或线程中断时返回null
+     */
+    public Lease tryLock(String name, long leaseMillis, long waitMillis) {
+        long deadline = System.currentTimeMillis() + waitMillis;
+        while (true) {
+            Lease lease = tryLock(name, leaseMillis);
+            if (null != lease || System.currentTimeMillis() >= deadline) {
+                return lease;
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS + ThreadLocalRandom.current().nextLong(RETRY_MILLIS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * 持有租约执行,执行完成后释放
+     *
+     * @param work 参数为持有的租约,执行中可通过isHeld检查是否仍持有
+     * @return false 租约被其它节点持有,未执行
+     */
+    public boolean runExclusive(String name, long leaseMillis, Consumer<Lease> work) {
+        Lease lease = tryLock(name, leaseMillis);
+        if (null == lease) {
+            return false;
+        }
+        try (Lease held = lease) {
+            work.accept(held);
+        }
+        return true;
+    }
+
+    /**
+     * 参与主节点选举,立即开始竞选
+     *
+     * @param listener 主节点身份变化时按顺序在回调线程中执行,参数为是否成为主节点
+     */
+    public RedisLeaderElector elect(String name, long leaseMillis, Consumer<Boolean> listener) {
+        RedisLeaderElector elector = new RedisLeaderElector(this, name, leaseMillis, listener, callbacks);
+        long period = Math.max(1L, leaseMillis / 3);
+        elector.start(electors.scheduleWithFixedDelay(elector::poll, 0L, period, TimeUnit.MILLISECONDS));
+        return elector;
+    }
+
+    private void release(String name, String owner) {
+        try {
+            store.releaseLease(name, owner);
+        } catch (RuntimeException e) {
+            log.warn("释放租约异常,等待租约过期,name=" + name, e);
+        }
+    }
+
+    private void renew(Lease lease) {
+        if (lease.released) {
+            return;
+        }
+        long renewMillis = System.currentTimeMillis();
+        try {
+            if (store.renewLease(lease.name, lease.owner, lease.leaseMillis)) {
+                lease.renewedMillis = renewMillis;
+                return;
+            }
+            log.warn("租约已被其它节点占有,name=" + lease.name + ",token=" + lease.token);
+        } catch (RuntimeException e) {
+            // 暂时无法访问redis时继续重试,超过租约时长后isHeld返回false
+            log.warn("租约续期异常,name=" + lease.name, e);
+            if (lease.isHeld()) {
+                return;
+            }
+        }
+        lease.released = true;
+        lease.stopRenewal();
+    }
+
+    /**
+     * 已占有的租约
+     */
+    public class Lease implements AutoCloseable {
+
+        private final String name;
+
+        private final String owner;
+
+        private final long token;
+
+        private final long leaseMillis;
+
+        /*** 最近一次续期成功前的时间,租约至少在此之后leaseMillis内有效*/
+        private volatile long renewedMillis;
+
+        private volatile boolean released;
+
+        private volatile ScheduledFuture<?> renewal;
+
+        Lease(String name, String owner, long token, long leaseMillis, long acquireMillis) {
+            this.name = name;
+            this.owner = owner;
+            this.token = token;
+            this.leaseMillis = leaseMillis;
+            this.renewedMillis = acquireMillis;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return fencing token,同名租约每次占有递增
+         */
+        public long getToken() {
+            return token;
+        }
+
+        /**
+         * @return 是否仍持有租约;续期失败或超过租约时长未续期成功时返回false
+         */
+        public boolean isHeld() {
+            return !released && System.currentTimeMillis() - renewedMillis < leaseMillis;
+        }
+
+        /**
+         * 停止续期并释放租约,重复调用无影响
+         */
+        @Override
+        public void close() {
+            stopRenewal();
+            if (released) {
+                return;
+            }
+            released = true;
+            release(name, owner);
+        }
+
+        private void stopRenewal() {
+            ScheduledFuture<?> future = renewal;
+            if (null != future) {
+                future.cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Redis stream消费组工作线程
+ * 启动时先重放本消费者未确认的消息,之后批量读取新消息,处理成功后确认;
+ * 定期认领其它节点超时未确认的消息,保证至少一次投递。每批最多batchSize条,内存占用有上限;
+ * 顺序消费时一个stream只有一个消费者,未确认的消息先于新消息重试,不认领其它消费者的消息
+ *
+ * @author jobs
+ */
+@Slf4j
+public class RedisStreamWorker implements Runnable {
+
+    private static final long BLOCK_MILLIS = 1000L;
+
+    private static final Duration CLAIM_IDLE = Duration.ofSeconds(60);
+
+    private static final long CLAIM_INTERVAL_MILLIS = 30000L;
+
+    private final RedisUtils redisUtils;
+
+    private final String key;
+
+    private final String group;
+
+    private final String consumer;
+
+    private final int batchSize;
+
+    /*** 处理一批消息,返回处理成功需要确认的消息ID,未确认的消息会被重新投递*/
+    private final Function<List<MapRecord<String, Object, Object>>, List<RecordId>> handler;
+
+    /*** 顺序消费*/
+    private final boolean ordered;
+
+    private volatile boolean running = true;
+
+    private boolean retryPending;
+
+    private long lastClaimTime;
+
+    public RedisStreamWorker(RedisUtils redisUtils, String key, String group, String consumer, int batchSize,
+                             Function<List<MapRecord<String, Object, Object>>, List<RecordId>> handler) {
+        this(redisUtils, key, group, consumer, batchSize, handler, false);
+    }
+
+    public RedisStreamWorker(RedisUtils redisUtils, String key, String group, String consumer, int batchSize,
+                             Function<List<MapRecord<String, Object, Object>>, List<RecordId>> handler, boolean ordered) {
+        this.ordered = ordered;
+        this.redisUtils = redisUtils;
+        this.key = key;
+        this.group = group;
+        this.consumer = consumer;
+        this.batchSize = batchSize;
+        this.handler = handler;
+    }
+
+    @Override
+    public void run() {
+        redisUtils.xGroupCreate(key, group);
+        retryPending = !replayPending();
+        while (running) {
+            try {
+                if (ordered && retryPending) {
+                    retryPending = !replayPending();
+                    if (retryPending) {
+                        Thread.sleep(BLOCK_MILLIS);
+                    }
+                    continue;
+                }
+                if (!ordered && System.currentTimeMillis() - lastClaimTime > CLAIM_INTERVAL_MILLIS) {
+                    lastClaimTime = System.currentTimeMillis();
+                    List<MapRecord<String, Object, Object>> claimed = redisUtils.xClaimIdle(key, group, consumer, CLAIM_IDLE, batchSize);
+                    if (!claimed.isEmpty()) {
+                        handle(claimed);
+                    }
+                }
+                List<MapRecord<String, Object, Object>> records = redisUtils.xReadGroup(key, group, consumer, batchSize, BLOCK_MILLIS);
+                if (!records.isEmpty() && handle(records).size() < records.size()) {
+                    retryPending = true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("stream消费异常,key=" + key + ",group=" + group, e);
+                retryPending = true;
+                try {
+                    Thread.sleep(BLOCK_MILLIS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true 未确认的消息已全部处理
+     */
+    private boolean replayPending() {
+        while (running) {
+            List<MapRecord<String, Object, Object>> records = redisUtils.xReadGroupPending(key, group, consumer, batchSize);
+            if (records.isEmpty()) {
+                return true;
+            }
+            List<RecordId> acked = handle(records);
+            if (acked.size() < records.size()) {
+                // 仍有处理失败的消息,留给后续重试,避免死循环
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private List<RecordId> handle(List<MapRecord<String, Object, Object>> records) {
+        List<RecordId> ids = handler.apply(records);
+        if (null != ids && !ids.isEmpty()) {
+            redisUtils.xAck(key, group, ids.toArray(new RecordId[0]));
+        }
+        return null == ids ? Collections.emptyList() : ids;
+    }
+
+    public void stop() {
+        this.running = false;
+    }
+}
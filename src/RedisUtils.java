@@ -1,21 +1,47 @@
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 
+import javax.annotation.PreDestroy;
+
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
 import org.springframework.data.redis.core.Cursor;
 import org.springframework.data.redis.core.DefaultTypedTuple;
 import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.SessionCallback;
 import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.GenericToStringSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
 import org.springframework.stereotype.Service;
 import org.springframework.util.CollectionUtils;
 
@@ -25,16 +51,38 @@ import org.springframework.util.CollectionUtils;
  * @Date 2017年9月10日
  */
 @Service
-public class RedisUtils {
+public class RedisUtils implements LeaseStore {
 
     private static Logger log = Logger.getLogger(RedisUtils.class);
 
     /*** send tag interval time*/
     public final static int MAX_SEND_NUM = 125;
 
+    /*** 租约不存在时占有并递增fencing token,KEYS[1]租约 KEYS[2]token ARGV[1]占有者 ARGV[2]毫秒*/
+    private static final RedisScript<Long> LEASE_ACQUIRE = new DefaultRedisScript<>(
+            "if redis.call('set', KEYS[1], ARGV[1], 'NX', 'PX', ARGV[2]) then return redis.call('incr', KEYS[2]) end return 0", Long.class);
+
+    private static final RedisScript<Long> LEASE_REISSUE = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then local t = redis.call('incr', KEYS[2]) "
+                    + "if t <= tonumber(ARGV[2]) then t = tonumber(ARGV[2]) + 1 redis.call('set', KEYS[2], t) end return t end return 0", Long.class);
+
+    private static final RedisScript<Long> LEASE_RENEW = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('pexpire', KEYS[1], ARGV[2]) end return 0", Long.class);
+
+    private static final RedisScript<Long> LEASE_RELEASE = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) end return 0", Long.class);
+
+    /*** 脚本参数按字符串写入,与value序列化方式无关*/
+    private static final RedisSerializer<String> SCRIPT_ARGS = new StringRedisSerializer();
+
+    private static final RedisSerializer<Long> SCRIPT_RESULT = new GenericToStringSerializer<>(Long.class);
+
     @Autowired
     private RedisTemplate<String, Object> redisTemplate;
 
+    /*** 订阅监听容器,首次订阅时创建*/
+    private RedisMessageListenerContainer listenerContainer;
+
     /**
      * 制定緩存失效时间
      *
@@ -778,7 +826,332 @@ public class RedisUtils {
         return redisTemplate.opsForZSet().size(key);
     }
 
+    /**
+     * 按分值区间获取有序集合的值
+     *
+     * @param key 键
+     * @param min 最小分值(含)
+     * @param max 最大分值(含)
+     * @return
+     */
+    public <V> Set<V> zRangeByScore(String key, double min, double max) {
+        Set<Object> rangeResult = redisTemplate.opsForZSet().rangeByScore(key, min, max);
+        if (rangeResult == null) {
+            return null;
+        }
+        return rangeResult.stream().map(v -> (V) v).collect(Collectors.toCollection(LinkedHashSet::new));
+    }
+
+    /**
+     * 以管道方式按分值区间获取多个有序集合的值,一次往返
+     *
+     * @param keys 键
+     * @param min  最小分值(含)
+     * @param max  最大分值(含)
+     * @return 与keys顺序一致的结果
+     */
+    public <V> List<Set<V>> zRangeByScore(List<String> keys, double min, double max) {
+        List<Object> results = redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K, T> Object execute(RedisOperations<K, T> operations) {
+                RedisOperations<String, Object> ops = (RedisOperations<String, Object>) operations;
+                for (String key : keys) {
+                    ops.opsForZSet().rangeByScore(key, min, max);
+                }
+                return null;
+            }
+        });
+        return results.stream().map(v -> v == null ? Collections.<V>emptySet() : (Set<V>) v).collect(Collectors.toList());
+    }
+
+    /**
+     * 以管道方式向多个有序集合批量写入,并设置过期时间
+     *
+     * @param tuples 键 -> (值 -> 分值)
+     * @param time   时间(秒) 小于等于0时不设置过期
+     */
+    public void zAddAll(Map<String, Map<Object, Double>> tuples, long time) {
+        if (tuples == null || tuples.isEmpty()) {
+            return;
+        }
+        redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K, T> Object execute(RedisOperations<K, T> operations) {
+                RedisOperations<String, Object> ops = (RedisOperations<String, Object>) operations;
+                tuples.forEach((key, values) -> {
+                    Set<ZSetOperations.TypedTuple<Object>> set = new HashSet<>();
+                    values.forEach((value, score) -> set.add(new DefaultTypedTuple<>(value, score)));
+                    ops.opsForZSet().add(key, set);
+                    if (time > 0) {
+                        ops.expire(key, time, TimeUnit.SECONDS);
+                    }
+                });
+                return null;
+            }
+        });
+    }
+
     public List<String> getKeysWithPrefix(String tagPrefix, Collection<String> collection) {
         return collection.stream().map(str -> tagPrefix + str).collect(Collectors.toList());
     }
+
+    //============================stream=============================
+
+    /**
+     * 向stream追加一条消息,以XADD MAXLEN ~在同一命令中按近似长度裁剪
+     *
+     * @param key    键
+     * @param body   消息内容
+     * @param maxLen 保留的最大条数,小于等于0时不裁剪
+     * @return 消息ID
+     */
+    public RecordId xAdd(String key, Map<String, Object> body, long maxLen) {
+        byte[][] args = xAddArgs(key, body, maxLen);
+        Object id = redisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XADD", args));
+        return RecordId.of(id instanceof byte[] ? new String((byte[]) id, StandardCharsets.UTF_8) : String.valueOf(id));
+    }
+
+    /**
+     * 以管道方式向stream批量追加消息,每条消息以XADD MAXLEN ~裁剪
+     *
+     * @param key    键
+     * @param bodies 消息内容
+     * @param maxLen 保留的最大条数,小于等于0时不裁剪
+     */
+    public void xAddAll(String key, List<Map<String, Object>> bodies, long maxLen) {
+        if (bodies == null || bodies.isEmpty()) {
+            return;
+        }
+        List<byte[][]> commands = bodies.stream().map(body -> xAddArgs(key, body, maxLen)).collect(Collectors.toList());
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (byte[][] args : commands) {
+                connection.execute("XADD", args);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 按模板的键及hash序列化方式组装XADD参数,与opsForStream()读取时的反序列化一致
+     */
+    @SuppressWarnings("unchecked")
+    private byte[][] xAddArgs(String key, Map<String, Object> body, long maxLen) {
+        RedisSerializer<String> keySerializer = (RedisSerializer<String>) redisTemplate.getKeySerializer();
+        RedisSerializer<Object> hashKeySerializer = (RedisSerializer<Object>) redisTemplate.getHashKeySerializer();
+        RedisSerializer<Object> hashValueSerializer = (RedisSerializer<Object>) redisTemplate.getHashValueSerializer();
+        List<byte[]> args = new ArrayList<>(body.size() * 2 + 5);
+        args.add(keySerializer.serialize(key));
+        if (maxLen > 0) {
+            args.add("MAXLEN".getBytes(StandardCharsets.UTF_8));
+            args.add("~".getBytes(StandardCharsets.UTF_8));
+            args.add(String.valueOf(maxLen).getBytes(StandardCharsets.UTF_8));
+        }
+        args.add("*".getBytes(StandardCharsets.UTF_8));
+        body.forEach((field, value) -> {
+            args.add(hashKeySerializer.serialize(field));
+            args.add(hashValueSerializer.serialize(value));
+        });
+        return args.toArray(new byte[0][]);
+    }
+
+    /**
+     * 创建消费组,stream不存在时自动创建,消费组已存在时忽略
+     *
+     * @param key   键
+     * @param group 消费组
+     * @return true 创建成功或已存在 false 失败
+     */
+    @SuppressWarnings("unchecked")
+    public boolean xGroupCreate(String key, String group) {
+        try {
+            byte[] rawKey = ((RedisSerializer<String>) redisTemplate.getKeySerializer()).serialize(key);
+            redisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(rawKey, group, ReadOffset.from("0-0"), true));
+            return true;
+        } catch (Exception e) {
+            if (String.valueOf(e.getMessage()).contains("BUSYGROUP")
+                    || (null != e.getCause() && String.valueOf(e.getCause().getMessage()).contains("BUSYGROUP"))) {
+                return true;
+            }
+            log.error("创建stream消费组异常!", e);
+            return false;
+        }
+    }
+
+    /**
+     * 以消费组方式批量读取新消息
+     *
+     * @param key         键
+     * @param group       消费组
+     * @param consumer    消费者名称
+     * @param count       最多读取条数
+     * @param blockMillis 无消息时阻塞等待的毫秒数,小于等于0时不阻塞
+     * @return 消息列表
+     */
+    public List<MapRecord<String, Object, Object>> xReadGroup(String key, String group, String consumer, long count, long blockMillis) {
+        return xReadGroup(key, group, consumer, count, blockMillis, ReadOffset.lastConsumed());
+    }
+
+    /**
+     * 读取本消费者已投递但未确认的消息,用于重启后重放
+     *
+     * @param key      键
+     * @param group    消费组
+     * @param consumer 消费者名称
+     * @param count    最多读取条数
+     * @return 消息列表
+     */
+    public List<MapRecord<String, Object, Object>> xReadGroupPending(String key, String group, String consumer, long count) {
+        return xReadGroup(key, group, consumer, count, 0, ReadOffset.from("0-0"));
+    }
+
+    private List<MapRecord<String, Object, Object>> xReadGroup(String key, String group, String consumer, long count, long blockMillis, ReadOffset offset) {
+        StreamReadOptions options = StreamReadOptions.empty().count(count);
+        if (blockMillis > 0) {
+            options = options.block(Duration.ofMillis(blockMillis));
+        }
+        List<MapRecord<String, Object, Object>> records = redisTemplate.opsForStream()
+                .read(Consumer.from(group, consumer), options, StreamOffset.create(key, offset));
+        return records == null ? Collections.emptyList() : records;
+    }
+
+    /**
+     * 确认消息
+     *
+     * @param key   键
+     * @param group 消费组
+     * @param ids   消息ID
+     * @return 确认的条数
+     */
+    public long xAck(String key, String group, RecordId... ids) {
+        if (ids == null || ids.length == 0) {
+            return 0;
+        }
+        Long count = redisTemplate.opsForStream().acknowledge(key, group, ids);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * 认领超时未确认的消息,包括其它消费者及本消费者处理失败的消息
+     *
+     * @param key      键
+     * @param group    消费组
+     * @param consumer 认领后的消费者名称
+     * @param minIdle  消息最小空闲时间
+     * @param count    最多检查的未确认消息条数
+     * @return 认领到的消息
+     */
+    public List<MapRecord<String, Object, Object>> xClaimIdle(String key, String group, String consumer, Duration minIdle, long count) {
+        PendingMessages pending = redisTemplate.opsForStream().pending(key, group, Range.unbounded(), count);
+        if (pending == null || pending.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<RecordId> ids = new ArrayList<>();
+        for (PendingMessage message : pending) {
+            if (message.getElapsedTimeSinceLastDelivery().compareTo(minIdle) >= 0) {
+                ids.add(message.getId());
+            }
+        }
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<MapRecord<String, Object, Object>> records = redisTemplate.opsForStream()
+                .claim(key, group, consumer, minIdle, ids.toArray(new RecordId[0]));
+        return records == null ? Collections.emptyList() : records;
+    }
+
+    /**
+     * 获取stream的长度
+     *
+     * @param key 键
+     * @return
+     */
+    public Long xLen(String key) {
+        return redisTemplate.opsForStream().size(key);
+    }
+
+    //============================pub/sub=============================
+
+    /**
+     * 发布消息,消息按value序列化方式序列化
+     *
+     * @param channel 频道
+     * @param message 消息
+     */
+    public void publish(String channel, Object message) {
+        redisTemplate.convertAndSend(channel, message);
+    }
+
+    /**
+     * 订阅频道,首次订阅时启动监听容器;处理异常只记录日志,不影响后续消息
+     *
+     * @param channel 频道
+     * @param handler 参数为频道、反序列化后的消息
+     */
+    public synchronized void subscribe(String channel, BiConsumer<String, Object> handler) {
+        if (null == listenerContainer) {
+            listenerContainer = new RedisMessageListenerContainer();
+            listenerContainer.setConnectionFactory(redisTemplate.getConnectionFactory());
+            listenerContainer.afterPropertiesSet();
+            listenerContainer.start();
+        }
+        RedisSerializer<?> serializer = redisTemplate.getValueSerializer();
+        listenerContainer.addMessageListener((message, pattern) -> {
+            try {
+                handler.accept(channel, serializer.deserialize(message.getBody()));
+            } catch (Exception e) {
+                log.error("处理订阅消息异常!channel=" + channel, e);
+            }
+        }, new ChannelTopic(channel));
+    }
+
+    @PreDestroy
+    public synchronized void destroy() {
+        if (null != listenerContainer) {
+            try {
+                listenerContainer.destroy();
+            } catch (Exception e) {
+                log.error("关闭订阅监听容器异常!", e);
+            }
+            listenerContainer = null;
+        }
+    }
+
+    //============================lease=============================
+
+    /**
+     * 租约键,token与租约使用相同的hash tag,集群模式下落在同一节点
+     */
+    private static String leaseKey(String name) {
+        return "lease:{" + name + "}";
+    }
+
+    @Override
+    public Long tryAcquireLease(String name, String owner, long leaseMillis) {
+        Long token = redisTemplate.execute(LEASE_ACQUIRE, SCRIPT_ARGS, SCRIPT_RESULT,
+                Arrays.asList(leaseKey(name), leaseKey(name) + ":fence"), owner, String.valueOf(leaseMillis));
+        return null == token || token == 0L ? null : token;
+    }
+
+    @Override
+    public boolean renewLease(String name, String owner, long leaseMillis) {
+        Long result = redisTemplate.execute(LEASE_RENEW, SCRIPT_ARGS, SCRIPT_RESULT,
+                Collections.singletonList(leaseKey(name)), owner, String.valueOf(leaseMillis));
+        return null != result && result == 1L;
+    }
+
+    @Override
+    public boolean releaseLease(String name, String owner) {
+        Long result = redisTemplate.execute(LEASE_RELEASE, SCRIPT_ARGS, SCRIPT_RESULT,
+                Collections.singletonList(leaseKey(name)), owner);
+        return null != result && result == 1L;
+    }
+
+    @Override
+    public Long reissueToken(String name, String owner, long minToken) {
+        Long token = redisTemplate.execute(LEASE_REISSUE, SCRIPT_ARGS, SCRIPT_RESULT,
+                Arrays.asList(leaseKey(name), leaseKey(name) + ":fence"), owner, String.valueOf(minToken));
+        return null == token || token == 0L ? null : token;
+    }
 }
@@ -0,0 +1,309 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.pinpoint.global.GlobalVariables;
+
+/**
+ * 时隙规划
+ * 按calculateSlotInc相同的公式(时隙数 / 定位间隔)在内存中计算不同 slot_inc模式、maxAnchor、定位间隔 组合下的时隙数,
+ * 结合各区域绑定基站数量计算区域负载,按可行性及时隙数排序返回,不写数据库
+ *
+ * @author jobs
+ */
+@Component
+public class SlotPlanner {
+
+    /*** 时隙公式最少基站数*/
+    public static final int MIN_ANCHOR = 6;
+
+    @Autowired
+    private SysConfigCache configCache;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * @param model slot_inc模式,"0"或"1"
+     * @return 模式对应的时隙参数,模式不存在时返回null
+     */
+    public static SlotParams slotParams(String model) {
+        switch (model) {
+            case "0":
+                return new SlotParams(model,
+                        NumberUtils.toInt(GlobalVariables.SLOT_NUM_0.get("SLOT_NUM_0_PERIOD").toString()),
+                        Float.valueOf(GlobalVariables.SLOT_NUM_0.get("SLOT_NUM_0_RANGE_PRE6_TIME").toString()),
+                        Float.valueOf(GlobalVariables.SLOT_NUM_0.get("SLOT_NUM_0_RESP_TIME").toString()),
+                        NumberUtils.toInt(GlobalVariables.SLOT_NUM_0.get("SLOT_NUM_0_SIX").toString()));
+            case "1":
+                return new SlotParams(model,
+                        NumberUtils.toInt(GlobalVariables.SLOT_NUM_10.get("SLOT_NUM_10_PERIOD").toString()),
+                        Float.valueOf(GlobalVariables.SLOT_NUM_10.get("SLOT_NUM_10_RANGE_PRE6_TIME").toString()),
+                        Float.valueOf(GlobalVariables.SLOT_NUM_10.get("SLOT_NUM_10_RESP_TIME").toString()),
+                        NumberUtils.toInt(GlobalVariables.SLOT_NUM_10.get("SLOT_NUM_10_SIX").toString()));
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 模拟不同参数组合
+     *
+     * @param maxAnchors 候选maxAnchor,为空时取当前配置及各区域最大基站数
+     * @param intervals  候选定位间隔,为空时取基站最多使用的间隔
+     * @param models     候选slot_inc模式,为空时取全部模式
+     * @return 按可行性、时隙数排序的方案
+     */
+    public List<SlotOption> plan(Collection<Integer> maxAnchors, Collection<Integer> intervals, Collection<String> models) {
+        Map<Long, List<long[]>> areaLoads = loadAreaAnchorCounts();
+        List<MapLoad> mapLoads = areaLoads.entrySet().stream()
+                .map(entry -> new MapLoad(entry.getKey(), entry.getValue()))
+                .collect(Collectors.toList());
+        int siteMax = mapLoads.stream().mapToInt(MapLoad::getMaxAnchors).max().orElse(MIN_ANCHOR);
+
+        Set<Integer> anchorCandidates = new LinkedHashSet<>();
+        if (Objects.isNull(maxAnchors) || maxAnchors.isEmpty()) {
+            String maxConfig = configCache.get("max_anchor");
+            if (Objects.nonNull(maxConfig)) {
+                anchorCandidates.add(NumberUtils.toInt(maxConfig, MIN_ANCHOR));
+            }
+            anchorCandidates.add(siteMax);
+        } else {
+            anchorCandidates.addAll(maxAnchors);
+        }
+        Set<Integer> intervalCandidates = new LinkedHashSet<>();
+        if (Objects.isNull(intervals) || intervals.isEmpty()) {
+            Integer dominant = dominantInterval();
+            if (Objects.nonNull(dominant)) {
+                intervalCandidates.add(dominant);
+            }
+        } else {
+            intervalCandidates.addAll(intervals);
+        }
+        List<String> modelCandidates = Objects.isNull(models) || models.isEmpty() ? Arrays.asList("0", "1") : new ArrayList<>(models);
+
+        List<SlotOption> options = new ArrayList<>();
+        for (String model : modelCandidates) {
+            SlotParams params = slotParams(model);
+            if (null == params) {
+                continue;
+            }
+            for (Integer maxAnchor : anchorCandidates) {
+                int effectiveMax = Math.max(MIN_ANCHOR, maxAnchor);
+                for (Integer interval : intervalCandidates) {
+                    if (Objects.isNull(interval) || interval <= 0) {
+                        continue;
+                    }
+                    options.add(simulate(params, effectiveMax, interval, mapLoads));
+                }
+            }
+        }
+        options.sort(Comparator.comparingInt((SlotOption option) -> option.overloadedAreas)
+                .thenComparing(Comparator.comparingInt((SlotOption option) -> option.timeslotNumber).reversed())
+                .thenComparingInt(option -> option.maxAnchor));
+        return options;
+    }
+
+    private SlotOption simulate(SlotParams params, int maxAnchor, int interval, List<MapLoad> mapLoads) {
+        float slotNum = params.slotNum(maxAnchor);
+        SlotOption option = new SlotOption(params.model, maxAnchor, interval, slotNum, (int) Math.floor(slotNum / interval));
+        for (MapLoad mapLoad : mapLoads) {
+            int overloaded = mapLoad.countAbove(maxAnchor);
+            option.overloadedAreas += overloaded;
+            option.mapLoad.put(mapLoad.mapId, mapLoad.maxAnchors / (float) maxAnchor);
+            if (overloaded > 0) {
+                option.overloadedMaps.add(mapLoad.mapId);
+            }
+        }
+        return option;
+    }
+
+    /**
+     * @return mapId -> [区域主键, 绑定基站数]
+     */
+    private Map<Long, List<long[]>> loadAreaAnchorCounts() {
+        @SuppressWarnings("unchecked")
+        List<Object[]> rows = entityManager.createNativeQuery("select a.map_id, a.id, count(r.anchor_id) from bus_anchor_switch_area a"
+                + " left join bus_swith_area_anchors r on r.area_no = a.id where a.map_id is not null group by a.map_id, a.id")
+                .getResultList();
+        Map<Long, List<long[]>> result = new HashMap<>();
+        for (Object[] row : rows) {
+            result.computeIfAbsent(((Number) row[0]).longValue(), k -> new ArrayList<>())
+                    .add(new long[]{((Number) row[1]).longValue(), ((Number) row[2]).longValue()});
+        }
+        return result;
+    }
+
+    /**
+     * @return 基站使用最多的定位间隔
+     */
+    public Integer dominantInterval() {
+        List<Object[]> rows = entityManager.createQuery("select c.anchorInterval, count(c) from BusAnchorConfig c where c.anchorInterval is not null group by c.anchorInterval", Object[].class)
+                .getResultList();
+        Integer dominant = null;
+        long best = -1;
+        for (Object[] row : rows) {
+            long count = ((Number) row[1]).longValue();
+            if (count > best) {
+                best = count;
+                dominant = ((Number) row[0]).intValue();
+            }
+        }
+        return dominant;
+    }
+
+    /**
+     * 时隙公式参数
+     */
+    public static class SlotParams {
+
+        final String model;
+
+        final int period;
+
+        final float rangeTime;
+
+        final float respTime;
+
+        final int six;
+
+        SlotParams(String model, int period, float rangeTime, float respTime, int six) {
+            this.model = model;
+            this.period = period;
+            this.rangeTime = rangeTime;
+            this.respTime = respTime;
+            this.six = six;
+        }
+
+        /**
+         * @return 每周期时隙数 period / (rangeTime + (maxAnchor - six) * respTime)
+         */
+        public float slotNum(int maxAnchor) {
+            return period / (rangeTime + (maxAnchor - six) * respTime);
+        }
+    }
+
+    /**
+     * 单张地图的区域负载
+     */
+    private static class MapLoad {
+
+        final Long mapId;
+
+        /*** 各区域绑定基站数,升序*/
+        final long[] counts;
+
+        final int maxAnchors;
+
+        MapLoad(Long mapId, List<long[]> areas) {
+            this.mapId = mapId;
+            this.counts = areas.stream().mapToLong(area -> area[1]).sorted().toArray();
+            this.maxAnchors = counts.length == 0 ? 0 : (int) counts[counts.length - 1];
+        }
+
+        int getMaxAnchors() {
+            return maxAnchors;
+        }
+
+        /**
+         * @return 绑定基站数超过maxAnchor的区域数量
+         */
+        int countAbove(int maxAnchor) {
+            int lo = 0;
+            int hi = counts.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (counts[mid] <= maxAnchor) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return counts.length - lo;
+        }
+    }
+
+    /**
+     * 规划方案
+     */
+    public static class SlotOption {
+
+        private final String model;
+
+        private final int maxAnchor;
+
+        private final int interval;
+
+        private final float slotNum;
+
+        /*** 对应timesolt_number*/
+        private final int timeslotNumber;
+
+        /*** 绑定基站数超过maxAnchor的区域数量*/
+        private int overloadedAreas;
+
+        private final List<Long> overloadedMaps = new ArrayList<>();
+
+        /*** mapId -> 最大区域基站数 / maxAnchor*/
+        private final Map<Long, Float> mapLoad = new HashMap<>();
+
+        SlotOption(String model, int maxAnchor, int interval, float slotNum, int timeslotNumber) {
+            this.model = model;
+            this.maxAnchor = maxAnchor;
+            this.interval = interval;
+            this.slotNum = slotNum;
+            this.timeslotNumber = timeslotNumber;
+        }
+
+        public String getModel() {
+            return model;
+        }
+
+        public int getMaxAnchor() {
+            return maxAnchor;
+        }
+
+        public int getInterval() {
+            return interval;
+        }
+
+        public float getSlotNum() {
+            return slotNum;
+        }
+
+        public int getTimeslotNumber() {
+            return timeslotNumber;
+        }
+
+        public int getOverloadedAreas() {
+            return overloadedAreas;
+        }
+
+        public boolean isFeasible() {
+            return overloadedAreas == 0;
+        }
+
+        public List<Long> getOverloadedMaps() {
+            return overloadedMaps;
+        }
+
+        public Map<Long, Float> getMapLoad() {
+            return mapLoad;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.Transactional;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 根据基站坐标自动计算基站与切换区域的绑定关系
+ * 使用区域定位器缓存的分层索引,只检查基站z所在楼层的区域,各地图并行计算,结果与bus_swith_area_anchors现有记录对比得到增删差异;
+ * 默认只新增绑定,不在区域内的已有绑定可能是人工绑定,只有明确指定时才删除
+ *
+ * @author jobs
+ */
+@Slf4j
+@Component
+public class SwitchAreaAutoBinder {
+
+    @Autowired
+    private SwitchAreaLocator areaLocator;
+
+    @Autowired
+    private SwitchAreaBindingWriter bindingWriter;
+
+    @Autowired
+    private LeaseFence leaseFence;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * 计算绑定差异,不修改数据库
+     *
+     * @param mapIds          地图ID,为空时计算全部地图
+     * @param removeUnmatched true时同时删除基站坐标不在区域内的已有绑定
+     * @return mapId -> 绑定差异
+     */
+    public Map<Long, SwitchAreaBindingDiff> computeDiff(Collection<Long> mapIds, boolean removeUnmatched) {
+        boolean allMaps = Objects.isNull(mapIds) || mapIds.isEmpty();
+        SwitchAreaLayeredIndex index = areaLocator.getIndex();
+        Map<Long, List<Object[]>> anchorMap = loadAnchors(mapIds);
+        Set<Long> allMapIds = new HashSet<>(anchorMap.keySet());
+        Set<Long> areaPks = new HashSet<>();
+        for (SwitchAreaShape shape : index.allShapes()) {
+            if (allMaps || mapIds.contains(shape.getMapId())) {
+                allMapIds.add(shape.getMapId());
+                areaPks.add(shape.getId());
+            }
+        }
+        Map<Long, Set<Long>> bound;
+        if (allMaps) {
+            bound = bindingWriter.loadBindings(null);
+        } else {
+            bound = areaPks.isEmpty() ? new HashMap<>() : bindingWriter.loadBindings(areaPks);
+        }
+        return allMapIds.parallelStream().collect(Collectors.toMap(mapId -> mapId,
+                mapId -> diffMap(index, mapId, anchorMap.getOrDefault(mapId, new ArrayList<>()), bound, removeUnmatched)));
+    }
+
+    /**
+     * 计算并写入绑定差异
+     *
+     * @param mapIds          地图ID,为空时处理全部地图
+     * @param removeUnmatched true时同时删除基站坐标不在区域内的已有绑定
+     * @param lease           自动绑定的集群租约,写入前校验fencing token,已过期时拒绝写入
+     * @return mapId -> 已写入的绑定差异
+     */
+    @Transactional(rollbackOn = Exception.class)
+    public Map<Long, SwitchAreaBindingDiff> apply(Collection<Long> mapIds, boolean removeUnmatched, RedisLeaseLock.Lease lease) {
+        Map<Long, SwitchAreaBindingDiff> diffs = computeDiff(mapIds, removeUnmatched);
+        leaseFence.check(lease);
+        int count = bindingWriter.apply(diffs.values());
+        log.info("自动绑定基站完成,写入" + count + "条");
+        return diffs;
+    }
+
+    private SwitchAreaBindingDiff diffMap(SwitchAreaLayeredIndex index, Long mapId, List<Object[]> anchors, Map<Long, Set<Long>> bound, boolean removeUnmatched) {
+        Map<Long, Set<Long>> expected = new HashMap<>();
+        for (SwitchAreaShape shape : index.floorShapes(mapId, null)) {
+            expected.put(shape.getId(), new HashSet<>());
+        }
+        for (Object[] anchor : anchors) {
+            if (Objects.isNull(anchor[1]) || Objects.isNull(anchor[2])) {
+                continue;
+            }
+            for (SwitchAreaShape shape : index.locate(mapId, (Long) anchor[1], (Long) anchor[2], (Long) anchor[3])) {
+                expected.get(shape.getId()).add((Long) anchor[0]);
+            }
+        }
+        SwitchAreaBindingDiff diff = new SwitchAreaBindingDiff();
+        expected.forEach((areaPk, anchorPks) -> {
+            Set<Long> current = bound.getOrDefault(areaPk, new HashSet<>());
+            Set<Long> add = new HashSet<>(anchorPks);
+            add.removeAll(current);
+            Set<Long> remove = new HashSet<>(current);
+            remove.removeAll(anchorPks);
+            if (!add.isEmpty()) {
+                diff.getToAdd().put(areaPk, add);
+            }
+            if (removeUnmatched && !remove.isEmpty()) {
+                diff.getToRemove().put(areaPk, remove);
+            }
+        });
+        return diff;
+    }
+
+    /**
+     * @return mapId -> [id, anchorX, anchorY, anchorZ, mapId]
+     */
+    private Map<Long, List<Object[]>> loadAnchors(Collection<Long> mapIds) {
+        List<Object[]> rows;
+        if (Objects.isNull(mapIds) || mapIds.isEmpty()) {
+            rows = entityManager.createQuery("select a.id, a.anchorX, a.anchorY, a.anchorZ, a.mapId from BusAnchor a where a.mapId is not null", Object[].class)
+                    .getResultList();
+        } else {
+            rows = entityManager.createQuery("select a.id, a.anchorX, a.anchorY, a.anchorZ, a.mapId from BusAnchor a where a.mapId in :mapIds", Object[].class)
+                    .setParameter("mapIds", mapIds)
+                    .getResultList();
+        }
+        Map<Long, List<Object[]>> result = new HashMap<>();
+        for (Object[] row : rows) {
+            result.computeIfAbsent((Long) row[4], k -> new ArrayList<>()).add(row);
+        }
+        return result;
+    }
+}
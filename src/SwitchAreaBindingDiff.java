@@ -0,0 +1,23 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 基站与切换区域的绑定差异,key为区域主键,value为基站主键
+ *
+ * @author jobs
+ */
+public class SwitchAreaBindingDiff {
+
+    private final Map<Long, Set<Long>> toAdd = new HashMap<>();
+
+    private final Map<Long, Set<Long>> toRemove = new HashMap<>();
+
+    public Map<Long, Set<Long>> getToAdd() {
+        return toAdd;
+    }
+
+    public Map<Long, Set<Long>> getToRemove() {
+        return toRemove;
+    }
+}
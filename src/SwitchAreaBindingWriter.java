@@ -0,0 +1,236 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceUnitUtil;
+import javax.transaction.Transactional;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import com.pinpoint.db.model.BusAnchorSwitchArea;
+import com.pinpoint.parser.toa.ModuleAnchorMap;
+import com.pinpoint.utils.SpringUtil;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 基站与切换区域绑定关系批量写入
+ * 按主键计算期望绑定与现有绑定的差异,只对差异部分批量插入、删除bus_swith_area_anchors,
+ * 并一次性同步ModuleAnchorMap,不经过实体集合,避免JPA整表重写关联表
+ *
+ * @author jobs
+ */
+@Slf4j
+@Component
+public class SwitchAreaBindingWriter {
+
+    /*** IN 查询每批数量*/
+    private static final int CHUNK = 1000;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * 计算期望绑定与现有绑定的差异,不修改数据库
+     * 不存在的区域、基站主键会被忽略
+     *
+     * @param desired 区域主键 -> 期望绑定的基站主键,空集合或null表示解除全部绑定
+     * @return 绑定差异
+     */
+    public SwitchAreaBindingDiff diff(Map<Long, ? extends Collection<Long>> desired) {
+        SwitchAreaBindingDiff diff = new SwitchAreaBindingDiff();
+        if (Objects.isNull(desired) || desired.isEmpty()) {
+            return diff;
+        }
+        Set<Long> areaPks = existing("BusAnchorSwitchArea", desired.keySet());
+        Set<Long> anchorPks = new HashSet<>();
+        desired.values().stream().filter(Objects::nonNull).forEach(anchorPks::addAll);
+        anchorPks = existing("BusAnchor", anchorPks);
+        Map<Long, Set<Long>> bound = loadBindings(areaPks);
+        for (Long areaPk : areaPks) {
+            // null与空集合相同,表示解除全部绑定
+            Collection<Long> wanted = desired.get(areaPk);
+            Set<Long> expected = null == wanted ? new HashSet<>() : new HashSet<>(wanted);
+            expected.retainAll(anchorPks);
+            Set<Long> current = bound.getOrDefault(areaPk, new HashSet<>());
+            Set<Long> add = new HashSet<>(expected);
+            add.removeAll(current);
+            Set<Long> remove = new HashSet<>(current);
+            remove.removeAll(expected);
+            if (!add.isEmpty()) {
+                diff.getToAdd().put(areaPk, add);
+            }
+            if (!remove.isEmpty()) {
+                diff.getToRemove().put(areaPk, remove);
+            }
+        }
+        return diff;
+    }
+
+    /**
+     * 计算并写入绑定差异
+     */
+    @Transactional(rollbackOn = Exception.class)
+    public SwitchAreaBindingDiff bind(Map<Long, ? extends Collection<Long>> desired) {
+        SwitchAreaBindingDiff diff = diff(desired);
+        apply(Collections.singletonList(diff));
+        return diff;
+    }
+
+    /**
+     * 批量写入绑定差异,事务提交后同步ModuleAnchorMap
+     *
+     * @return 写入的记录数
+     */
+    @Transactional(rollbackOn = Exception.class)
+    public int apply(Collection<SwitchAreaBindingDiff> diffs) {
+        List<Object[]> addRows = new ArrayList<>();
+        List<Object[]> removeRows = new ArrayList<>();
+        for (SwitchAreaBindingDiff diff : diffs) {
+            diff.getToAdd().forEach((areaPk, anchorPks) -> anchorPks.forEach(anchorPk -> addRows.add(new Object[]{areaPk, anchorPk})));
+            diff.getToRemove().forEach((areaPk, anchorPks) -> anchorPks.forEach(anchorPk -> removeRows.add(new Object[]{areaPk, anchorPk})));
+        }
+        if (addRows.isEmpty() && removeRows.isEmpty()) {
+            return 0;
+        }
+        // 先把持久化上下文中未提交的修改写入,避免之后覆盖批量结果
+        entityManager.flush();
+        if (!removeRows.isEmpty()) {
+            jdbcTemplate.batchUpdate("delete from bus_swith_area_anchors where area_no = ? and anchor_id = ?", removeRows);
+        }
+        if (!addRows.isEmpty()) {
+            jdbcTemplate.batchUpdate("insert into bus_swith_area_anchors (area_no, anchor_id) values (?, ?)", addRows);
+        }
+        syncModuleAnchorMap(addRows, removeRows);
+        refreshLoadedAreas(addRows, removeRows);
+        log.info("批量绑定基站完成,新增" + addRows.size() + "条,删除" + removeRows.size() + "条");
+        return addRows.size() + removeRows.size();
+    }
+
+    /**
+     * @param areaPks 区域主键,为空时加载全部
+     * @return 区域主键 -> 已绑定的基站主键
+     */
+    public Map<Long, Set<Long>> loadBindings(Collection<Long> areaPks) {
+        Map<Long, Set<Long>> result = new HashMap<>();
+        if (Objects.isNull(areaPks)) {
+            jdbcTemplate.query("select area_no, anchor_id from bus_swith_area_anchors", rs -> {
+                result.computeIfAbsent(rs.getLong(1), k -> new HashSet<>()).add(rs.getLong(2));
+            });
+            return result;
+        }
+        for (List<Long> chunk : chunks(areaPks)) {
+            jdbcTemplate.query("select area_no, anchor_id from bus_swith_area_anchors where area_no in (" + placeholders(chunk.size()) + ")",
+                    rs -> {
+                        result.computeIfAbsent(rs.getLong(1), k -> new HashSet<>()).add(rs.getLong(2));
+                    }, chunk.toArray());
+        }
+        return result;
+    }
+
+    private Set<Long> existing(String entity, Collection<Long> ids) {
+        Set<Long> result = new HashSet<>();
+        for (List<Long> chunk : chunks(ids)) {
+            result.addAll(entityManager.createQuery("select e.id from " + entity + " e where e.id in :ids", Long.class)
+                    .setParameter("ids", chunk)
+                    .getResultList());
+        }
+        return result;
+    }
+
+    /**
+     * 绑定关系直接写入关联表,持久化上下文中已加载的区域重新读取,基站集合与数据库一致,
+     * 之后flush不会按旧集合覆盖;未加载的区域不查询,调用方的其它实体保持不变
+     */
+    private void refreshLoadedAreas(List<Object[]> addRows, List<Object[]> removeRows) {
+        Set<Long> areaPks = new HashSet<>();
+        for (List<Object[]> rows : Arrays.asList(addRows, removeRows)) {
+            for (Object[] row : rows) {
+                areaPks.add((Long) row[0]);
+            }
+        }
+        PersistenceUnitUtil unitUtil = entityManager.getEntityManagerFactory().getPersistenceUnitUtil();
+        for (Long areaPk : areaPks) {
+            BusAnchorSwitchArea area = entityManager.getReference(BusAnchorSwitchArea.class, areaPk);
+            if (unitUtil.isLoaded(area)) {
+                entityManager.refresh(area);
+            } else {
+                entityManager.detach(area);
+            }
+        }
+    }
+
+    private void syncModuleAnchorMap(List<Object[]> addRows, List<Object[]> removeRows) {
+        Set<Long> areaPks = new HashSet<>();
+        Set<Long> anchorPks = new HashSet<>();
+        for (List<Object[]> rows : Arrays.asList(addRows, removeRows)) {
+            for (Object[] row : rows) {
+                areaPks.add((Long) row[0]);
+                anchorPks.add((Long) row[1]);
+            }
+        }
+        Map<Long, Long> areaNoMap = new HashMap<>();
+        for (List<Long> chunk : chunks(areaPks)) {
+            entityManager.createQuery("select a.id, a.areaNo from BusAnchorSwitchArea a where a.id in :ids", Object[].class)
+                    .setParameter("ids", chunk)
+                    .getResultList()
+                    .forEach(row -> areaNoMap.put((Long) row[0], (Long) row[1]));
+        }
+        Map<Long, String> anchorIdMap = new HashMap<>();
+        for (List<Long> chunk : chunks(anchorPks)) {
+            entityManager.createQuery("select a.id, a.anchorId from BusAnchor a where a.id in :ids", Object[].class)
+                    .setParameter("ids", chunk)
+                    .getResultList()
+                    .forEach(row -> anchorIdMap.put((Long) row[0], (String) row[1]));
+        }
+
+        // 回滚时内存映射保持不变
+        TransactionHooks.afterCommit(() -> {
+            ModuleAnchorMap maMap = (ModuleAnchorMap) SpringUtil.getBean(ModuleAnchorMap.class);
+            for (Object[] row : removeRows) {
+                maMap.removeSwitchAreaAnchor(areaNoMap.get((Long) row[0]), anchorIdMap.get((Long) row[1]));
+            }
+            for (Object[] row : addRows) {
+                maMap.addSwitchAreaAnchor(areaNoMap.get((Long) row[0]), anchorIdMap.get((Long) row[1]));
+            }
+        });
+    }
+
+    static List<List<Long>> chunks(Collection<Long> ids) {
+        List<List<Long>> result = new ArrayList<>();
+        List<Long> chunk = new ArrayList<>();
+        for (Long id : ids) {
+            chunk.add(id);
+            if (chunk.size() == CHUNK) {
+                result.add(chunk);
+                chunk = new ArrayList<>();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            result.add(chunk);
+        }
+        return result;
+    }
+
+    static String placeholders(int size) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            sb.append(i == 0 ? "?" : ",?");
+        }
+        return sb.toString();
+    }
+}
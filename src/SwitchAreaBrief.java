@@ -0,0 +1,86 @@
+/**
+ * 切换区域轻量信息,用于下拉选择
+ * 不含基站、边界线等关联数据;没有边界线的区域hasBounds为false
+ *
+ * @author jobs
+ */
+public class SwitchAreaBrief {
+
+    private final Long id;
+
+    private final Long areaNo;
+
+    private final String areaId;
+
+    private final Long mapId;
+
+    private boolean hasBounds;
+
+    private long minX;
+
+    private long minY;
+
+    private long maxX;
+
+    private long maxY;
+
+    public SwitchAreaBrief(Long id, Long areaNo, String areaId, Long mapId) {
+        this.id = id;
+        this.areaNo = areaNo;
+        this.areaId = areaId;
+        this.mapId = mapId;
+    }
+
+    void setBounds(long minX, long minY, long maxX, long maxY) {
+        this.hasBounds = true;
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+    }
+
+    /**
+     * @return 两个外接矩形之间的最短距离的平方,相交或相接时为0
+     */
+    public long boundsDistance2(SwitchAreaBrief other) {
+        long dx = Math.max(0, Math.max(other.minX - maxX, minX - other.maxX));
+        long dy = Math.max(0, Math.max(other.minY - maxY, minY - other.maxY));
+        return dx * dx + dy * dy;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Long getAreaNo() {
+        return areaNo;
+    }
+
+    public String getAreaId() {
+        return areaId;
+    }
+
+    public Long getMapId() {
+        return mapId;
+    }
+
+    public boolean isHasBounds() {
+        return hasBounds;
+    }
+
+    public long getMinX() {
+        return minX;
+    }
+
+    public long getMinY() {
+        return minY;
+    }
+
+    public long getMaxX() {
+        return maxX;
+    }
+
+    public long getMaxY() {
+        return maxY;
+    }
+}
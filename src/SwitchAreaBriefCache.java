@@ -0,0 +1,124 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * 切换区域轻量信息缓存
+ * 按地图缓存 id、areaNo、areaId、mapId 及边界外接矩形,相邻区域下拉选择在内存中过滤、排序,
+ * 不加载区域实体;外接矩形直接取区域保存边界时计算的startX/startY/endX/endY。
+ * 区域变更的事务提交后标记失效,下次查询时重建
+ *
+ * @author jobs
+ */
+@Component
+public class SwitchAreaBriefCache {
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private volatile Snapshot snapshot;
+
+    /*** 每次失效加1*/
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * 区域新增、删除或修改后调用,有事务时提交后生效
+     */
+    public void invalidate() {
+        TransactionHooks.afterCommit(() -> {
+            generation.incrementAndGet();
+            this.snapshot = null;
+        });
+    }
+
+    /**
+     * 查询除指定区域外的其他区域
+     *
+     * @param areaPk  当前区域主键,为null时返回全部区域
+     * @param nearest true时只返回同一地图的区域,并按与当前区域外接矩形的距离由近到远排序
+     * @return 区域轻量信息
+     */
+    public List<SwitchAreaBrief> others(Long areaPk, boolean nearest) {
+        Snapshot current = snapshot();
+        SwitchAreaBrief selected = null == areaPk ? null : current.byId.get(areaPk);
+        if (!nearest || null == selected) {
+            List<SwitchAreaBrief> result = new ArrayList<>(current.byId.size());
+            for (List<SwitchAreaBrief> briefs : current.byMap.values()) {
+                for (SwitchAreaBrief brief : briefs) {
+                    if (!brief.getId().equals(areaPk)) {
+                        result.add(brief);
+                    }
+                }
+            }
+            return result;
+        }
+        List<SwitchAreaBrief> result = new ArrayList<>();
+        for (SwitchAreaBrief brief : current.byMap.getOrDefault(selected.getMapId(), Collections.emptyList())) {
+            if (!brief.getId().equals(areaPk)) {
+                result.add(brief);
+            }
+        }
+        if (selected.isHasBounds()) {
+            // 没有边界的区域排在最后
+            result.sort(Comparator.comparingLong(brief -> brief.isHasBounds() ? selected.boundsDistance2(brief) : Long.MAX_VALUE));
+        }
+        return result;
+    }
+
+    /**
+     * @return 地图下的区域轻量信息
+     */
+    public List<SwitchAreaBrief> byMap(Long mapId) {
+        return new ArrayList<>(snapshot().byMap.getOrDefault(mapId, Collections.emptyList()));
+    }
+
+    private Snapshot snapshot() {
+        Snapshot current = this.snapshot;
+        if (null == current) {
+            synchronized (this) {
+                current = this.snapshot;
+                if (null == current) {
+                    long loading = generation.get();
+                    current = load();
+                    if (loading == generation.get()) {
+                        this.snapshot = current;
+                    }
+                }
+            }
+        }
+        return current;
+    }
+
+    private Snapshot load() {
+        Snapshot result = new Snapshot();
+        List<Object[]> areas = entityManager.createQuery("select a.id, a.areaNo, a.areaId, a.mapId, a.startX, a.startY, a.endX, a.endY from BusAnchorSwitchArea a order by a.id", Object[].class)
+                .getResultList();
+        for (Object[] row : areas) {
+            SwitchAreaBrief brief = new SwitchAreaBrief((Long) row[0], (Long) row[1], (String) row[2], (Long) row[3]);
+            if (Objects.nonNull(row[4]) && Objects.nonNull(row[5]) && Objects.nonNull(row[6]) && Objects.nonNull(row[7])) {
+                brief.setBounds((Long) row[4], (Long) row[5], (Long) row[6], (Long) row[7]);
+            }
+            result.byId.put(brief.getId(), brief);
+            result.byMap.computeIfAbsent(brief.getMapId(), k -> new ArrayList<>()).add(brief);
+        }
+        return result;
+    }
+
+    private static class Snapshot {
+
+        final Map<Long, SwitchAreaBrief> byId = new HashMap<>();
+
+        /*** mapId -> 区域,mapId为null的区域以null为key*/
+        final Map<Long, List<SwitchAreaBrief>> byMap = new HashMap<>();
+    }
+}
@@ -0,0 +1,104 @@
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.Transactional;
+
+import org.springframework.stereotype.Component;
+
+import com.pinpoint.parser.toa.ModuleAnchorMap;
+import com.pinpoint.utils.SpringUtil;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 切换区域批量删除
+ * 按主键分批,每批对每张子表(相邻区域、边界线、基站关联、分组关联)各执行一条IN删除,
+ * 不加载实体,不经过Hibernate逐行级联;事件提交后一次性同步ModuleAnchorMap
+ *
+ * @author jobs
+ */
+@Slf4j
+@Component
+public class SwitchAreaBulkDeleter {
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * 删除区域及其相邻区域、边界线、基站关联、分组关联
+     *
+     * @param areaPks 区域主键
+     * @return 已删除区域的 主键 -> 下发编号
+     */
+    @Transactional(rollbackOn = Exception.class)
+    public Map<Long, Long> delete(Collection<Long> areaPks) {
+        Map<Long, Long> areaNoMap = new HashMap<>();
+        if (Objects.isNull(areaPks) || areaPks.isEmpty()) {
+            return areaNoMap;
+        }
+        for (List<Long> chunk : SwitchAreaBindingWriter.chunks(areaPks)) {
+            entityManager.createQuery("select a.id, a.areaNo from BusAnchorSwitchArea a where a.id in :ids", Object[].class)
+                    .setParameter("ids", chunk)
+                    .getResultList()
+                    .forEach(row -> areaNoMap.put((Long) row[0], (Long) row[1]));
+        }
+        return deleteLoaded(areaNoMap);
+    }
+
+    /**
+     * 删除地图下的全部区域
+     *
+     * @return 已删除区域的 主键 -> 下发编号
+     */
+    @Transactional(rollbackOn = Exception.class)
+    public Map<Long, Long> deleteByMap(Long mapId) {
+        Map<Long, Long> areaNoMap = new HashMap<>();
+        entityManager.createQuery("select a.id, a.areaNo from BusAnchorSwitchArea a where a.mapId = :mapId", Object[].class)
+                .setParameter("mapId", mapId)
+                .getResultList()
+                .forEach(row -> areaNoMap.put((Long) row[0], (Long) row[1]));
+        return deleteLoaded(areaNoMap);
+    }
+
+    private Map<Long, Long> deleteLoaded(Map<Long, Long> areaNoMap) {
+        if (areaNoMap.isEmpty()) {
+            return areaNoMap;
+        }
+        entityManager.flush();
+        for (List<Long> chunk : SwitchAreaBindingWriter.chunks(areaNoMap.keySet())) {
+            entityManager.createQuery("delete from BusAnchorSwitchAreaNeighbor n where n.switchArea.id in :ids or n.neighborArea.id in :ids")
+                    .setParameter("ids", chunk)
+                    .executeUpdate();
+            entityManager.createQuery("delete from BusSwitchLine l where l.area.id in :ids")
+                    .setParameter("ids", chunk)
+                    .executeUpdate();
+            entityManager.createNativeQuery("delete from bus_swith_area_anchors where area_no in (:ids)")
+                    .setParameter("ids", chunk)
+                    .executeUpdate();
+            entityManager.createNativeQuery("delete from bus_switch_group where switch_area_id in (:ids)")
+                    .setParameter("ids", chunk)
+                    .executeUpdate();
+            entityManager.createQuery("delete from BusAnchorSwitchArea a where a.id in :ids")
+                    .setParameter("ids", chunk)
+                    .executeUpdate();
+        }
+        // 批量删除不经过持久化上下文,只分离已删除的区域(级联分离其边界线、相邻区域),调用方已加载的其它实体不受影响
+        for (Long areaPk : areaNoMap.keySet()) {
+            entityManager.detach(entityManager.getReference(BusAnchorSwitchArea.class, areaPk));
+        }
+
+        TransactionHooks.afterCommit(() -> {
+            ModuleAnchorMap maMap = (ModuleAnchorMap) SpringUtil.getBean(ModuleAnchorMap.class);
+            for (Long areaNo : areaNoMap.values()) {
+                maMap.removeSwitchArea(areaNo);
+            }
+        });
+        log.info("批量删除切换区域" + areaNoMap.size() + "个");
+        return areaNoMap;
+    }
+}
@@ -0,0 +1,288 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TypedQuery;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * 切换区域定位容量
+ * 每个区域按自身绑定基站数及基站最多使用的定位间隔代入calculateSlotInc的时隙公式,
+ * 计算区域每周期时隙数、可容纳标签数及剩余容量,当前人数取集群内各节点之和;
+ * 绑定或基站定位间隔变化时只重新计算受影响的区域;变化在事务提交后才生效,提交前的查询不会清除标记,回滚时不修改内存数据
+ *
+ * @author jobs
+ */
+@Component
+public class SwitchAreaCapacity {
+
+    @Autowired
+    private SysConfigCache configCache;
+
+    @Autowired
+    private SwitchAreaOccupancy occupancy;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /*** 区域主键 -> 基站主键 -> 定位间隔*/
+    private final Map<Long, Map<Long, Integer>> areaAnchors = new HashMap<>();
+
+    private final Map<Long, Long> areaNos = new HashMap<>();
+
+    private final Set<Long> dirtyAreas = new HashSet<>();
+
+    private boolean allDirty = true;
+
+    /**
+     * 区域新增、删除或批量绑定后调用,有事务时提交后生效;下次查询时全部重新加载
+     */
+    public void invalidate() {
+        TransactionHooks.afterCommit(() -> {
+            synchronized (this) {
+                allDirty = true;
+            }
+        });
+    }
+
+    /**
+     * 区域绑定的基站变化后调用,有事务时提交后生效;下次查询时只重新加载这些区域
+     */
+    public void markDirty(Collection<Long> areaPks) {
+        List<Long> copy = new ArrayList<>(areaPks);
+        TransactionHooks.afterCommit(() -> {
+            synchronized (this) {
+                dirtyAreas.addAll(copy);
+            }
+        });
+    }
+
+    /**
+     * 基站定位间隔修改后调用,有事务时提交后生效;绑定该基站的区域下次查询时重新加载
+     */
+    public void anchorChanged(Long anchorPk) {
+        if (Objects.isNull(anchorPk)) {
+            return;
+        }
+        TransactionHooks.afterCommit(() -> {
+            synchronized (this) {
+                areaAnchors.forEach((areaPk, anchors) -> {
+                    if (anchors.containsKey(anchorPk)) {
+                        dirtyAreas.add(areaPk);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 按绑定差异增量更新,新增基站的定位间隔在当前事务中读取,提交后写入内存
+     */
+    public void apply(SwitchAreaBindingDiff diff) {
+        Map<Long, Map<Long, Integer>> added = new HashMap<>();
+        diff.getToAdd().forEach((areaPk, anchorPks) -> {
+            Map<Long, Integer> anchors = new HashMap<>();
+            for (Object[] row : entityManager.createQuery("select a.id, c.anchorInterval from BusAnchor a left join a.anchorConfig c where a.id in :ids", Object[].class)
+                    .setParameter("ids", anchorPks)
+                    .getResultList()) {
+                anchors.put((Long) row[0], (Integer) row[1]);
+            }
+            added.put(areaPk, anchors);
+        });
+        Map<Long, Set<Long>> removed = new HashMap<>(diff.getToRemove());
+        TransactionHooks.afterCommit(() -> {
+            synchronized (this) {
+                if (allDirty) {
+                    return;
+                }
+                removed.forEach((areaPk, anchorPks) -> {
+                    Map<Long, Integer> anchors = areaAnchors.get(areaPk);
+                    if (null != anchors) {
+                        anchorPks.forEach(anchors::remove);
+                    }
+                });
+                added.forEach((areaPk, anchors) -> {
+                    if (!areaAnchors.containsKey(areaPk)) {
+                        dirtyAreas.add(areaPk);
+                        return;
+                    }
+                    areaAnchors.get(areaPk).putAll(anchors);
+                });
+            }
+        });
+    }
+
+    /**
+     * 各区域容量报表
+     *
+     * @return 按剩余容量由少到多排序
+     */
+    public synchronized List<AreaCapacity> report() {
+        refresh();
+        SlotPlanner.SlotParams params = SlotPlanner.slotParams(configCache.get("slot_inc", "0"));
+        List<AreaCapacity> result = new ArrayList<>(areaAnchors.size());
+        if (null == params) {
+            return result;
+        }
+        Map<Long, Long> counts = occupancy.clusterCounts();
+        areaAnchors.forEach((areaPk, anchors) -> {
+            Long areaNo = areaNos.get(areaPk);
+            Integer interval = dominantInterval(anchors.values());
+            int effective = Math.max(SlotPlanner.MIN_ANCHOR, anchors.size());
+            float slotNum = params.slotNum(effective);
+            int tagCapacity = null == interval || interval <= 0 ? 0 : (int) Math.floor(slotNum / interval);
+            long tags = null == areaNo ? 0 : counts.getOrDefault(areaNo, 0L);
+            result.add(new AreaCapacity(areaPk, areaNo, anchors.size(), interval, slotNum,
+                    slotNum * 1000f / params.period, tagCapacity, tags));
+        });
+        result.sort(Comparator.comparingLong(AreaCapacity::getHeadroom));
+        return result;
+    }
+
+    private static Integer dominantInterval(Collection<Integer> intervals) {
+        Map<Integer, Integer> counts = new HashMap<>();
+        Integer dominant = null;
+        int best = 0;
+        for (Integer interval : intervals) {
+            if (Objects.isNull(interval)) {
+                continue;
+            }
+            int count = counts.merge(interval, 1, Integer::sum);
+            if (count > best) {
+                best = count;
+                dominant = interval;
+            }
+        }
+        return dominant;
+    }
+
+    private void refresh() {
+        if (allDirty) {
+            areaAnchors.clear();
+            areaNos.clear();
+            load(null);
+            allDirty = false;
+            dirtyAreas.clear();
+        } else if (!dirtyAreas.isEmpty()) {
+            for (List<Long> chunk : SwitchAreaBindingWriter.chunks(dirtyAreas)) {
+                chunk.forEach(areaPk -> {
+                    areaAnchors.remove(areaPk);
+                    areaNos.remove(areaPk);
+                });
+                load(chunk);
+            }
+            dirtyAreas.clear();
+        }
+    }
+
+    private void load(List<Long> areaPks) {
+        String where = null == areaPks ? "" : " where sa.id in :ids";
+        TypedQuery<Object[]> areaQuery = entityManager.createQuery("select sa.id, sa.areaNo from BusAnchorSwitchArea sa" + where, Object[].class);
+        TypedQuery<Object[]> anchorQuery = entityManager.createQuery("select sa.id, a.id, c.anchorInterval from BusAnchorSwitchArea sa join sa.anchors a left join a.anchorConfig c" + where, Object[].class);
+        if (null != areaPks) {
+            areaQuery.setParameter("ids", areaPks);
+            anchorQuery.setParameter("ids", areaPks);
+        }
+        for (Object[] row : areaQuery.getResultList()) {
+            areaNos.put((Long) row[0], (Long) row[1]);
+            areaAnchors.put((Long) row[0], new HashMap<>());
+        }
+        for (Object[] row : anchorQuery.getResultList()) {
+            Map<Long, Integer> anchors = areaAnchors.get((Long) row[0]);
+            if (null != anchors) {
+                anchors.put((Long) row[1], (Integer) row[2]);
+            }
+        }
+    }
+
+    /**
+     * 单个区域的容量
+     */
+    public static class AreaCapacity {
+
+        private final Long areaPk;
+
+        private final Long areaNo;
+
+        private final int anchorCount;
+
+        /*** 区域内基站最多使用的定位间隔*/
+        private final Integer interval;
+
+        /*** 每周期时隙数*/
+        private final float slotNum;
+
+        /*** 每秒可定位次数,周期按毫秒计*/
+        private final float fixesPerSecond;
+
+        /*** 按定位间隔可容纳的标签数*/
+        private final int tagCapacity;
+
+        /*** 当前区域内标签数*/
+        private final long tags;
+
+        AreaCapacity(Long areaPk, Long areaNo, int anchorCount, Integer interval, float slotNum, float fixesPerSecond, int tagCapacity, long tags) {
+            this.areaPk = areaPk;
+            this.areaNo = areaNo;
+            this.anchorCount = anchorCount;
+            this.interval = interval;
+            this.slotNum = slotNum;
+            this.fixesPerSecond = fixesPerSecond;
+            this.tagCapacity = tagCapacity;
+            this.tags = tags;
+        }
+
+        public Long getAreaPk() {
+            return areaPk;
+        }
+
+        public Long getAreaNo() {
+            return areaNo;
+        }
+
+        public int getAnchorCount() {
+            return anchorCount;
+        }
+
+        public Integer getInterval() {
+            return interval;
+        }
+
+        public float getSlotNum() {
+            return slotNum;
+        }
+
+        public float getFixesPerSecond() {
+            return fixesPerSecond;
+        }
+
+        public int getTagCapacity() {
+            return tagCapacity;
+        }
+
+        public long getTags() {
+            return tags;
+        }
+
+        /**
+         * @return 剩余可容纳标签数,小于0表示超载
+         */
+        public long getHeadroom() {
+            return tagCapacity - tags;
+        }
+
+        public boolean isOverloaded() {
+            return tags > tagCapacity;
+        }
+    }
+}
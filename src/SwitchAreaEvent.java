@@ -0,0 +1,90 @@
+/**
+ * 标签进出切换区域事件
+ * 区域以主键标识,0表示不在任何区域内
+ *
+ * @author jobs
+ */
+public class SwitchAreaEvent {
+
+    /*** 进入区域*/
+    public static final int ENTER = 1;
+
+    /*** 离开区域*/
+    public static final int LEAVE = 2;
+
+    /*** 从一个区域直接切换到另一个区域*/
+    public static final int SWITCH = 3;
+
+    private int type;
+
+    private long tagId;
+
+    private Long mapId;
+
+    private long fromArea;
+
+    private long toArea;
+
+    private long timestamp;
+
+    public SwitchAreaEvent() {
+        super();
+    }
+
+    public SwitchAreaEvent(int type, long tagId, Long mapId, long fromArea, long toArea, long timestamp) {
+        this.type = type;
+        this.tagId = tagId;
+        this.mapId = mapId;
+        this.fromArea = fromArea;
+        this.toArea = toArea;
+        this.timestamp = timestamp;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public void setType(int type) {
+        this.type = type;
+    }
+
+    public long getTagId() {
+        return tagId;
+    }
+
+    public void setTagId(long tagId) {
+        this.tagId = tagId;
+    }
+
+    public Long getMapId() {
+        return mapId;
+    }
+
+    public void setMapId(Long mapId) {
+        this.mapId = mapId;
+    }
+
+    public long getFromArea() {
+        return fromArea;
+    }
+
+    public void setFromArea(long fromArea) {
+        this.fromArea = fromArea;
+    }
+
+    public long getToArea() {
+        return toArea;
+    }
+
+    public void setToArea(long toArea) {
+        this.toArea = toArea;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+}
@@ -0,0 +1,298 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongPredicate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 标签进出切换区域事件引擎
+ * 按标签ID分区,每个分区一个线程独占一份状态表,分区内批量取出定位结果依次判定,无需加锁
+ * 连续threshold次定位到新区域才确认切换。addTransitionListener注册的监听器收到全部切换,
+ * addListener注册的监听器收到的事件去掉了关闭告警(disableWarning=1)的区域;
+ * submitAll在各分区队列尾部放入屏障,分区线程处理到屏障时先回调监听器再通知,调用方据此在处理完成后确认消息;
+ * 处理异常时未到达的屏障标记失败后通知,调用方不确认这批消息。长时间未定位的标签定期清除,仍在区域内的按离开处理
+ *
+ * @author jobs
+ */
+@Slf4j
+@Component
+public class SwitchAreaEventEngine {
+
+    /*** 确认切换所需的连续定位次数*/
+    private static final int THRESHOLD = 3;
+
+    /*** 每个分区队列容量*/
+    private static final int QUEUE_CAPACITY = 65536;
+
+    /*** 每次批量处理的最大条数*/
+    private static final int BATCH_SIZE = 1024;
+
+    /*** 标签超过该时长未定位时清除状态*/
+    private static final long IDLE_MILLIS = 5 * 60 * 1000L;
+
+    /*** 清除过期标签的间隔*/
+    private static final long SWEEP_MILLIS = 30 * 1000L;
+
+    @Autowired
+    private SwitchAreaLocator areaLocator;
+
+    private final List<SwitchAreaEventListener> listeners = new CopyOnWriteArrayList<>();
+
+    /*** 不区分是否关闭告警的监听器*/
+    private final List<SwitchAreaEventListener> transitionListeners = new CopyOnWriteArrayList<>();
+
+    private Partition[] partitions;
+
+    private volatile boolean running;
+
+    @PostConstruct
+    public void start() {
+        int count = Runtime.getRuntime().availableProcessors();
+        partitions = new Partition[count];
+        running = true;
+        for (int i = 0; i < count; i++) {
+            partitions[i] = new Partition();
+            Thread thread = new Thread(partitions[i], "area-event-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+    }
+
+    public void addListener(SwitchAreaEventListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(SwitchAreaEventListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * 注册接收全部区域切换的监听器,包括关闭告警的区域,先于addListener注册的监听器回调
+     */
+    public void addTransitionListener(SwitchAreaEventListener listener) {
+        transitionListeners.add(listener);
+    }
+
+    public void removeTransitionListener(SwitchAreaEventListener listener) {
+        transitionListeners.remove(listener);
+    }
+
+    /**
+     * 提交一条定位结果
+     *
+     * @return 分区队列已满时返回false,由调用方决定丢弃或重试
+     */
+    public boolean submit(TagPosition position) {
+        if (Objects.isNull(position.getMapId())) {
+            return true;
+        }
+        return partitions[partitionOf(position.getTagId())].queue.offer(position);
+    }
+
+    /**
+     * 按顺序提交一批定位结果,队列已满时阻塞等待,不会打乱同一标签的顺序
+     *
+     * @return 这批定位结果全部处理完且监听器回调结束后归零,处理异常时同样归零并标记失败
+     */
+    public Barrier submitAll(List<TagPosition> positions) throws InterruptedException {
+        boolean[] touched = new boolean[partitions.length];
+        int count = 0;
+        for (TagPosition position : positions) {
+            if (Objects.isNull(position.getMapId())) {
+                continue;
+            }
+            int partition = partitionOf(position.getTagId());
+            partitions[partition].queue.put(position);
+            if (!touched[partition]) {
+                touched[partition] = true;
+                count++;
+            }
+        }
+        Barrier processed = new Barrier(count);
+        for (int i = 0; i < partitions.length; i++) {
+            if (touched[i]) {
+                partitions[i].queue.put(processed);
+            }
+        }
+        return processed;
+    }
+
+    private int partitionOf(long tagId) {
+        return (AreaTransitionTracker.mix(tagId) & Integer.MAX_VALUE) % partitions.length;
+    }
+
+    /**
+     * 取定位点所在区域,仍在当前区域内时优先保持当前区域
+     */
+    static long resolveArea(SwitchAreaLayeredIndex index, TagPosition position, long currentArea) {
+        List<SwitchAreaShape> shapes = index.locate(position.getMapId(), position.getX(), position.getY(), position.getZ());
+        if (shapes.isEmpty()) {
+            return 0;
+        }
+        for (SwitchAreaShape shape : shapes) {
+            if (shape.getId() == currentArea) {
+                return currentArea;
+            }
+        }
+        return shapes.get(0).getId();
+    }
+
+    static LongPredicate disabledIn(SwitchAreaLayeredIndex index) {
+        return areaPk -> {
+            SwitchAreaShape shape = index.getShape(areaPk);
+            return null != shape && shape.isDisableWarning();
+        };
+    }
+
+    /**
+     * 去掉事件中关闭告警的区域
+     *
+     * @return 两端都是关闭告警的区域或不在区域内时返回null
+     */
+    static SwitchAreaEvent warningEvent(SwitchAreaEvent event, LongPredicate disabled) {
+        long from = event.getFromArea();
+        long to = event.getToArea();
+        if (from != 0 && disabled.test(from)) {
+            from = 0;
+        }
+        if (to != 0 && disabled.test(to)) {
+            to = 0;
+        }
+        if (from == event.getFromArea() && to == event.getToArea()) {
+            return event;
+        }
+        if (from == 0 && to == 0) {
+            return null;
+        }
+        int type = from == 0 ? SwitchAreaEvent.ENTER : (to == 0 ? SwitchAreaEvent.LEAVE : SwitchAreaEvent.SWITCH);
+        return new SwitchAreaEvent(type, event.getTagId(), event.getMapId(), from, to, event.getTimestamp());
+    }
+
+    /**
+     * submitAll返回的屏障
+     */
+    public static class Barrier extends CountDownLatch {
+
+        /*** 是否有分区处理异常*/
+        private volatile boolean failed;
+
+        Barrier(int count) {
+            super(count);
+        }
+
+        void fail() {
+            failed = true;
+            countDown();
+        }
+
+        public boolean isFailed() {
+            return failed;
+        }
+    }
+
+    private class Partition implements Runnable {
+
+        /*** 定位结果或submitAll的屏障*/
+        final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+        final AreaTransitionTracker tracker = new AreaTransitionTracker(THRESHOLD);
+
+        @Override
+        public void run() {
+            List<Object> batch = new ArrayList<>(BATCH_SIZE);
+            List<SwitchAreaEvent> events = new ArrayList<>();
+            long nextSweep = System.currentTimeMillis() + SWEEP_MILLIS;
+            while (running) {
+                int done = 0;
+                try {
+                    Object first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (null != first) {
+                        batch.add(first);
+                        queue.drainTo(batch, BATCH_SIZE - 1);
+                    }
+                    long now = System.currentTimeMillis();
+                    if (batch.isEmpty() && now < nextSweep) {
+                        continue;
+                    }
+                    SwitchAreaLayeredIndex index = areaLocator.getIndex();
+                    LongPredicate disabled = disabledIn(index);
+                    for (Object item : batch) {
+                        if (item instanceof Barrier) {
+                            events = dispatch(events, disabled);
+                            ((Barrier) item).countDown();
+                        } else {
+                            TagPosition position = (TagPosition) item;
+                            long located = resolveArea(index, position, tracker.currentArea(position.getTagId()));
+                            SwitchAreaEvent event = tracker.update(position.getTagId(), position.getMapId(), located, position.getTimestamp(), now);
+                            if (null != event) {
+                                events.add(event);
+                            }
+                        }
+                        done++;
+                    }
+                    if (now >= nextSweep) {
+                        nextSweep = now + SWEEP_MILLIS;
+                        events.addAll(tracker.expire(now - IDLE_MILLIS));
+                    }
+                    events = dispatch(events, disabled);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    log.error("区域事件处理异常!", e);
+                    events = new ArrayList<>();
+                } finally {
+                    // 未处理到的屏障也要通知,否则等待这批结果的调用方一直阻塞
+                    for (int i = done; i < batch.size(); i++) {
+                        if (batch.get(i) instanceof Barrier) {
+                            ((Barrier) batch.get(i)).fail();
+                        }
+                    }
+                    batch.clear();
+                }
+            }
+        }
+
+        /**
+         * 回调监听器,返回下一批事件使用的列表
+         */
+        private List<SwitchAreaEvent> dispatch(List<SwitchAreaEvent> events, LongPredicate disabled) {
+            if (events.isEmpty()) {
+                return events;
+            }
+            for (SwitchAreaEventListener listener : transitionListeners) {
+                listener.onEvents(events);
+            }
+            List<SwitchAreaEvent> warnings = new ArrayList<>(events.size());
+            for (SwitchAreaEvent event : events) {
+                SwitchAreaEvent warning = warningEvent(event, disabled);
+                if (null != warning) {
+                    warnings.add(warning);
+                }
+            }
+            if (!warnings.isEmpty()) {
+                for (SwitchAreaEventListener listener : listeners) {
+                    listener.onEvents(warnings);
+                }
+            }
+            return new ArrayList<>();
+        }
+    }
+}
@@ -0,0 +1,16 @@
+import java.util.List;
+
+/**
+ * 切换区域事件监听,同一标签的事件按发生顺序回调
+ *
+ * @author jobs
+ */
+public interface SwitchAreaEventListener {
+
+    /**
+     * 批量回调,在事件引擎的分区线程中执行,实现不应阻塞
+     *
+     * @param events 同一分区内按顺序产生的事件
+     */
+    void onEvents(List<SwitchAreaEvent> events);
+}
@@ -0,0 +1,139 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * 切换区域均匀网格索引
+ * 按区域外包矩形登记到网格,点查询只需检查所在网格内的区域
+ *
+ * @author jobs
+ */
+public class SwitchAreaGridIndex {
+
+    private static final int MAX_CELLS_PER_AXIS = 1024;
+
+    private final List<SwitchAreaShape> shapes;
+
+    private final long originX;
+
+    private final long originY;
+
+    private final long cellSize;
+
+    private final int cols;
+
+    private final int rows;
+
+    private final int[][] cells;
+
+    public SwitchAreaGridIndex(List<SwitchAreaShape> shapes) {
+        this.shapes = shapes;
+        long _minX = Long.MAX_VALUE, _minY = Long.MAX_VALUE;
+        long _maxX = Long.MIN_VALUE, _maxY = Long.MIN_VALUE;
+        long spanSum = 0;
+        for (SwitchAreaShape shape : shapes) {
+            _minX = Math.min(_minX, shape.getMinX());
+            _minY = Math.min(_minY, shape.getMinY());
+            _maxX = Math.max(_maxX, shape.getMaxX());
+            _maxY = Math.max(_maxY, shape.getMaxY());
+            spanSum += Math.max(shape.getMaxX() - shape.getMinX(), shape.getMaxY() - shape.getMinY());
+        }
+        if (shapes.isEmpty()) {
+            _minX = _minY = _maxX = _maxY = 0;
+        }
+        this.originX = _minX;
+        this.originY = _minY;
+        long width = _maxX - _minX + 1;
+        long height = _maxY - _minY + 1;
+        // 网格边长取区域平均尺寸,同时限制网格总数
+        long size = shapes.isEmpty() ? 1 : Math.max(1, spanSum / shapes.size());
+        size = Math.max(size, Math.max(width, height) / MAX_CELLS_PER_AXIS + 1);
+        this.cellSize = size;
+        this.cols = (int) (width / size) + 1;
+        this.rows = (int) (height / size) + 1;
+
+        int[] counts = new int[cols * rows];
+        for (SwitchAreaShape shape : shapes) {
+            forEachCell(shape.getMinX(), shape.getMinY(), shape.getMaxX(), shape.getMaxY(), cell -> counts[cell]++);
+        }
+        this.cells = new int[cols * rows][];
+        for (int i = 0; i < counts.length; i++) {
+            cells[i] = new int[counts[i]];
+            counts[i] = 0;
+        }
+        for (int s = 0; s < shapes.size(); s++) {
+            SwitchAreaShape shape = shapes.get(s);
+            final int shapeIndex = s;
+            forEachCell(shape.getMinX(), shape.getMinY(), shape.getMaxX(), shape.getMaxY(), cell -> cells[cell][counts[cell]++] = shapeIndex);
+        }
+    }
+
+    private void forEachCell(long minX, long minY, long maxX, long maxY, IntConsumer consumer) {
+        int c0 = col(minX), c1 = col(maxX);
+        int r0 = row(minY), r1 = row(maxY);
+        for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) {
+                consumer.accept(r * cols + c);
+            }
+        }
+    }
+
+    private int col(long x) {
+        long c = (x - originX) / cellSize;
+        return (int) Math.max(0, Math.min(cols - 1, c));
+    }
+
+    private int row(long y) {
+        long r = (y - originY) / cellSize;
+        return (int) Math.max(0, Math.min(rows - 1, r));
+    }
+
+    /**
+     * 查询包含该点的所有区域(含边界),z为null时不校验z
+     */
+    public List<SwitchAreaShape> locate(long x, long y, Long z) {
+        if (shapes.isEmpty() || x < originX || y < originY
+                || x >= originX + (long) cols * cellSize || y >= originY + (long) rows * cellSize) {
+            return Collections.emptyList();
+        }
+        List<SwitchAreaShape> result = null;
+        for (int index : cells[row(y) * cols + col(x)]) {
+            SwitchAreaShape shape = shapes.get(index);
+            if (shape.contains(x, y, z)) {
+                if (null == result) {
+                    result = new ArrayList<>(2);
+                }
+                result.add(shape);
+            }
+        }
+        return null == result ? Collections.emptyList() : result;
+    }
+
+    /**
+     * 遍历外包矩形与给定矩形相交的区域,每个区域只回调一次
+     */
+    public void forEachCandidate(long minX, long minY, long maxX, long maxY, Consumer<SwitchAreaShape> consumer) {
+        if (shapes.isEmpty()) {
+            return;
+        }
+        forEachCell(minX, minY, maxX, maxY, cell -> {
+            for (int index : cells[cell]) {
+                SwitchAreaShape shape = shapes.get(index);
+                if (shape.getMinX() > maxX || shape.getMaxX() < minX || shape.getMinY() > maxY || shape.getMaxY() < minY) {
+                    continue;
+                }
+                // 只在两矩形交集左下角所在的网格回调,避免跨网格重复
+                int ownerCell = row(Math.max(minY, shape.getMinY())) * cols + col(Math.max(minX, shape.getMinX()));
+                if (ownerCell == cell) {
+                    consumer.accept(shape);
+                }
+            }
+        });
+    }
+
+    public List<SwitchAreaShape> getShapes() {
+        return shapes;
+    }
+}
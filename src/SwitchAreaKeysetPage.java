@@ -0,0 +1,40 @@
+import java.util.List;
+
+/**
+ * 按主键游标分页的查询结果
+ * 下一页以nextCursor作为游标查询,不使用offset;total只在需要计数时返回
+ *
+ * @author jobs
+ */
+public class SwitchAreaKeysetPage<T> {
+
+    private final List<T> content;
+
+    /*** 下一页游标,没有下一页时为null*/
+    private final Long nextCursor;
+
+    /*** 总数,不计数时为null*/
+    private final Integer total;
+
+    public SwitchAreaKeysetPage(List<T> content, Long nextCursor, Integer total) {
+        this.content = content;
+        this.nextCursor = nextCursor;
+        this.total = total;
+    }
+
+    public List<T> getContent() {
+        return content;
+    }
+
+    public Long getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean isHasNext() {
+        return null != nextCursor;
+    }
+
+    public Integer getTotal() {
+        return total;
+    }
+}
@@ -0,0 +1,151 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * 按地图及z区间分层的切换区域索引
+ * 每张地图内相同[minZ, maxZ]的区域归为一层,层之间用区间树检索,层内使用网格索引
+ * 查询时只检查包含该z值的层,多楼层建筑中不会遍历其它楼层的区域
+ *
+ * @author jobs
+ */
+public class SwitchAreaLayeredIndex {
+
+    private final Map<Long, ZBandTree> mapIndex = new HashMap<>();
+
+    private final Map<Long, SwitchAreaShape> shapeById = new HashMap<>();
+
+    public SwitchAreaLayeredIndex(Map<Long, List<SwitchAreaShape>> shapeMap) {
+        shapeMap.forEach((mapId, shapes) -> {
+            Map<String, List<SwitchAreaShape>> bands = new LinkedHashMap<>();
+            for (SwitchAreaShape shape : shapes) {
+                shapeById.put(shape.getId(), shape);
+                bands.computeIfAbsent(shape.getMinZ() + "," + shape.getMaxZ(), k -> new ArrayList<>()).add(shape);
+            }
+            List<Layer> layers = new ArrayList<>();
+            for (List<SwitchAreaShape> bandShapes : bands.values()) {
+                layers.add(new Layer(bandShapes.get(0).getMinZ(), bandShapes.get(0).getMaxZ(), new SwitchAreaGridIndex(bandShapes)));
+            }
+            mapIndex.put(mapId, new ZBandTree(layers));
+        });
+    }
+
+    /**
+     * 查询包含该点的区域
+     *
+     * @param mapId 地图ID
+     * @param z     为null时检查该地图所有楼层
+     * @return 包含该点的区域
+     */
+    public List<SwitchAreaShape> locate(Long mapId, long x, long y, Long z) {
+        ZBandTree tree = mapIndex.get(mapId);
+        if (null == tree) {
+            return Collections.emptyList();
+        }
+        List<SwitchAreaShape> result = new ArrayList<>(2);
+        tree.stab(z, layer -> result.addAll(layer.grid.locate(x, y, z)));
+        return result;
+    }
+
+    /**
+     * @return 该地图包含z值的所有层的区域,z为null时返回全部
+     */
+    public List<SwitchAreaShape> floorShapes(Long mapId, Long z) {
+        ZBandTree tree = mapIndex.get(mapId);
+        if (null == tree) {
+            return Collections.emptyList();
+        }
+        List<SwitchAreaShape> result = new ArrayList<>();
+        tree.stab(z, layer -> result.addAll(layer.grid.getShapes()));
+        return result;
+    }
+
+    /**
+     * @return 区域主键对应的几何,不存在时返回null
+     */
+    public SwitchAreaShape getShape(long id) {
+        return shapeById.get(id);
+    }
+
+    /**
+     * @return 索引中的全部区域
+     */
+    public Collection<SwitchAreaShape> allShapes() {
+        return Collections.unmodifiableCollection(shapeById.values());
+    }
+
+    private static class Layer {
+
+        final long minZ;
+
+        final long maxZ;
+
+        final SwitchAreaGridIndex grid;
+
+        Layer(long minZ, long maxZ, SwitchAreaGridIndex grid) {
+            this.minZ = minZ;
+            this.maxZ = maxZ;
+            this.grid = grid;
+        }
+    }
+
+    /**
+     * 静态区间树:按minZ排序后隐式构造平衡二叉树,每个节点记录子树最大maxZ用于剪枝
+     */
+    private static class ZBandTree {
+
+        private final Layer[] layers;
+
+        private final long[] subtreeMaxZ;
+
+        ZBandTree(List<Layer> layerList) {
+            layerList.sort(Comparator.comparingLong(layer -> layer.minZ));
+            this.layers = layerList.toArray(new Layer[0]);
+            this.subtreeMaxZ = new long[layers.length];
+            build(0, layers.length - 1);
+        }
+
+        private long build(int lo, int hi) {
+            if (lo > hi) {
+                return Long.MIN_VALUE;
+            }
+            int mid = (lo + hi) >>> 1;
+            long max = Math.max(layers[mid].maxZ, Math.max(build(lo, mid - 1), build(mid + 1, hi)));
+            subtreeMaxZ[mid] = max;
+            return max;
+        }
+
+        void stab(Long z, Consumer<Layer> consumer) {
+            if (null == z) {
+                for (Layer layer : layers) {
+                    consumer.accept(layer);
+                }
+                return;
+            }
+            stab(0, layers.length - 1, z, consumer);
+        }
+
+        private void stab(int lo, int hi, long z, Consumer<Layer> consumer) {
+            if (lo > hi) {
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            if (subtreeMaxZ[mid] < z) {
+                return;
+            }
+            stab(lo, mid - 1, z, consumer);
+            if (layers[mid].minZ <= z) {
+                if (layers[mid].maxZ >= z) {
+                    consumer.accept(layers[mid]);
+                }
+                stab(mid + 1, hi, z, consumer);
+            }
+        }
+    }
+}
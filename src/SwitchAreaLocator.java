@@ -0,0 +1,111 @@
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * 切换区域定位
+ * 持有按地图及z区间分层的区域索引及相邻区域分隔线,区域或相邻关系变更的事务提交后标记失效,下次查询时重建;
+ * 重建期间发生失效时,重建结果只返回给本次调用,不再缓存
+ *
+ * @author jobs
+ */
+@Component
+public class SwitchAreaLocator {
+
+    @Autowired
+    private SwitchAreaShapeLoader shapeLoader;
+
+    private volatile SwitchAreaLayeredIndex index;
+
+    /*** 每次失效加1*/
+    private final AtomicLong generation = new AtomicLong();
+
+    /*** 区域主键-相邻区域主键 -> [sepStartX, sepStartY, sepEndX, sepEndY]*/
+    private volatile Map<String, long[]> separators;
+
+    /*** 相邻关系每次失效加1*/
+    private final AtomicLong neighborGeneration = new AtomicLong();
+
+    /**
+     * 区域新增、删除或边界、高度变更后调用,有事务时提交后生效
+     */
+    public void invalidate() {
+        TransactionHooks.afterCommit(() -> {
+            generation.incrementAndGet();
+            this.index = null;
+            // 删除区域时相邻记录一并删除
+            neighborGeneration.incrementAndGet();
+            this.separators = null;
+        });
+    }
+
+    /**
+     * 相邻区域或分隔线变更后调用,有事务时提交后生效
+     */
+    public void invalidateNeighbors() {
+        TransactionHooks.afterCommit(() -> {
+            neighborGeneration.incrementAndGet();
+            this.separators = null;
+        });
+    }
+
+    public SwitchAreaLayeredIndex getIndex() {
+        SwitchAreaLayeredIndex current = this.index;
+        if (null == current) {
+            synchronized (this) {
+                current = this.index;
+                if (null == current) {
+                    long loading = generation.get();
+                    current = new SwitchAreaLayeredIndex(shapeLoader.loadByMap(null));
+                    if (loading == generation.get()) {
+                        this.index = current;
+                    }
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * @return 区域主键-相邻区域主键 -> [sepStartX, sepStartY, sepEndX, sepEndY],只包含分隔线完整的记录
+     */
+    public Map<String, long[]> getSeparators() {
+        Map<String, long[]> current = this.separators;
+        if (null == current) {
+            synchronized (this) {
+                current = this.separators;
+                if (null == current) {
+                    long loading = neighborGeneration.get();
+                    Map<String, long[]> loaded = new HashMap<>();
+                    shapeLoader.loadNeighborsByMap(null).values().forEach(rows -> rows.forEach(row -> {
+                        if (null != row[2] && null != row[3] && null != row[4] && null != row[5]) {
+                            loaded.put(separatorKey((Long) row[0], (Long) row[1]),
+                                    new long[]{(Long) row[2], (Long) row[3], (Long) row[4], (Long) row[5]});
+                        }
+                    }));
+                    current = Collections.unmodifiableMap(loaded);
+                    if (loading == neighborGeneration.get()) {
+                        this.separators = current;
+                    }
+                }
+            }
+        }
+        return current;
+    }
+
+    public static String separatorKey(long areaPk, long neighborPk) {
+        return areaPk + "-" + neighborPk;
+    }
+
+    /**
+     * 查询坐标所在的区域,只检查z所在楼层的区域
+     */
+    public List<SwitchAreaShape> locate(Long mapId, long x, long y, Long z) {
+        return getIndex().locate(mapId, x, y, z);
+    }
+}
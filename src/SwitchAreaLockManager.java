@@ -0,0 +1,262 @@
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * 切换区域分段锁
+ * 按 mapId / areaNo 散列到固定数量的StampedLock,不同楼层、不同区域的配置修改互不阻塞;
+ * 只读校验优先使用乐观读,读过程中没有写入时不加锁;单个地图有写入时退化为读锁重新执行,全局校验只重试不加锁。
+ * 事务内的写入用lockMapsUntilCompletion加锁,写锁在事务提交或回滚后才释放,校验不会读到未提交的中间状态;
+ * mapId为null的区域按0散列
+ *
+ * @author jobs
+ */
+@Component
+public class SwitchAreaLockManager {
+
+    private static final int STRIPES = 64;
+
+    /*** 区域编号与地图ID散列时区分,避免同一数值总是落到同一分段*/
+    private static final long AREA_SALT = 0x9E3779B97F4A7C15L;
+
+    /*** 全局乐观读有写入时的重试间隔*/
+    private static final long OPTIMISTIC_RETRY_MILLIS = 100L;
+
+    /*** 未按分段顺序加锁时的最长等待时间,超时视为可能死锁*/
+    private static final long OUT_OF_ORDER_WAIT_MILLIS = 10000L;
+
+    private final StampedLock[] locks = new StampedLock[STRIPES];
+
+    /*** 当前线程持有到事务结束的 分段 -> stamp*/
+    private final ThreadLocal<Map<Integer, Long>> txHeld = new ThreadLocal<>();
+
+    public SwitchAreaLockManager() {
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new StampedLock();
+        }
+    }
+
+    public int mapStripe(long mapId) {
+        return AreaTransitionTracker.mix(mapId) & (STRIPES - 1);
+    }
+
+    private int mapStripe(Long mapId) {
+        return mapStripe(null == mapId ? 0L : mapId);
+    }
+
+    public int areaStripe(long areaNo) {
+        return AreaTransitionTracker.mix(areaNo ^ AREA_SALT) & (STRIPES - 1);
+    }
+
+    /**
+     * 持有地图的写锁执行
+     */
+    public <T> T writeMap(long mapId, Supplier<T> work) {
+        return write(mapStripe(mapId), work);
+    }
+
+    /**
+     * 持有区域的写锁执行
+     */
+    public <T> T writeArea(long areaNo, Supplier<T> work) {
+        return write(areaStripe(areaNo), work);
+    }
+
+    /**
+     * 在当前事务中对地图加写锁,事务结束后释放;同一事务内重复加锁时忽略已持有的分段
+     */
+    public void lockMapsUntilCompletion(Collection<Long> mapIds) {
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (Long mapId : mapIds) {
+            stripes.add(mapStripe(mapId));
+        }
+        lockUntilCompletion(stripes);
+    }
+
+    /**
+     * 在当前事务中对全部分段加写锁,用于不限地图的批量修改
+     */
+    public void lockAllUntilCompletion() {
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (int i = 0; i < STRIPES; i++) {
+            stripes.add(i);
+        }
+        lockUntilCompletion(stripes);
+    }
+
+    private void lockUntilCompletion(TreeSet<Integer> stripes) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            throw new IllegalStateException("no active transaction");
+        }
+        Map<Integer, Long> held = txHeld.get();
+        if (null == held) {
+            Map<Integer, Long> registered = new HashMap<>();
+            txHeld.set(registered);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    txHeld.remove();
+                    registered.forEach((stripe, stamp) -> locks[stripe].unlockWrite(stamp));
+                }
+            });
+            held = registered;
+        }
+        int maxHeld = held.isEmpty() ? -1 : new TreeSet<>(held.keySet()).last();
+        for (int stripe : stripes) {
+            if (held.containsKey(stripe)) {
+                continue;
+            }
+            if (stripe > maxHeld) {
+                held.put(stripe, locks[stripe].writeLock());
+                continue;
+            }
+            // 已持有更大序号的分段,不能无限等待
+            long stamp;
+            try {
+                stamp = locks[stripe].tryWriteLock(OUT_OF_ORDER_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stamp = 0L;
+            }
+            if (stamp == 0L) {
+                throw new CannotAcquireLockException("switch area stripe " + stripe + " is busy");
+            }
+            held.put(stripe, stamp);
+        }
+    }
+
+    private boolean heldByTransaction(int stripe) {
+        Map<Integer, Long> held = txHeld.get();
+        return null != held && held.containsKey(stripe);
+    }
+
+    /**
+     * 持有地图的读锁执行
+     */
+    public <T> T readMap(long mapId, Supplier<T> work) {
+        StampedLock lock = locks[mapStripe(mapId)];
+        long stamp = lock.readLock();
+        try {
+            return work.get();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * 地图乐观读,work必须无副作用,可能被执行两次
+     */
+    public <T> T optimisticReadMap(long mapId, Supplier<T> work) {
+        return optimisticRead(new int[]{mapStripe(mapId)}, work);
+    }
+
+    /**
+     * 全部分段乐观读,用于全局校验,不加锁;读过程中任一分段有写入时稍后重新执行,
+     * 最多执行attempts次,仍有写入时返回最后一次的结果。写锁持有到事务结束,加读锁会阻塞到任一楼层的修改提交
+     *
+     * @param work 只读取已提交的数据,无副作用
+     */
+    public <T> T optimisticReadAll(Supplier<T> work, int attempts) {
+        T result = null;
+        for (int attempt = 0; attempt < attempts; attempt++) {
+            long[] stamps = new long[STRIPES];
+            for (int i = 0; i < STRIPES; i++) {
+                stamps[i] = locks[i].tryOptimisticRead();
+            }
+            result = work.get();
+            boolean valid = true;
+            for (int i = 0; i < STRIPES && valid; i++) {
+                valid = stamps[i] != 0L && locks[i].validate(stamps[i]);
+            }
+            if (valid) {
+                return result;
+            }
+            try {
+                Thread.sleep(OPTIMISTIC_RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 多个地图同时加写锁,按分段序号加锁避免死锁
+     */
+    public <T> T writeMaps(Collection<Long> mapIds, Supplier<T> work) {
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (Long mapId : mapIds) {
+            int stripe = mapStripe(mapId);
+            if (!heldByTransaction(stripe)) {
+                stripes.add(stripe);
+            }
+        }
+        long[] stamps = new long[STRIPES];
+        for (int stripe : stripes) {
+            stamps[stripe] = locks[stripe].writeLock();
+        }
+        try {
+            return work.get();
+        } finally {
+            for (int stripe : stripes.descendingSet()) {
+                locks[stripe].unlockWrite(stamps[stripe]);
+            }
+        }
+    }
+
+    private <T> T write(int stripe, Supplier<T> work) {
+        if (heldByTransaction(stripe)) {
+            return work.get();
+        }
+        StampedLock lock = locks[stripe];
+        long stamp = lock.writeLock();
+        try {
+            return work.get();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private <T> T optimisticRead(int[] stripes, Supplier<T> work) {
+        long[] stamps = new long[stripes.length];
+        boolean acquired = true;
+        for (int i = 0; i < stripes.length; i++) {
+            stamps[i] = locks[stripes[i]].tryOptimisticRead();
+            if (stamps[i] == 0L) {
+                acquired = false;
+                break;
+            }
+        }
+        if (acquired) {
+            T result = work.get();
+            boolean valid = true;
+            for (int i = 0; i < stripes.length && valid; i++) {
+                valid = locks[stripes[i]].validate(stamps[i]);
+            }
+            if (valid) {
+                return result;
+            }
+        }
+        // stripes已按升序排列
+        for (int i = 0; i < stripes.length; i++) {
+            stamps[i] = locks[stripes[i]].readLock();
+        }
+        try {
+            return work.get();
+        } finally {
+            for (int i = stripes.length - 1; i >= 0; i--) {
+                locks[stripes[i]].unlockRead(stamps[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * 按地图统计切换区域数量、绑定基站数量、边界线数量及未分配地图的区域数量
+ * 统计结果常驻内存,区域或绑定修改的事务提交后标记对应地图过期,下次读取时只重新统计过期的地图;
+ * 地图列表直接读取统计结果,不再每次请求都做聚合查询
+ *
+ * @author jobs
+ */
+@Component
+public class SwitchAreaMapStats {
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private final Map<Long, MapStats> stats = new HashMap<>();
+
+    private final Set<Long> dirtyMaps = new HashSet<>();
+
+    private boolean allDirty = true;
+
+    private long unassigned;
+
+    private long total;
+
+    /**
+     * 地图下的区域或绑定修改后调用,事务提交后生效
+     *
+     * @param mapId 地图ID,为null时全部重新统计
+     */
+    public void markDirty(Long mapId) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    doMarkDirty(mapId);
+                }
+            });
+        } else {
+            doMarkDirty(mapId);
+        }
+    }
+
+    private synchronized void doMarkDirty(Long mapId) {
+        if (Objects.isNull(mapId)) {
+            allDirty = true;
+        } else {
+            dirtyMaps.add(mapId);
+        }
+    }
+
+    /**
+     * @return mapId -> 统计结果
+     */
+    public synchronized Map<Long, MapStats> getStats() {
+        refresh();
+        return new HashMap<>(stats);
+    }
+
+    /**
+     * @return 未分配地图的区域数量
+     */
+    public synchronized long getUnassigned() {
+        refresh();
+        return unassigned;
+    }
+
+    /**
+     * @return 区域总数
+     */
+    public synchronized long getTotal() {
+        refresh();
+        return total;
+    }
+
+    private void refresh() {
+        if (allDirty) {
+            stats.clear();
+            load(null);
+            allDirty = false;
+            dirtyMaps.clear();
+        } else if (!dirtyMaps.isEmpty()) {
+            for (Long mapId : dirtyMaps) {
+                stats.remove(mapId);
+                load(mapId);
+            }
+            dirtyMaps.clear();
+        } else {
+            return;
+        }
+        unassigned = entityManager.createQuery("select count(a) from BusAnchorSwitchArea a where a.mapId is null", Long.class)
+                .getSingleResult();
+        total = unassigned;
+        for (MapStats value : stats.values()) {
+            total += value.areaCount;
+        }
+    }
+
+    private void load(Long mapId) {
+        String where = null == mapId ? "" : " where a.mapId = :mapId";
+        for (Object[] row : query("select a.mapId, count(a) from BusAnchorSwitchArea a" + where + " group by a.mapId", mapId)) {
+            if (Objects.nonNull(row[0])) {
+                stats(row[0]).areaCount = ((Number) row[1]).longValue();
+            }
+        }
+        String lineWhere = null == mapId ? "" : " where l.area.mapId = :mapId";
+        for (Object[] row : query("select l.area.mapId, count(l) from BusSwitchLine l" + lineWhere + " group by l.area.mapId", mapId)) {
+            if (Objects.nonNull(row[0])) {
+                stats(row[0]).lineCount = ((Number) row[1]).longValue();
+            }
+        }
+        String anchorSql = "select a.map_id, count(distinct r.anchor_id) from bus_swith_area_anchors r join bus_anchor_switch_area a on a.id = r.area_no"
+                + (null == mapId ? "" : " where a.map_id = :mapId") + " group by a.map_id";
+        Query anchorQuery = entityManager.createNativeQuery(anchorSql);
+        if (null != mapId) {
+            anchorQuery.setParameter("mapId", mapId);
+        }
+        @SuppressWarnings("unchecked")
+        List<Object[]> anchorRows = anchorQuery.getResultList();
+        for (Object[] row : anchorRows) {
+            if (Objects.nonNull(row[0])) {
+                stats(row[0]).anchorCount = ((Number) row[1]).longValue();
+            }
+        }
+    }
+
+    private List<Object[]> query(String jpql, Long mapId) {
+        TypedQuery<Object[]> query = entityManager.createQuery(jpql, Object[].class);
+        if (null != mapId) {
+            query.setParameter("mapId", mapId);
+        }
+        return query.getResultList();
+    }
+
+    private MapStats stats(Object mapId) {
+        return stats.computeIfAbsent(((Number) mapId).longValue(), k -> new MapStats());
+    }
+
+    /**
+     * 单张地图的统计结果
+     */
+    public static class MapStats {
+
+        private long areaCount;
+
+        private long anchorCount;
+
+        private long lineCount;
+
+        public long getAreaCount() {
+            return areaCount;
+        }
+
+        public long getAnchorCount() {
+            return anchorCount;
+        }
+
+        public long getLineCount() {
+            return lineCount;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceUnitUtil;
+import javax.transaction.Transactional;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.pinpoint.db.model.BusAnchorSwitchArea;
+import com.pinpoint.db.model.BusAnchorSwitchAreaNeighbor;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 根据区域边界线自动推断相邻区域及分隔线
+ * 所有边按所在直线哈希分组,同一直线上的边按投影排序后扫描,不同区域的边有重叠即为相邻,重叠部分即为分隔线;
+ * 同一对区域有多段重叠时取实际长度最长的一段
+ *
+ * @author jobs
+ */
+@Slf4j
+@Component
+public class SwitchAreaNeighborInference {
+
+    @Autowired
+    private SwitchAreaShapeLoader shapeLoader;
+
+    @Autowired
+    private SwitchAreaLockManager lockManager;
+
+    @Autowired
+    private SwitchAreaLocator areaLocator;
+
+    @Autowired
+    private SwitchAreaBriefCache briefCache;
+
+    @Autowired
+    private SwitchAreaSearchIndex searchIndex;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * 推断相邻关系,不修改数据库
+     *
+     * @param mapIds 地图ID,为空时处理全部地图
+     * @return 推断出的相邻关系,每对区域只出现一次
+     */
+    public List<InferredNeighbor> infer(Collection<Long> mapIds) {
+        Map<Long, List<SwitchAreaShape>> shapeMap = shapeLoader.loadByMap(mapIds);
+        Set<String> existing = new HashSet<>();
+        shapeLoader.loadNeighborsByMap(mapIds).values().forEach(rows -> rows.forEach(row -> existing.add(row[0] + "-" + row[1])));
+        List<InferredNeighbor> result = shapeMap.values().parallelStream()
+                .flatMap(shapes -> inferMap(shapes).stream())
+                .collect(Collectors.toList());
+        for (InferredNeighbor neighbor : result) {
+            neighbor.forwardExists = existing.contains(neighbor.areaPk + "-" + neighbor.neighborPk);
+            neighbor.backwardExists = existing.contains(neighbor.neighborPk + "-" + neighbor.areaPk);
+        }
+        return result;
+    }
+
+    /**
+     * 推断并双向写入缺失的相邻关系,已存在的相邻关系保持不变
+     * 持有所处理地图的写锁直到事务结束,提交后刷新分隔线及区域缓存
+     *
+     * @param mapIds 地图ID,为空时处理全部地图
+     * @return 新增的相邻记录数
+     */
+    @Transactional(rollbackOn = Exception.class)
+    public int apply(Collection<Long> mapIds) {
+        if (null == mapIds || mapIds.isEmpty()) {
+            lockManager.lockAllUntilCompletion();
+        } else {
+            lockManager.lockMapsUntilCompletion(mapIds);
+        }
+        List<BusAnchorSwitchAreaNeighbor> added = new ArrayList<>();
+        for (InferredNeighbor neighbor : infer(mapIds)) {
+            if (!neighbor.forwardExists) {
+                added.add(newNeighbor(neighbor.areaPk, neighbor.neighborPk, neighbor));
+            }
+            if (!neighbor.backwardExists) {
+                added.add(newNeighbor(neighbor.neighborPk, neighbor.areaPk, neighbor));
+            }
+        }
+        added.forEach(entityManager::persist);
+        entityManager.flush();
+        // 调用方已加载相邻区域的区域同步加入新记录,不清空持久化上下文
+        PersistenceUnitUtil unitUtil = entityManager.getEntityManagerFactory().getPersistenceUnitUtil();
+        for (BusAnchorSwitchAreaNeighbor neighbor : added) {
+            BusAnchorSwitchArea area = neighbor.getSwitchArea();
+            if (unitUtil.isLoaded(area, "neighbors") && null != area.getNeighbors()) {
+                area.getNeighbors().add(neighbor);
+            }
+        }
+        int count = added.size();
+        if (count > 0) {
+            areaLocator.invalidateNeighbors();
+            briefCache.invalidate();
+            searchIndex.invalidate();
+        }
+        log.info("自动推断相邻区域完成,新增" + count + "条相邻记录");
+        return count;
+    }
+
+    private BusAnchorSwitchAreaNeighbor newNeighbor(Long areaPk, Long neighborPk, InferredNeighbor neighbor) {
+        BusAnchorSwitchAreaNeighbor newNeighbor = new BusAnchorSwitchAreaNeighbor();
+        newNeighbor.setSwitchArea(entityManager.getReference(BusAnchorSwitchArea.class, areaPk));
+        newNeighbor.setNeighborArea(entityManager.getReference(BusAnchorSwitchArea.class, neighborPk));
+        newNeighbor.setSepStartX(neighbor.sepStartX);
+        newNeighbor.setSepStartY(neighbor.sepStartY);
+        newNeighbor.setSepEndX(neighbor.sepEndX);
+        newNeighbor.setSepEndY(neighbor.sepEndY);
+        return newNeighbor;
+    }
+
+    static List<InferredNeighbor> inferMap(List<SwitchAreaShape> shapes) {
+        Map<String, List<EdgeSpan>> lineIndex = new HashMap<>();
+        for (SwitchAreaShape shape : shapes) {
+            int n = shape.size();
+            for (int i = 0; i < n; i++) {
+                long ax = shape.x(i), ay = shape.y(i), bx = shape.x((i + 1) % n), by = shape.y((i + 1) % n);
+                if (ax == bx && ay == by) {
+                    continue;
+                }
+                long dx = bx - ax, dy = by - ay;
+                long g = BigInteger.valueOf(dx).gcd(BigInteger.valueOf(dy)).longValue();
+                dx /= g;
+                dy /= g;
+                if (dx < 0 || (dx == 0 && dy < 0)) {
+                    dx = -dx;
+                    dy = -dy;
+                }
+                // 方向归一化后,直线由方向及偏移量唯一确定
+                long offset = dy * ax - dx * ay;
+                long ta = dx * ax + dy * ay, tb = dx * bx + dy * by;
+                EdgeSpan span = ta <= tb ? new EdgeSpan(shape, ta, tb, ax, ay, bx, by) : new EdgeSpan(shape, tb, ta, bx, by, ax, ay);
+                lineIndex.computeIfAbsent(dx + "," + dy + "," + offset, k -> new ArrayList<>()).add(span);
+            }
+        }
+        Map<String, InferredNeighbor> pairs = new HashMap<>();
+        for (List<EdgeSpan> spans : lineIndex.values()) {
+            if (spans.size() < 2) {
+                continue;
+            }
+            spans.sort(Comparator.comparingLong(span -> span.start));
+            List<EdgeSpan> active = new ArrayList<>();
+            for (EdgeSpan span : spans) {
+                active.removeIf(other -> other.end <= span.start);
+                for (EdgeSpan other : active) {
+                    if (other.shape == span.shape || !zOverlaps(other.shape, span.shape)) {
+                        continue;
+                    }
+                    EdgeSpan first = other.shape.getId() < span.shape.getId() ? other : span;
+                    EdgeSpan second = first == other ? span : other;
+                    // 重叠部分起点为span起点,终点为两者终点较小者;投影值按方向向量长度缩放,不同直线之间按实际长度比较
+                    EdgeSpan endSpan = other.end < span.end ? other : span;
+                    double length = Math.hypot(endSpan.endX - span.startX, endSpan.endY - span.startY);
+                    String key = first.shape.getId() + "-" + second.shape.getId();
+                    InferredNeighbor exists = pairs.get(key);
+                    if (null == exists || exists.length < length) {
+                        InferredNeighbor neighbor = new InferredNeighbor();
+                        neighbor.areaPk = first.shape.getId();
+                        neighbor.areaId = first.shape.getAreaId();
+                        neighbor.neighborPk = second.shape.getId();
+                        neighbor.neighborAreaId = second.shape.getAreaId();
+                        neighbor.sepStartX = span.startX;
+                        neighbor.sepStartY = span.startY;
+                        neighbor.sepEndX = endSpan.endX;
+                        neighbor.sepEndY = endSpan.endY;
+                        neighbor.length = length;
+                        pairs.put(key, neighbor);
+                    }
+                }
+                active.add(span);
+            }
+        }
+        return new ArrayList<>(pairs.values());
+    }
+
+    private static boolean zOverlaps(SwitchAreaShape a, SwitchAreaShape b) {
+        return a.getMinZ() <= b.getMaxZ() && b.getMinZ() <= a.getMaxZ();
+    }
+
+    private static class EdgeSpan {
+
+        final SwitchAreaShape shape;
+
+        final long start;
+
+        final long end;
+
+        final long startX;
+
+        final long startY;
+
+        final long endX;
+
+        final long endY;
+
+        EdgeSpan(SwitchAreaShape shape, long start, long end, long startX, long startY, long endX, long endY) {
+            this.shape = shape;
+            this.start = start;
+            this.end = end;
+            this.startX = startX;
+            this.startY = startY;
+            this.endX = endX;
+            this.endY = endY;
+        }
+    }
+
+    /**
+     * 推断出的相邻关系,分隔线取两区域最长的公共边
+     */
+    public static class InferredNeighbor {
+
+        private Long areaPk;
+
+        private String areaId;
+
+        private Long neighborPk;
+
+        private String neighborAreaId;
+
+        private long sepStartX;
+
+        private long sepStartY;
+
+        private long sepEndX;
+
+        private long sepEndY;
+
+        /*** 分隔线长度*/
+        private double length;
+
+        private boolean forwardExists;
+
+        private boolean backwardExists;
+
+        public Long getAreaPk() {
+            return areaPk;
+        }
+
+        public String getAreaId() {
+            return areaId;
+        }
+
+        public Long getNeighborPk() {
+            return neighborPk;
+        }
+
+        public String getNeighborAreaId() {
+            return neighborAreaId;
+        }
+
+        /**
+         * @return 与addNeighbor参数一致的分隔线"x,y x,y"
+         */
+        public String getSeparator() {
+            return sepStartX + "," + sepStartY + " " + sepEndX + "," + sepEndY;
+        }
+
+        public boolean isForwardExists() {
+            return forwardExists;
+        }
+
+        public boolean isBackwardExists() {
+            return backwardExists;
+        }
+    }
+}
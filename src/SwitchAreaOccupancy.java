@@ -0,0 +1,337 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntPredicate;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 切换区域实时人数统计
+ * 由区域切换驱动(包括关闭告警的区域,长时间未定位的标签由事件引擎按离开处理),按区域主键分别维护本节点的计数及区域内标签集合,
+ * 不同区域之间互不加锁;区域删除或下发编号修改后随区域索引重建同步,已删除区域的计数被丢弃。
+ * 定期把本节点快照写入Redis hash的 areaNo:nodeIndex 字段,各节点负责的标签互不重叠,集群人数为各节点字段之和;
+ * 每个节点同时写入 hb:nodeIndex 心跳,心跳过期的节点不计入人数,其字段由存活节点删除
+ *
+ * @author jobs
+ */
+@Slf4j
+@Component
+public class SwitchAreaOccupancy implements SwitchAreaEventListener {
+
+    public static final String OCCUPANCY_KEY = "area:occupancy";
+
+    /*** 其它节点人数的缓存时间,毫秒*/
+    private static final long REMOTE_CACHE_MILLIS = 1000L;
+
+    /*** 节点心跳字段前缀*/
+    private static final String HEARTBEAT_PREFIX = "hb:";
+
+    /*** 心跳超过该时长未更新的节点视为已停止,为写入周期的数倍以容忍节点间时钟误差*/
+    private static final long NODE_EXPIRE_MILLIS = 30000L;
+
+    @Autowired
+    private SwitchAreaEventEngine eventEngine;
+
+    @Autowired
+    private SwitchAreaLocator areaLocator;
+
+    @Autowired
+    private RedisUtils redisUtils;
+
+    /*** 本节点序号,与定位stream分区的分配一致*/
+    @Value("${area.stream.node-index:0}")
+    private int nodeIndex;
+
+    @Value("${area.stream.node-count:1}")
+    private int nodeCount;
+
+    /*** 区域主键 -> 本节点计数*/
+    private final ConcurrentHashMap<Long, AreaCounter> counters = new ConcurrentHashMap<>();
+
+    /*** 计数更新后回调的监听器*/
+    private final List<SwitchAreaEventListener> listeners = new CopyOnWriteArrayList<>();
+
+    /*** 已同步的区域索引,索引重建后重新同步*/
+    private volatile SwitchAreaLayeredIndex syncedIndex;
+
+    /*** areaNo -> 区域主键*/
+    private volatile Map<Long, Long> areaPks = Collections.emptyMap();
+
+    /*** 其它节点的 areaNo -> 人数,最多每REMOTE_CACHE_MILLIS从Redis读取一次*/
+    private volatile Map<Long, Long> remoteCounts = Collections.emptyMap();
+
+    private volatile long remoteLoadedMillis;
+
+    private final Object remoteLock = new Object();
+
+    /*** areaNo -> 最大容纳人数*/
+    private final ConcurrentHashMap<Long, Integer> capacities = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        eventEngine.addTransitionListener(this);
+    }
+
+    /**
+     * 注册在本批事件计入人数之后回调的监听器,与计数在同一分区线程中按顺序执行
+     */
+    public void addListener(SwitchAreaEventListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void onEvents(List<SwitchAreaEvent> events) {
+        SwitchAreaLayeredIndex index = sync();
+        for (SwitchAreaEvent event : events) {
+            if (event.getFromArea() != 0) {
+                AreaCounter counter = counters.get(event.getFromArea());
+                if (null != counter) {
+                    counter.leave(event.getTagId());
+                }
+            }
+            if (event.getToArea() != 0 && null != index.getShape(event.getToArea())) {
+                counters.computeIfAbsent(event.getToArea(), k -> new AreaCounter()).enter(event.getTagId());
+            }
+        }
+        for (SwitchAreaEventListener listener : listeners) {
+            listener.onEvents(events);
+        }
+    }
+
+    /**
+     * 区域索引重建后丢弃已删除区域的计数,并按新的下发编号建立映射
+     */
+    private SwitchAreaLayeredIndex sync() {
+        SwitchAreaLayeredIndex index = areaLocator.getIndex();
+        if (index != syncedIndex) {
+            synchronized (this) {
+                if (index != syncedIndex) {
+                    Map<Long, Long> pks = new HashMap<>();
+                    for (SwitchAreaShape shape : index.allShapes()) {
+                        if (null != shape.getAreaNo()) {
+                            pks.put(shape.getAreaNo(), shape.getId());
+                        }
+                    }
+                    counters.keySet().removeIf(areaPk -> null == index.getShape(areaPk));
+                    areaPks = pks;
+                    syncedIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    private AreaCounter counterOf(Long areaNo) {
+        sync();
+        Long areaPk = areaPks.get(areaNo);
+        return null == areaPk ? null : counters.get(areaPk);
+    }
+
+    /**
+     * @return 本节点统计的区域当前人数
+     */
+    public long count(Long areaNo) {
+        AreaCounter counter = counterOf(areaNo);
+        return null == counter ? 0 : counter.count.sum();
+    }
+
+    /**
+     * @return 本节点统计的区域内当前标签ID
+     */
+    public long[] tags(Long areaNo) {
+        AreaCounter counter = counterOf(areaNo);
+        return null == counter ? new long[0] : counter.tags();
+    }
+
+    /**
+     * 读取Redis中各节点写入的人数并按区域求和,最多滞后一个写入周期
+     *
+     * @return areaNo -> 集群内区域当前人数
+     */
+    public Map<Long, Long> clusterCounts() {
+        return sumFields(node -> true);
+    }
+
+    /**
+     * 本节点取实时计数,其它节点取Redis中的字段,Redis最多每秒读取一次,可在事件处理线程中频繁调用
+     *
+     * @return 集群内区域当前人数
+     */
+    public long clusterCount(Long areaNo) {
+        return count(areaNo) + remoteCounts().getOrDefault(areaNo, 0L);
+    }
+
+    private Map<Long, Long> remoteCounts() {
+        if (System.currentTimeMillis() - remoteLoadedMillis >= REMOTE_CACHE_MILLIS) {
+            synchronized (remoteLock) {
+                if (System.currentTimeMillis() - remoteLoadedMillis >= REMOTE_CACHE_MILLIS) {
+                    try {
+                        remoteCounts = sumFields(node -> node != nodeIndex);
+                    } catch (RuntimeException e) {
+                        // 暂时无法访问Redis时沿用上次结果
+                        log.warn("读取其它节点区域人数异常", e);
+                    }
+                    remoteLoadedMillis = System.currentTimeMillis();
+                }
+            }
+        }
+        return remoteCounts;
+    }
+
+    /**
+     * @param nodeFilter 参与求和的节点序号
+     */
+    private Map<Long, Long> sumFields(IntPredicate nodeFilter) {
+        Map<Long, Long> result = new HashMap<>();
+        Map<Object, Object> fields = redisUtils.hmget(OCCUPANCY_KEY);
+        if (null == fields) {
+            return result;
+        }
+        boolean[] alive = aliveNodes(fields);
+        fields.forEach((field, value) -> {
+            String name = String.valueOf(field);
+            int node = nodeOf(name);
+            if (node < 0 || node >= nodeCount || !alive[node] || !nodeFilter.test(node) || name.startsWith(HEARTBEAT_PREFIX)) {
+                // 旧格式、已缩容或已停止节点的字段
+                return;
+            }
+            int split = name.lastIndexOf(':');
+            String areaNo = name.substring(0, split);
+            if (NumberUtils.isCreatable(areaNo)) {
+                result.merge(NumberUtils.createLong(areaNo), NumberUtils.toLong(String.valueOf(value)), Long::sum);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return 按节点序号,心跳未过期的节点为true
+     */
+    private boolean[] aliveNodes(Map<Object, Object> fields) {
+        boolean[] alive = new boolean[nodeCount];
+        long now = System.currentTimeMillis();
+        fields.forEach((field, value) -> {
+            String name = String.valueOf(field);
+            int node = nodeOf(name);
+            if (name.startsWith(HEARTBEAT_PREFIX) && node >= 0 && node < nodeCount
+                    && now - NumberUtils.toLong(String.valueOf(value)) < NODE_EXPIRE_MILLIS) {
+                alive[node] = true;
+            }
+        });
+        return alive;
+    }
+
+    /**
+     * @return 字段所属节点序号,无法解析时返回-1
+     */
+    private static int nodeOf(String field) {
+        int split = field.lastIndexOf(':');
+        return split <= 0 ? -1 : NumberUtils.toInt(field.substring(split + 1), -1);
+    }
+
+    /**
+     * 设置区域最大容纳人数,capacity为null时取消限制
+     */
+    public void setCapacity(Long areaNo, Integer capacity) {
+        if (Objects.isNull(capacity)) {
+            capacities.remove(areaNo);
+        } else {
+            capacities.put(areaNo, capacity);
+        }
+    }
+
+    /**
+     * @return 超出最大容纳人数的区域下发编号
+     */
+    public List<Long> overCapacityAreas() {
+        List<Long> result = new ArrayList<>();
+        Map<Long, Long> counts = clusterCounts();
+        capacities.forEach((areaNo, capacity) -> {
+            if (counts.getOrDefault(areaNo, 0L) > capacity) {
+                result.add(areaNo);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 定期把本节点各区域人数及心跳写入Redis,删除本节点已删除或已改编号区域的字段,以及已停止节点的字段
+     */
+    @Scheduled(fixedDelay = 5000L)
+    public void flush() {
+        SwitchAreaLayeredIndex index = sync();
+        String suffix = ":" + nodeIndex;
+        Map<String, Object> snapshot = new HashMap<>();
+        counters.forEach((areaPk, counter) -> {
+            SwitchAreaShape shape = index.getShape(areaPk);
+            if (null != shape && null != shape.getAreaNo()) {
+                snapshot.put(shape.getAreaNo() + suffix, counter.count.sum());
+            }
+        });
+        snapshot.put(HEARTBEAT_PREFIX + nodeIndex, System.currentTimeMillis());
+        redisUtils.hmset(OCCUPANCY_KEY, snapshot);
+        Map<Object, Object> fields = redisUtils.hmget(OCCUPANCY_KEY);
+        if (null == fields) {
+            return;
+        }
+        boolean[] alive = aliveNodes(fields);
+        List<Object> stale = new ArrayList<>();
+        for (Object field : fields.keySet()) {
+            String name = String.valueOf(field);
+            int node = nodeOf(name);
+            if (node == nodeIndex ? !snapshot.containsKey(name) : (node >= 0 && (node >= nodeCount || !alive[node]))) {
+                stale.add(field);
+            }
+        }
+        if (!stale.isEmpty()) {
+            redisUtils.hdel(OCCUPANCY_KEY, stale.toArray());
+        }
+    }
+
+    private static class AreaCounter {
+
+        final LongAdder count = new LongAdder();
+
+        final LongHashSet tagSet = new LongHashSet();
+
+        void enter(long tagId) {
+            boolean added;
+            synchronized (tagSet) {
+                added = tagSet.add(tagId);
+            }
+            if (added) {
+                count.increment();
+            }
+        }
+
+        void leave(long tagId) {
+            boolean removed;
+            synchronized (tagSet) {
+                removed = tagSet.remove(tagId);
+            }
+            if (removed) {
+                count.decrement();
+            }
+        }
+
+        long[] tags() {
+            synchronized (tagSet) {
+                return tagSet.toArray();
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.pinpoint.db.model.BusAnchorSwitchArea;
+import com.pinpoint.db.model.BusAnchorSwitchAreaNeighbor;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 切换区域乐观并发编辑
+ * 区域字段修改按版本号校验,版本不一致时不覆盖;基站、相邻区域的增删满足交换律,
+ * 每次在最新数据上按集合运算重新计算增量后写入,并在同一事务中把区域版本号加1,使之前读取的版本失效;
+ * 冲突(版本冲突、重复插入)时在新事务中重试,不需要全局锁
+ *
+ * @author jobs
+ */
+@Slf4j
+@Component
+public class SwitchAreaOptimisticEditor {
+
+    private static final int MAX_ATTEMPTS = 5;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private SwitchAreaBindingWriter bindingWriter;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * 按版本号修改区域字段,版本号一致时写入并加1
+     *
+     * @param expectedVersion 读取区域时的版本号
+     * @param columns         字段名 -> 值,字段名见SwitchAreaWriteBehind.COLUMNS
+     * @return 写入成功返回新版本号,版本冲突或区域不存在返回null
+     */
+    public Long updateColumns(long areaPk, long expectedVersion, Map<String, Object> columns) {
+        for (String column : columns.keySet()) {
+            if (!SwitchAreaWriteBehind.COLUMNS.contains(column)) {
+                throw new IllegalArgumentException("unsupported column " + column);
+            }
+        }
+        return inNewTransaction(() -> {
+            if (columns.isEmpty()) {
+                return currentVersion(areaPk);
+            }
+            List<Object> args = new ArrayList<>(columns.values());
+            args.add(areaPk);
+            args.add(expectedVersion);
+            int count = jdbcTemplate.update("update bus_anchor_switch_area set " + String.join(" = ?, ", columns.keySet())
+                    + " = ?, version = version + 1 where id = ? and version = ?", args.toArray());
+            return count == 1 ? expectedVersion + 1 : null;
+        });
+    }
+
+    /**
+     * 合并基站增删,冲突时重试
+     *
+     * @return 实际写入的绑定差异
+     */
+    public SwitchAreaBindingDiff mergeAnchors(long areaPk, Collection<Long> add, Collection<Long> remove) {
+        return retry(() -> {
+            Set<Long> current = bindingWriter.loadBindings(Collections.singletonList(areaPk)).getOrDefault(areaPk, Collections.emptySet());
+            Set<Long> toAdd = new HashSet<>(add);
+            toAdd.removeAll(remove);
+            toAdd.removeAll(current);
+            Set<Long> toRemove = new HashSet<>(remove);
+            toRemove.retainAll(current);
+            SwitchAreaBindingDiff diff = new SwitchAreaBindingDiff();
+            if (!toAdd.isEmpty()) {
+                diff.getToAdd().put(areaPk, toAdd);
+            }
+            if (!toRemove.isEmpty()) {
+                diff.getToRemove().put(areaPk, toRemove);
+            }
+            if (bindingWriter.apply(Collections.singletonList(diff)) > 0) {
+                bumpVersion(areaPk);
+            }
+            return diff;
+        });
+    }
+
+    /**
+     * 合并相邻区域增删,已存在的相邻区域不重复添加,冲突时重试
+     *
+     * @param add    相邻区域主键 -> [sepStartX, sepStartY, sepEndX, sepEndY]
+     * @param remove 相邻区域主键
+     * @return 写入的记录数
+     */
+    public int mergeNeighbors(long areaPk, Map<Long, long[]> add, Collection<Long> remove) {
+        return retry(() -> {
+            int count = 0;
+            if (!remove.isEmpty()) {
+                count += entityManager.createQuery("delete from BusAnchorSwitchAreaNeighbor n where n.switchArea.id = :areaPk and n.neighborArea.id in :ids")
+                        .setParameter("areaPk", areaPk)
+                        .setParameter("ids", remove)
+                        .executeUpdate();
+            }
+            Set<Long> existing = new HashSet<>(entityManager.createQuery("select n.neighborArea.id from BusAnchorSwitchAreaNeighbor n where n.switchArea.id = :areaPk", Long.class)
+                    .setParameter("areaPk", areaPk)
+                    .getResultList());
+            for (Map.Entry<Long, long[]> entry : add.entrySet()) {
+                if (existing.contains(entry.getKey()) || remove.contains(entry.getKey())) {
+                    continue;
+                }
+                long[] sep = entry.getValue();
+                BusAnchorSwitchAreaNeighbor neighbor = new BusAnchorSwitchAreaNeighbor();
+                neighbor.setSwitchArea(entityManager.getReference(BusAnchorSwitchArea.class, areaPk));
+                neighbor.setNeighborArea(entityManager.getReference(BusAnchorSwitchArea.class, entry.getKey()));
+                neighbor.setSepStartX(sep[0]);
+                neighbor.setSepStartY(sep[1]);
+                neighbor.setSepEndX(sep[2]);
+                neighbor.setSepEndY(sep[3]);
+                entityManager.persist(neighbor);
+                count++;
+            }
+            entityManager.flush();
+            if (count > 0) {
+                bumpVersion(areaPk);
+            }
+            return count;
+        });
+    }
+
+    private void bumpVersion(long areaPk) {
+        jdbcTemplate.update("update bus_anchor_switch_area set version = version + 1 where id = ?", areaPk);
+    }
+
+    /**
+     * @return 区域当前版本号,区域不存在时返回null
+     */
+    public Long currentVersion(long areaPk) {
+        List<Long> versions = entityManager.createQuery("select a.version from BusAnchorSwitchArea a where a.id = :id", Long.class)
+                .setParameter("id", areaPk)
+                .getResultList();
+        return versions.isEmpty() ? null : versions.get(0);
+    }
+
+    /**
+     * 在新事务中执行,版本冲突或并发插入冲突时退避后重试
+     */
+    public <T> T retry(Supplier<T> work) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return inNewTransaction(work);
+            } catch (ConcurrencyFailureException | DataIntegrityViolationException e) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                log.warn("切换区域并发修改冲突,第" + attempt + "次重试");
+                try {
+                    Thread.sleep(ThreadLocalRandom.current().nextLong(5L, 20L) * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private <T> T inNewTransaction(Supplier<T> work) {
+        TransactionTemplate template = new TransactionTemplate(transactionManager);
+        template.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        return template.execute(status -> work.get());
+    }
+}
@@ -0,0 +1,247 @@
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongUnaryOperator;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 区域围栏规则引擎
+ * 规则按区域类型(type)、基站区域类型(bsAreaType)定义,也可按区域下发编号单独定义,
+ * 区域变更后预先编译成 区域主键 -> 规则 的映射;停留超时由分层时间轮计时,取消与新增均为O(1)
+ * 优先级:区域规则 > type+bsAreaType > type > bsAreaType;关闭告警的区域不编译规则
+ * 由人数统计在更新计数后回调,超员判断取集群人数(本节点实时计数已包含本批进出事件,其它节点最多滞后一个写入周期);标签分组定期从数据库加载
+ *
+ * @author jobs
+ */
+@Slf4j
+@Component
+public class SwitchAreaRuleEngine implements SwitchAreaEventListener {
+
+    private static final long TICK_MILLIS = 100L;
+
+    /*** 标签没有分组*/
+    public static final long NO_GROUP = -1L;
+
+    @Autowired
+    private SwitchAreaLocator areaLocator;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private SwitchAreaOccupancy occupancy;
+
+    private final Map<String, GeofenceRule> typeRules = new ConcurrentHashMap<>();
+
+    private final Map<Long, GeofenceRule> areaRules = new ConcurrentHashMap<>();
+
+    private final List<Consumer<GeofenceAlarm>> alarmListeners = new CopyOnWriteArrayList<>();
+
+    private final HierarchicalTimingWheel<GeofenceAlarm> dwellTimers = new HierarchicalTimingWheel<>(TICK_MILLIS, System.currentTimeMillis());
+
+    /*** 标签ID -> 分组ID*/
+    private volatile Map<Long, Long> tagGroups = new HashMap<>();
+
+    private volatile LongUnaryOperator tagGroupResolver = tagId -> tagGroups.getOrDefault(tagId, NO_GROUP);
+
+    /*** 规则修改次数,编译期间规则被修改时结果不再使用*/
+    private final AtomicLong ruleVersion = new AtomicLong();
+
+    private volatile Compiled compiled;
+
+    private ScheduledExecutorService ticker;
+
+    @PostConstruct
+    public void init() {
+        occupancy.addListener(this);
+        loadTagGroups();
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "geofence-ticker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleWithFixedDelay(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        ticker.shutdownNow();
+    }
+
+    /**
+     * 按区域类型定义规则
+     *
+     * @param type       区域类型,null表示任意
+     * @param bsAreaType 基站区域类型,null表示任意
+     * @param rule       规则,null表示删除
+     */
+    public void defineTypeRule(Integer type, Integer bsAreaType, GeofenceRule rule) {
+        String key = type + ":" + bsAreaType;
+        if (null == rule) {
+            typeRules.remove(key);
+        } else {
+            typeRules.put(key, rule);
+        }
+        ruleVersion.incrementAndGet();
+    }
+
+    /**
+     * 按区域下发编号定义规则
+     *
+     * @param areaNo 区域下发编号
+     * @param rule   规则,null表示删除
+     */
+    public void defineAreaRule(Long areaNo, GeofenceRule rule) {
+        if (null == rule) {
+            areaRules.remove(areaNo);
+        } else {
+            areaRules.put(areaNo, rule);
+        }
+        ruleVersion.incrementAndGet();
+    }
+
+    /**
+     * 定期加载标签分组
+     */
+    @Scheduled(fixedDelay = 60000L)
+    public void loadTagGroups() {
+        try {
+            Map<Long, Long> groups = new HashMap<>();
+            jdbcTemplate.query("select id, group_id from bus_tag where group_id is not null",
+                    rs -> {
+                        groups.put(rs.getLong(1), rs.getLong(2));
+                    });
+            this.tagGroups = groups;
+        } catch (Exception e) {
+            log.error("加载标签分组异常!", e);
+        }
+    }
+
+    /**
+     * 设置标签分组查询,替换默认的数据库分组,返回NO_GROUP表示标签没有分组
+     */
+    public void setTagGroupResolver(LongUnaryOperator tagGroupResolver) {
+        this.tagGroupResolver = tagGroupResolver;
+    }
+
+    public void addAlarmListener(Consumer<GeofenceAlarm> listener) {
+        alarmListeners.add(listener);
+    }
+
+    @Override
+    public void onEvents(List<SwitchAreaEvent> events) {
+        Compiled rules = compiled();
+        for (SwitchAreaEvent event : events) {
+            if (event.getFromArea() != 0) {
+                dwellTimers.cancel(event.getTagId());
+            }
+            if (event.getToArea() == 0) {
+                continue;
+            }
+            GeofenceRule rule = rules.rules.get(event.getToArea());
+            if (null == rule) {
+                continue;
+            }
+            Long areaNo = rules.areaNos.get(event.getToArea());
+            if (rule.getForbiddenGroups() != null) {
+                long groupId = tagGroupResolver.applyAsLong(event.getTagId());
+                if (groupId != NO_GROUP && rule.isForbidden(groupId)) {
+                    fire(new GeofenceAlarm(GeofenceAlarm.FORBIDDEN, event.getTagId(), event.getToArea(), areaNo, event.getTimestamp()));
+                }
+            }
+            if (rule.getCapacity() > 0 && null != areaNo && occupancy.clusterCount(areaNo) > rule.getCapacity()) {
+                fire(new GeofenceAlarm(GeofenceAlarm.CAPACITY, event.getTagId(), event.getToArea(), areaNo, event.getTimestamp()));
+            }
+            if (rule.getMaxDwellMillis() > 0) {
+                dwellTimers.schedule(event.getTagId(), event.getTimestamp() + rule.getMaxDwellMillis(),
+                        new GeofenceAlarm(GeofenceAlarm.DWELL, event.getTagId(), event.getToArea(), areaNo, event.getTimestamp() + rule.getMaxDwellMillis()));
+            }
+        }
+    }
+
+    private void tick() {
+        try {
+            for (GeofenceAlarm alarm : dwellTimers.advance(System.currentTimeMillis())) {
+                fire(alarm);
+            }
+        } catch (Exception e) {
+            log.error("围栏计时异常!", e);
+        }
+    }
+
+    private void fire(GeofenceAlarm alarm) {
+        for (Consumer<GeofenceAlarm> listener : alarmListeners) {
+            listener.accept(alarm);
+        }
+    }
+
+    /**
+     * 规则或区域变更后重新编译
+     */
+    private Compiled compiled() {
+        SwitchAreaLayeredIndex index = areaLocator.getIndex();
+        long version = ruleVersion.get();
+        Compiled current = this.compiled;
+        if (null != current && current.index == index && current.version == version) {
+            return current;
+        }
+        Compiled result = new Compiled(index, version);
+        for (SwitchAreaShape shape : index.allShapes()) {
+            if (shape.isDisableWarning()) {
+                continue;
+            }
+            GeofenceRule rule = areaRules.get(shape.getAreaNo());
+            if (null == rule) {
+                rule = typeRules.get(shape.getType() + ":" + shape.getBsAreaType());
+            }
+            if (null == rule) {
+                rule = typeRules.get(shape.getType() + ":" + null);
+            }
+            if (null == rule) {
+                rule = typeRules.get(null + ":" + shape.getBsAreaType());
+            }
+            if (null == rule) {
+                rule = typeRules.get(null + ":" + null);
+            }
+            if (Objects.nonNull(rule)) {
+                result.rules.put(shape.getId(), rule);
+                result.areaNos.put(shape.getId(), shape.getAreaNo());
+            }
+        }
+        this.compiled = result;
+        return result;
+    }
+
+    private static class Compiled {
+
+        final SwitchAreaLayeredIndex index;
+
+        final long version;
+
+        final Map<Long, GeofenceRule> rules = new HashMap<>();
+
+        final Map<Long, Long> areaNos = new HashMap<>();
+
+        Compiled(SwitchAreaLayeredIndex index, long version) {
+            this.index = index;
+            this.version = version;
+        }
+    }
+}
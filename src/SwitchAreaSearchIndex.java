@@ -0,0 +1,172 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.stereotype.Component;
+
+/**
+ * 切换区域名称(areaId)前缀索引
+ * areaId转小写后按字典序排好常驻内存,前缀查询用二分查找定位区间,计数与联想都不访问数据库;
+ * 与分页查询的 like 'prefix%' 一致:前缀按字面匹配(查询时用likePrefix转义通配符),不区分大小写,
+ * 空前缀时计入areaId为null的区域。区域变更的事务提交后标记失效,下次查询时重建
+ *
+ * @author jobs
+ */
+@Component
+public class SwitchAreaSearchIndex {
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /*** like查询的转义字符*/
+    public static final char LIKE_ESCAPE = '!';
+
+    private volatile Snapshot snapshot;
+
+    /*** 每次失效加1*/
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * 区域新增、删除或修改名称后调用,有事务时提交后生效
+     */
+    public void invalidate() {
+        TransactionHooks.afterCommit(() -> {
+            generation.incrementAndGet();
+            this.snapshot = null;
+        });
+    }
+
+    /**
+     * @return 按字面匹配前缀的like参数,配合 escape '!' 使用
+     */
+    public static String likePrefix(String prefix) {
+        StringBuilder sb = new StringBuilder(prefix.length() + 1);
+        for (char c : prefix.toCharArray()) {
+            if (c == LIKE_ESCAPE || c == '%' || c == '_') {
+                sb.append(LIKE_ESCAPE);
+            }
+            sb.append(c);
+        }
+        return sb.append('%').toString();
+    }
+
+    /**
+     * 前缀联想
+     *
+     * @param prefix 前缀,为空时返回字典序最前的区域
+     * @param limit  最多返回数量
+     * @return [id, areaId]
+     */
+    public List<Object[]> suggest(String prefix, int limit) {
+        Snapshot current = snapshot();
+        String key = normalize(prefix);
+        List<Object[]> result = new ArrayList<>();
+        int end = current.upperBound(key);
+        for (int i = current.lowerBound(key); i < end && result.size() < limit; i++) {
+            result.add(new Object[]{current.ids[i], current.areaIds[i]});
+        }
+        return result;
+    }
+
+    /**
+     * @return areaId以prefix开头的区域数量,prefix为空时为全部区域数量
+     */
+    public int count(String prefix) {
+        Snapshot current = snapshot();
+        String key = normalize(prefix);
+        if (key.isEmpty()) {
+            return current.ids.length + current.nullCount;
+        }
+        return current.upperBound(key) - current.lowerBound(key);
+    }
+
+    private static String normalize(String areaId) {
+        return StringUtils.defaultString(areaId).toLowerCase(Locale.ROOT);
+    }
+
+    private Snapshot snapshot() {
+        Snapshot current = this.snapshot;
+        if (null == current) {
+            synchronized (this) {
+                current = this.snapshot;
+                if (null == current) {
+                    long loading = generation.get();
+                    current = new Snapshot(entityManager.createQuery("select a.id, a.areaId from BusAnchorSwitchArea a", Object[].class)
+                            .getResultList());
+                    if (loading == generation.get()) {
+                        this.snapshot = current;
+                    }
+                }
+            }
+        }
+        return current;
+    }
+
+    private static class Snapshot {
+
+        /*** 小写的areaId,有序*/
+        final String[] keys;
+
+        final String[] areaIds;
+
+        final long[] ids;
+
+        /*** areaId为null的区域数量*/
+        final int nullCount;
+
+        Snapshot(List<Object[]> rows) {
+            Object[][] sorted = rows.stream().filter(row -> null != row[1]).toArray(Object[][]::new);
+            Arrays.sort(sorted, Comparator.comparing((Object[] row) -> normalize((String) row[1])).thenComparing(row -> (Long) row[0]));
+            nullCount = rows.size() - sorted.length;
+            keys = new String[sorted.length];
+            areaIds = new String[sorted.length];
+            ids = new long[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                ids[i] = (Long) sorted[i][0];
+                areaIds[i] = (String) sorted[i][1];
+                keys[i] = normalize(areaIds[i]);
+            }
+        }
+
+        /**
+         * @return 第一个不小于prefix的位置
+         */
+        int lowerBound(String prefix) {
+            int lo = 0;
+            int hi = keys.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid].compareTo(prefix) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        /**
+         * @return 第一个不以prefix开头且大于prefix的位置
+         */
+        int upperBound(String prefix) {
+            int lo = lowerBound(prefix);
+            int hi = keys.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid].startsWith(prefix)) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -9,8 +10,14 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Predicate;
@@ -19,32 +26,33 @@ import javax.transaction.Transactional;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.math.NumberUtils;
+import org.hibernate.Session;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.CannotAcquireLockException;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.jpa.domain.Specification;
 import org.springframework.stereotype.Service;
-import org.springframework.util.ObjectUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import com.pinpoint.db.model.BusAnchor;
-import com.pinpoint.db.model.BusAnchorConfig;
 import com.pinpoint.db.model.BusAnchorGroup;
 import com.pinpoint.db.model.BusAnchorSwitchArea;
 import com.pinpoint.db.model.BusAnchorSwitchAreaNeighbor;
-import com.pinpoint.db.model.BusAnchorVersion;
 import com.pinpoint.db.model.BusMap;
 import com.pinpoint.db.model.BusSwitchLine;
-import com.pinpoint.db.model.SysConfig;
 import com.pinpoint.db.repository.IAnchorDao;
 import com.pinpoint.db.repository.IAnchorGroupDao;
 import com.pinpoint.db.repository.ISwitchAreaDao;
-import com.pinpoint.global.AnchorVersionVariable;
 import com.pinpoint.global.GlobalVariables;
 import com.pinpoint.parser.toa.ModuleAnchorMap;
 import com.pinpoint.redis.RedisUtils;
 import com.pinpoint.service.BaseService;
-import com.pinpoint.service.IConfigService;
 import com.pinpoint.service.IMapService;
 import com.pinpoint.service.ISwitchAreaService;
 import com.pinpoint.utils.SpringUtil;
@@ -56,6 +64,12 @@ import lombok.extern.slf4j.Slf4j;
 @Transactional(rollbackOn = Exception.class)
 public class SwitchAreaServiceImpl extends BaseService implements ISwitchAreaService {
 
+    /*** 集群互斥任务的租约时长,毫秒*/
+    private static final long JOB_LEASE_MILLIS = 30000L;
+
+    /*** 新增边界线时的JDBC批量大小*/
+    private static final int LINE_BATCH_SIZE = 50;
+
     @Autowired
     private ISwitchAreaDao switchAreaDao;
 
@@ -65,21 +79,104 @@ public class SwitchAreaServiceImpl extends BaseService implements ISwitchAreaSer
     @Autowired
     private IAnchorGroupDao groupDao;
 
-    @Autowired
-    private IConfigService configService;
-
     @Autowired
     private IMapService mapService;
 
     @Autowired
     private RedisUtils redisUtils;
 
+    @Autowired
+    private SwitchAreaAutoBinder autoBinder;
+
+    @Autowired
+    private SwitchAreaValidator areaValidator;
+
+    @Autowired
+    private SwitchAreaNeighborInference neighborInference;
+
+    @Autowired
+    private SwitchAreaLocator areaLocator;
+
+    @Autowired
+    private AnchorRegionCache regionCache;
+
+    @Autowired
+    private AnchorGroupIndex groupIndex;
+
+    @Autowired
+    private SwitchAreaBindingWriter bindingWriter;
+
+    @Autowired
+    private SwitchAreaBulkDeleter bulkDeleter;
+
+    @Autowired
+    private SwitchAreaMapStats mapStats;
+
+    @Autowired
+    private SwitchAreaSearchIndex searchIndex;
+
+    @Autowired
+    private SwitchAreaBriefCache briefCache;
+
+    @Autowired
+    private SwitchAreaWriteBehind writeBehind;
+
+    /*** 为true时addAnchor、removeAnchor、addNeighbor、removeNeighbor、updateArea、mapLink的修改延迟合并写入*/
+    @Value("${area.write-behind.enabled:false}")
+    private boolean writeBehindEnabled;
+
+    @Autowired
+    private SwitchAreaOptimisticEditor optimisticEditor;
+
+    @Autowired
+    private SwitchAreaLockManager lockManager;
+
+    @Autowired
+    private SlotPlanner slotPlanner;
+
+    @Autowired
+    private SwitchAreaCapacity capacity;
+
+    @Autowired
+    private SysConfigCache configCache;
+
+    @Autowired
+    private RedisLeaseLock leaseLock;
+
+    @Autowired
+    private LeaseFence leaseFence;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
     protected Map<String, Object> areaInfoMap = new HashMap<>();
 
     private final String RUB = "yes";
 
     private Integer GraphicsType = null;
 
+    @PostConstruct
+    public void init() {
+        writeBehind.addFlushListener(areaPks -> {
+            groupIndex.invalidate();
+            capacity.markDirty(areaPks);
+            this.areaChanged(null);
+        });
+    }
+
+    /**
+     * 立即写入延迟写入队列中的区域编辑,在单独的事务中写入
+     *
+     * @return 写入的区域数量
+     */
+    @Transactional(Transactional.TxType.NOT_SUPPORTED)
+    public int flushPendingEdits() {
+        return writeBehind.flush();
+    }
+
     @Override
     public Page<BusAnchorSwitchArea> getAreasByPage(String areaId, Integer pageNo, Integer pageSize) {
         Pageable pageable = this.buildPageRequest(pageNo, pageSize, Sort.Direction.DESC, "id");
@@ -119,11 +216,59 @@ public class SwitchAreaServiceImpl extends BaseService implements ISwitchAreaSer
         return pages;
     }
 
+    /**
+     * 按主键游标分页查询区域,按id倒序;翻到第N页与第一页代价相同
+     *
+     * @param areaId    区域名称前缀
+     * @param cursor    上一页返回的游标,为null时查询第一页
+     * @param pageSize  每页数量
+     * @param withCount true时返回总数,总数由内存前缀索引计算
+     * @return 分页结果
+     */
+    public SwitchAreaKeysetPage<BusAnchorSwitchArea> searchAreas(String areaId, Long cursor, Integer pageSize, boolean withCount) {
+        int size = Objects.isNull(pageSize) || pageSize <= 0 ? 10 : pageSize;
+        StringBuilder jpql = new StringBuilder("select a from BusAnchorSwitchArea a where 1 = 1");
+        if (StringUtils.isNotBlank(areaId)) {
+            jpql.append(" and a.areaId like :areaId escape '" + SwitchAreaSearchIndex.LIKE_ESCAPE + "'");
+        }
+        if (Objects.nonNull(cursor)) {
+            jpql.append(" and a.id < :cursor");
+        }
+        jpql.append(" order by a.id desc");
+        TypedQuery<BusAnchorSwitchArea> query = entityManager.createQuery(jpql.toString(), BusAnchorSwitchArea.class);
+        if (StringUtils.isNotBlank(areaId)) {
+            query.setParameter("areaId", SwitchAreaSearchIndex.likePrefix(areaId));
+        }
+        if (Objects.nonNull(cursor)) {
+            query.setParameter("cursor", cursor);
+        }
+        List<BusAnchorSwitchArea> content = query.setMaxResults(size + 1).getResultList();
+        Long nextCursor = null;
+        if (content.size() > size) {
+            content = new ArrayList<>(content.subList(0, size));
+            nextCursor = content.get(size - 1).getId();
+        }
+        Integer total = withCount ? searchIndex.count(StringUtils.isBlank(areaId) ? "" : areaId) : null;
+        return new SwitchAreaKeysetPage<>(content, nextCursor, total);
+    }
+
+    /**
+     * 区域名称前缀联想,只读内存索引
+     *
+     * @param prefix 区域名称前缀
+     * @param limit  最多返回数量
+     * @return [id, areaId]
+     */
+    public List<Object[]> suggestAreaIds(String prefix, Integer limit) {
+        return searchIndex.suggest(prefix, Objects.isNull(limit) || limit <= 0 ? 10 : limit);
+    }
+
     @Override
     public int addArea(String areaId, Long areaNo, Long mapId, Long minZ, Long maxZ, String color, String pointsStr, Integer type, Integer leaveRSSIEnable, Integer bsAreaType, Integer graphicsType, Integer borderType, Integer disableWarning) {
         if (borderType.equals(1) && (StringUtils.isBlank(areaId) || StringUtils.isBlank(color) || StringUtils.isBlank(pointsStr))) {
             return GlobalVariables.NULL_PARAM;
         }
+        lockManager.lockMapsUntilCompletion(Collections.singletonList(mapId));
         BusAnchorSwitchArea existsArea = switchAreaDao.getAreaByAreaId(areaId);
         if (existsArea != null) {
             return GlobalVariables.DATA_EXISTS_ERROR;
@@ -152,6 +297,8 @@ public class SwitchAreaServiceImpl extends BaseService implements ISwitchAreaSer
             switchArea.setLines(formatLine(switchArea, pointsStr));
         }
         switchArea = switchAreaDao.save(switchArea);
+        this.areaChanged(switchArea.getMapId());
+        capacity.markDirty(Collections.singletonList(switchArea.getId()));
         if (switchArea.getId() > 0) {
             if (borderType.equals(1)) {
                 ModuleAnchorMap maMap = SpringUtil.getBean(ModuleAnchorMap.class);
@@ -167,24 +314,25 @@ public class SwitchAreaServiceImpl extends BaseService implements ISwitchAreaSer
 
     @Override
     public int delArea(Iterable<Long> ids) {
-        Iterable<BusAnchorSwitchArea> areas = switchAreaDao.findAllById(ids);
-        areas.forEach(area -> {
-            switchAreaDao.deleteNeighborAsNeighborById(area.getId());
-        });
-        if (null != areas) {
-            switchAreaDao.deleteAll(areas);
-            ModuleAnchorMap maMap = (ModuleAnchorMap) SpringUtil.getBean(ModuleAnchorMap.class);
-            for (BusAnchorSwitchArea area : areas) {
-                maMap.removeSwitchArea(area.getAreaNo());
-            }
-            return GlobalVariables.OPERATOR_SUCCESS;
+        List<Long> idList = new ArrayList<>();
+        if (null != ids) {
+            ids.forEach(id -> {
+                if (Objects.nonNull(id)) {
+                    idList.add(id);
+                }
+            });
+        }
+        if (!idList.isEmpty()) {
+            this.lockAreaMaps(idList);
         }
-        return GlobalVariables.OPERATOR_FAILED;
+        this.areasDeleted(bulkDeleter.delete(idList).keySet());
+        return GlobalVariables.OPERATOR_SUCCESS;
     }
 
     @Override
     public BusAnchorSwitchArea getArea(Long areaNo) {
         Optional<BusAnchorSwitchArea> optArea = switchAreaDao.findById(areaNo);
+        optArea.ifPresent(this::overlayColumns);
         return optArea.orElse(null);
     }
 
@@ -204,13 +352,23 @@ public class SwitchAreaServiceImpl extends BaseService implements ISwitchAreaSer
         Optional<BusAnchorSwitchArea> optArea = switchAreaDao.findById(areaNo);
         if (optArea.isPresent()) {
             BusAnchorSwitchArea area = optArea.get();
-            return area.getAnchors();
+            if (!writeBehind.hasPending(areaNo)) {
+                return area.getAnchors();
+            }
+            Set<Long> anchorPks = writeBehind.overlayAnchors(areaNo,
+                    area.getAnchors().stream().map(BusAnchor::getId).collect(Collectors.toList()));
+            Set<BusAnchor> anchors = new HashSet<>();
+            anchorDao.findAllById(anchorPks).forEach(anchors::add);
+            return anchors;
         }
         return null;
     }
 
     @Override
     public int addNeighbor(Long areaNo, Long neighborNo, String pointsStr) {
+        if (Objects.nonNull(areaNo)) {
+            this.lockAreaMaps(Collections.singletonList(areaNo));
+        }
         Optional<BusAnchorSwitchArea> optArea = switchAreaDao.findById(areaNo);
 
         if (!optArea.isPresent()) {
@@ -224,10 +382,8 @@ public class SwitchAreaServiceImpl extends BaseService implements ISwitchAreaSer
         }
         BusAnchorSwitchArea neighorArea = optNeighor.get();
         Set<BusAnchorSwitchAreaNeighbor> neighbors = area.getNeighbors();
-        for (BusAnchorSwitchAreaNeighbor neighbor : neighbors) {
-            if (neighbor.getNeighborArea().getId().longValue() == neighorArea.getId().longValue()) {
-                return GlobalVariables.DATA_EXISTS_ERROR;
-            }
+        if (this.neighborSeparators(area).containsKey(neighorArea.getId())) {
+            return GlobalVariables.DATA_EXISTS_ERROR;
         }
 
         if (StringUtils.isBlank(pointsStr)) {
@@ -240,6 +396,11 @@ public class SwitchAreaServiceImpl extends BaseService implements ISwitchAreaSer
         String[] startArr = start.split(",");
         String[] endArr = end.split(",");
 
+        if (writeBehindEnabled) {
+            writeBehind.addNeighbor(area.getId(), neighorArea.getId(), new long[]{NumberUtils.toLong(startArr[0]), NumberUtils.toLong(startArr[1]),
+                    NumberUtils.toLong(endArr[0]), NumberUtils.toLong(endArr[1])});
+            return GlobalVariables.OPERATOR_SUCCESS;
+        }
         BusAnchorSwitchAreaNeighbor newNeighbor = new BusAnchorSwitchAreaNeighbor();
         newNeighbor.setNeighborArea(neighorArea);
         newNeighbor.setSwitchArea(area);
@@ -249,17 +410,27 @@ public class SwitchAreaServiceImpl extends BaseService implements ISwitchAreaSer
         newNeighbor.setSepEndY(NumberUtils.toLong(endArr[1]));
         neighbors.add(newNeighbor);
         switchAreaDao.save(area);
+        areaLocator.invalidateNeighbors();
         return GlobalVariables.OPERATOR_SUCCESS;
     }
 
     @Override
     public int removeNeighbor(Long areaNo, Iterable<Long> ids) {
+        if (Objects.nonNull(areaNo)) {
+            this.lockAreaMaps(Collections.singletonList(areaNo));
+        }
         Optional<BusAnchorSwitchArea> optArea = switchAreaDao.findById(areaNo);
 
         if (!optArea.isPresent()) {
             return GlobalVariables.OPERATOR_NULL_RESULT;
         }
         BusAnchorSwitchArea area = optArea.get();
+        if (writeBehindEnabled) {
+            for (Long neighborPk : ids) {
+                writeBehind.removeNeighbor(area.getId(), neighborPk);
+            }
+            return GlobalVariables.OPERATOR_SUCCESS;
+        }
         Iterable<BusAnchorSwitchArea> removeNeighbors = switchAreaDao.findAllById(ids);
         Set<BusAnchorSwitchAreaNeighbor> neighbors = area.getNeighbors();
         List<BusAnchorSwitchAreaNeighbor> removeNeighborList = new ArrayList<BusAnchorSwitchAreaNeighbor>();
@@ -277,6 +448,7 @@ public class SwitchAreaServiceImpl extends BaseService implements ISwitchAreaSer
                 switchAreaDao.deleteNeighborById(_rmove.getId());
             }
             //switchAreaDao.save(area);
+            areaLocator.invalidateNeighbors();
         }
 
         return GlobalVariables.OPERATOR_SUCCESS;
@@ -284,72 +456,51 @@ public class SwitchAreaServiceImpl extends BaseService implements ISwitchAreaSer
 
     @Override
     public int addAnchor(Long areaId, Long anchorId) {
-        Optional<BusAnchorSwitchArea> optArea = switchAreaDao.findById(areaId);
-
-        if (optArea.isPresent()) {
-            BusAnchorSwitchArea area = optArea.get();
-            Optional<BusAnchor> anchorOpt = anchorDao.findById(anchorId);
-
-            if (anchorOpt.isPresent()) {
-                BusAnchor anchor = anchorOpt.get();
-                Set<BusAnchor> anchors = area.getAnchors();
-                if (null == anchors) {
-                    anchors = new HashSet<BusAnchor>();
-                    area.setAnchors(anchors);
-                }
-                boolean isContains = false;
-                for (BusAnchor _anchor : anchors) {
-                    if (_anchor.getId() == anchor.getId()) {
-                        isContains = true;
-                        break;
-                    }
-                }
-                if (!isContains) {
-                    anchors.add(anchor);
-                    switchAreaDao.save(area);
-                    ModuleAnchorMap maMap = (ModuleAnchorMap) SpringUtil.getBean(ModuleAnchorMap.class);
-                    maMap.addSwitchAreaAnchor(area.getAreaNo(), anchor.getAnchorId());
-                }
-                return GlobalVariables.OPERATOR_SUCCESS;
-            } else {
-                return GlobalVariables.OPERATOR_NULL_RESULT;
-            }
-        } else {
-            return GlobalVariables.OPERATOR_NULL_RESULT;
-        }
+        return this.mergeAnchor(areaId, anchorId, true);
     }
 
     @Override
     public int removeAnchor(Long areaId, Long anchorId) {
-        Optional<BusAnchorSwitchArea> areaOpt = switchAreaDao.findById(areaId);
+        return this.mergeAnchor(areaId, anchorId, false);
+    }
 
-        if (areaOpt.isPresent()) {
-            BusAnchorSwitchArea area = areaOpt.get();
-            Optional<BusAnchor> anchorOpt = anchorDao.findById(anchorId);
-
-            if (anchorOpt.isPresent()) {
-                BusAnchor anchor = anchorOpt.get();
-                Set<BusAnchor> anchors = area.getAnchors();
-                if (null == anchors) {
-                    anchors = new HashSet<BusAnchor>();
-                    area.setAnchors(anchors);
-                }
-                ModuleAnchorMap maMap = (ModuleAnchorMap) SpringUtil.getBean(ModuleAnchorMap.class);
-                for (BusAnchor _anchor : anchors) {
-                    if (_anchor.getId().equals(anchor.getId())) {
-                        anchors.remove(_anchor);
-                        maMap.removeSwitchAreaAnchor(area.getAreaNo(), _anchor.getAnchorId());
-                        break;
-                    }
-                }
-                switchAreaDao.save(area);
-                return GlobalVariables.OPERATOR_SUCCESS;
+    /**
+     * 单个基站增删按集合运算合并,不保存整个区域,不会与其他人的修改互相覆盖
+     */
+    private int mergeAnchor(Long areaId, Long anchorId, boolean add) {
+        if (Objects.isNull(areaId) || Objects.isNull(anchorId)) {
+            return GlobalVariables.OPERATOR_NULL_RESULT;
+        }
+        List<Object[]> areaRows = entityManager.createQuery("select a.id, a.mapId from BusAnchorSwitchArea a where a.id = :id", Object[].class)
+                .setParameter("id", areaId)
+                .getResultList();
+        if (areaRows.isEmpty() || !anchorDao.existsById(anchorId)) {
+            return GlobalVariables.OPERATOR_NULL_RESULT;
+        }
+        if (writeBehindEnabled) {
+            if (add) {
+                writeBehind.addAnchor(areaId, anchorId);
             } else {
-                return GlobalVariables.OPERATOR_NULL_RESULT;
+                writeBehind.removeAnchor(areaId, anchorId);
             }
-        } else {
-            return GlobalVariables.OPERATOR_NULL_RESULT;
+            return GlobalVariables.OPERATOR_SUCCESS;
         }
+        List<Long> anchorPks = Collections.singletonList(anchorId);
+        Long mapId = (Long) areaRows.get(0)[1];
+        Supplier<SwitchAreaBindingDiff> merge = () -> add ? optimisticEditor.mergeAnchors(areaId, anchorPks, Collections.emptyList())
+                : optimisticEditor.mergeAnchors(areaId, Collections.emptyList(), anchorPks);
+        SwitchAreaBindingDiff diff = Objects.isNull(mapId) ? merge.get() : lockManager.writeMap(mapId, merge);
+        if (!diff.getToAdd().isEmpty() || !diff.getToRemove().isEmpty()) {
+            capacity.apply(diff);
+            regionCache.invalidate(anchorId);
+            if (add) {
+                groupIndex.addAreaAnchor(areaId, anchorId);
+            } else {
+                groupIndex.removeAreaAnchor(areaId, anchorId);
+            }
+            mapStats.markDirty(mapId);
+        }
+        return GlobalVariables.OPERATOR_SUCCESS;
     }
 
     @Override
@@ -381,6 +532,17 @@ public class SwitchAreaServiceImpl extends BaseService implements ISwitchAreaSer
         return switchAreaDao.findAll(specification);
     }
 
+    /**
+     * 相邻区域下拉选择,只读内存中的轻量信息
+     *
+     * @param areaId  当前区域主键
+     * @param nearest true时只返回同一地图的区域,并按距离由近到远排序
+     * @return 除当前区域外的其他区域
+     */
+    public List<SwitchAreaBrief> getOtherSwitchAreaBrief(Long areaId, Boolean nearest) {
+        return briefCache.others(areaId, Boolean.TRUE.equals(nearest));
+    }
+
     @Override
     public List<BusAnchorSwitchArea> getSelectedNeighbor(Long areaId) {
         List<BusAnchorSwitchArea> _neighbors = new ArrayList<BusAnchorSwitchArea>();
@@ -388,6 +550,10 @@ public class SwitchAreaServiceImpl extends BaseService implements ISwitchAreaSer
 
         if (areaOpt.isPresent()) {
             BusAnchorSwitchArea area = areaOpt.get();
+            if (writeBehind.hasPending(areaId)) {
+                switchAreaDao.findAllById(this.neighborSeparators(area).keySet()).forEach(_neighbors::add);
+                return _neighbors;
+            }
             Set<BusAnchorSwitchAreaNeighbor> neighbors = area.getNeighbors();
             for (BusAnchorSwitchAreaNeighbor neighbor : neighbors) {
                 _neighbors.add(neighbor.getNeighborArea());
@@ -404,7 +570,25 @@ public class SwitchAreaServiceImpl extends BaseService implements ISwitchAreaSer
         }
         BusAnchorSwitchArea area = areaOpt.get();
         BusAnchorSwitchAreaNeighbor neighbor = null;
-
+        if (writeBehind.hasPending(areaId)) {
+            // 未写入的相邻区域返回不受管理的对象
+            long[] sep = this.neighborSeparators(area).get(neighorNo);
+            if (null == sep) {
+                return null;
+            }
+            Optional<BusAnchorSwitchArea> neighborArea = switchAreaDao.findById(neighorNo);
+            if (!neighborArea.isPresent()) {
+                return null;
+            }
+            neighbor = new BusAnchorSwitchAreaNeighbor();
+            neighbor.setSwitchArea(area);
+            neighbor.setNeighborArea(neighborArea.get());
+            neighbor.setSepStartX(sep[0]);
+            neighbor.setSepStartY(sep[1]);
+            neighbor.setSepEndX(sep[2]);
+            neighbor.setSepEndY(sep[3]);
+            return neighbor;
+        }
 
         Set<BusAnchorSwitchAreaNeighbor> neighbors = area.getNeighbors();
         for (BusAnchorSwitchAreaNeighbor _neighbor : neighbors) {
@@ -421,6 +605,7 @@ public class SwitchAreaServiceImpl extends BaseService implements ISwitchAreaSer
         if (StringUtils.isBlank(areaId) || StringUtils.isBlank(color)) {
             return GlobalVariables.NULL_PARAM;
         }
+        this.lockAreaMaps(Collections.singletonList(id));
         BusAnchorSwitchArea existsArea = switchAreaDao.getAreaByAreaId(areaId);
         if (existsArea != null) {
             if (existsArea.getId().longValue() != id.longValue()) {
@@ -436,6 +621,18 @@ public class SwitchAreaServiceImpl extends BaseService implements ISwitchAreaSer
         }
         Optional<BusAnchorSwitchArea> areaOpt = switchAreaDao.findById(id);
 
+        if (areaOpt.isPresent() && writeBehindEnabled) {
+            writeBehind.updateColumn(id, "area_id", areaId);
+            writeBehind.updateColumn(id, "area_no", areaNo);
+            writeBehind.updateColumn(id, "min_z", minZ);
+            writeBehind.updateColumn(id, "max_z", maxZ);
+            writeBehind.updateColumn(id, "color", color);
+            writeBehind.updateColumn(id, "type", type);
+            writeBehind.updateColumn(id, "leave_rssi_enable", leaveRSSIEnable);
+            writeBehind.updateColumn(id, "bs_area_type", bsAreaType);
+            writeBehind.updateColumn(id, "disable_warning", disableWarning);
+            return GlobalVariables.OPERATOR_SUCCESS;
+        }
         if (areaOpt.isPresent()) {
             BusAnchorSwitchArea area = areaOpt.get();
             area.setAreaId(areaId);
@@ -448,6 +645,7 @@ public class SwitchAreaServiceImpl extends BaseService implements ISwitchAreaSer
             area.setBsAreaType(bsAreaType);
             area.setDisableWarning(disableWarning);
             switchAreaDao.save(area);
+            this.areaChanged(area.getMapId());
             return GlobalVariables.OPERATOR_SUCCESS;
         } else {
             return GlobalVariables.OPERATOR_NULL_RESULT;
@@ -459,6 +657,7 @@ public class SwitchAreaServiceImpl extends BaseService implements ISwitchAreaSer
         if (null == areaId) {
             return GlobalVariables.NULL_PARAM;
         }
+        this.lockAreaMaps(Collections.singletonList(areaId));
         Optional<BusAnchorSwitchArea> areaOpt = switchAreaDao.findById(areaId);
         if (areaOpt.isPresent()) {
             BusAnchorSwitchArea area = areaOpt.get();
@@ -487,6 +686,7 @@ public class SwitchAreaServiceImpl extends BaseService implements ISwitchAreaSer
                     }
                     area.setAnchors(anchorSet);
                     switchAreaDao.save(area);
+                    this.bindingsChanged(area);
                     return GlobalVariables.OPERATOR_SUCCESS;
                 } else {
                 	area.setAnchors(null);
@@ -494,6 +694,7 @@ public class SwitchAreaServiceImpl extends BaseService implements ISwitchAreaSer
                 		area.setAnchorGroups(null);
                 	}
                 	switchAreaDao.save(area);
+                	this.bindingsChanged(area);
                     return GlobalVariables.OPERATOR_SUCCESS;
                 }
             } else {
@@ -502,6 +703,7 @@ public class SwitchAreaServiceImpl extends BaseService implements ISwitchAreaSer
             		area.setAnchorGroups(null);
             	}
             	switchAreaDao.save(area);
+            	this.bindingsChanged(area);
                 return GlobalVariables.OPERATOR_NULL_RESULT;
             }
         } else {
@@ -523,25 +725,19 @@ public class SwitchAreaServiceImpl extends BaseService implements ISwitchAreaSer
         if (id == null || StringUtils.isBlank(pointsStr)) {
             return GlobalVariables.NULL_PARAM;
         }
+        this.lockAreaMaps(Collections.singletonList(id));
         Optional<BusAnchorSwitchArea> areaOpt = switchAreaDao.findById(id);
         if (areaOpt.isPresent()) {
             BusAnchorSwitchArea area = areaOpt.get();
             area.setGraphicsType(graphicsType);
-            for (BusSwitchLine line : area.getLines()) {
-                switchAreaDao.deleteAreaLine(line.getId());
-            }
-            area.getLines().clear();
-            area.setLines(formatLine(area, pointsStr));
+            this.diffAreaLines(area, formatLine(area, pointsStr));
             switchAreaDao.save(area);
+            this.areaChanged(area.getMapId());
             if (area.getId() > 0) {
                 this.areaInfoMap.put("anchor", area);
                 this.areaInfoMap.put("lines", area.getLines());
                 if (this.RUB.equals(isRub)) {
-                    Set<BusAnchor> busAnchors = getAreaAnchors(area.getId());
-                    while (busAnchors.iterator().hasNext()) {
-                        BusAnchor anchor = busAnchors.iterator().next();
-                        this.removeAnchor(area.getId(), anchor.getId());
-                    }
+                    this.unbindAllAnchors(area);
                 }
             }
             return GlobalVariables.OPERATOR_SUCCESS;
@@ -550,6 +746,394 @@ public class SwitchAreaServiceImpl extends BaseService implements ISwitchAreaSer
         }
     }
 
+    /**
+     * 对比新旧边界线,只删除/新增发生变化的边
+     * 未变化的边(不区分方向)保留原记录,仅在顺序或方向变化时更新;新增的边按实体保存,flush时按JDBC批量插入
+     *
+     * @param area     区域
+     * @param newLines formatLine生成的新边界线
+     */
+    private void diffAreaLines(BusAnchorSwitchArea area, Set<BusSwitchLine> newLines) {
+        Set<BusSwitchLine> lines = area.getLines();
+        if (null == lines) {
+            lines = new HashSet<>();
+            area.setLines(lines);
+        }
+        Map<String, BusSwitchLine> oldLineMap = new HashMap<>();
+        List<Long> removeIds = new ArrayList<>();
+        List<BusSwitchLine> removeLines = new ArrayList<>();
+        for (BusSwitchLine line : lines) {
+            if (Objects.equals(line.getLineType(), 1) && null == oldLineMap.putIfAbsent(lineKey(line), line)) {
+                continue;
+            }
+            removeIds.add(line.getId());
+            removeLines.add(line);
+        }
+        List<BusSwitchLine> addLines = new ArrayList<>();
+        if (null != newLines) {
+            for (BusSwitchLine newLine : newLines) {
+                BusSwitchLine oldLine = oldLineMap.remove(lineKey(newLine));
+                if (null == oldLine) {
+                    addLines.add(newLine);
+                    continue;
+                }
+                if (!Objects.equals(oldLine.getPolyIndex(), newLine.getPolyIndex())) {
+                    oldLine.setPolyIndex(newLine.getPolyIndex());
+                }
+                if (!Objects.equals(oldLine.getSx(), newLine.getSx()) || !Objects.equals(oldLine.getSy(), newLine.getSy())) {
+                    oldLine.setSx(newLine.getSx());
+                    oldLine.setSy(newLine.getSy());
+                    oldLine.setTx(newLine.getTx());
+                    oldLine.setTy(newLine.getTy());
+                }
+            }
+        }
+        for (BusSwitchLine line : oldLineMap.values()) {
+            removeIds.add(line.getId());
+            removeLines.add(line);
+        }
+        if (!removeIds.isEmpty()) {
+            lines.removeAll(removeLines);
+            entityManager.createQuery("delete from BusSwitchLine l where l.id in :ids")
+                    .setParameter("ids", removeIds)
+                    .executeUpdate();
+        }
+        if (addLines.isEmpty()) {
+            return;
+        }
+        Session session = entityManager.unwrap(Session.class);
+        Integer jdbcBatchSize = session.getJdbcBatchSize();
+        session.setJdbcBatchSize(LINE_BATCH_SIZE);
+        try {
+            for (BusSwitchLine line : addLines) {
+                line.setArea(area);
+                entityManager.persist(line);
+                lines.add(line);
+            }
+            entityManager.flush();
+        } finally {
+            session.setJdbcBatchSize(jdbcBatchSize);
+        }
+    }
+
+    /**
+     * 边的两个端点按坐标排序后生成键,反向绘制的同一条边键相同
+     */
+    private String lineKey(BusSwitchLine line) {
+        long sx = line.getSx(), sy = line.getSy(), tx = line.getTx(), ty = line.getTy();
+        if (sx > tx || (sx == tx && sy > ty)) {
+            return tx + "," + ty + "," + sx + "," + sy;
+        }
+        return sx + "," + sy + "," + tx + "," + ty;
+    }
+
+    /**
+     * 一条语句解除区域下所有基站的绑定
+     *
+     * @param area 区域
+     */
+    private void unbindAllAnchors(BusAnchorSwitchArea area) {
+        Set<BusAnchor> anchors = area.getAnchors();
+        if (null == anchors || anchors.isEmpty()) {
+            return;
+        }
+        entityManager.flush();
+        entityManager.createNativeQuery("delete from bus_swith_area_anchors where area_no = :areaNo")
+                .setParameter("areaNo", area.getId())
+                .executeUpdate();
+        Long areaNo = area.getAreaNo();
+        List<String> anchorIds = new ArrayList<>(anchors.size());
+        for (BusAnchor anchor : anchors) {
+            anchorIds.add(anchor.getAnchorId());
+            regionCache.invalidate(anchor.getId());
+        }
+        TransactionHooks.afterCommit(() -> {
+            ModuleAnchorMap maMap = (ModuleAnchorMap) SpringUtil.getBean(ModuleAnchorMap.class);
+            for (String anchorId : anchorIds) {
+                maMap.removeSwitchAreaAnchor(areaNo, anchorId);
+            }
+        });
+        groupIndex.setAreaAnchors(area.getId(), new long[0]);
+        mapStats.markDirty(area.getMapId());
+        capacity.markDirty(Collections.singletonList(area.getId()));
+        entityManager.detach(area);
+    }
+
+    /**
+     * 根据基站坐标自动绑定基站到切换区域,只新增绑定
+     *
+     * @param mapIds 地图ID,以","分割,为空时处理全部地图
+     * @param apply  true写入数据库,false只返回差异预览
+     * @return mapId -> 绑定差异
+     */
+    public Map<Long, SwitchAreaBindingDiff> autoBindAnchors(String mapIds, boolean apply) {
+        return this.autoBindAnchors(mapIds, apply, false);
+    }
+
+    /**
+     * 根据基站坐标自动绑定基站到切换区域
+     *
+     * @param mapIds          地图ID,以","分割,为空时处理全部地图
+     * @param apply           true写入数据库,false只返回差异预览
+     * @param removeUnmatched true时同时解除基站坐标不在区域内的已有绑定,包括人工绑定
+     * @return mapId -> 绑定差异
+     */
+    public Map<Long, SwitchAreaBindingDiff> autoBindAnchors(String mapIds, boolean apply, boolean removeUnmatched) {
+        List<Long> idList = StringUtils.isBlank(mapIds) ? null : this.idTypeChange(mapIds);
+        if (!apply) {
+            return autoBinder.computeDiff(idList, removeUnmatched);
+        }
+        if (null == idList) {
+            lockManager.lockAllUntilCompletion();
+        } else {
+            lockManager.lockMapsUntilCompletion(idList);
+        }
+        Map<Long, SwitchAreaBindingDiff> diffs = this.clusterExclusive("auto_bind_anchors", 0L, lease -> autoBinder.apply(idList, removeUnmatched, lease), null);
+        if (null == diffs) {
+            log.warn("其它节点正在自动绑定基站,本次跳过");
+            return Collections.emptyMap();
+        }
+        regionCache.areaChanged();
+        groupIndex.invalidate();
+        mapStats.markDirty(null);
+        capacity.invalidate();
+        return diffs;
+    }
+
+    /**
+     * 持有集群租约执行,同一任务同一时间只在一个节点执行;有事务时租约在事务结束后释放
+     *
+     * @param waitMillis 等待租约的最长时间
+     * @param work       参数为持有的租约,写入前通过LeaseFence校验
+     * @param busy       未获得租约时的返回值
+     */
+    private <T> T clusterExclusive(String name, long waitMillis, Function<RedisLeaseLock.Lease, T> work, T busy) {
+        RedisLeaseLock.Lease lease = leaseLock.tryLock(name, JOB_LEASE_MILLIS, waitMillis);
+        if (null == lease) {
+            return busy;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    lease.close();
+                }
+            });
+            return work.apply(lease);
+        }
+        try (RedisLeaseLock.Lease held = lease) {
+            return work.apply(held);
+        }
+    }
+
+    /**
+     * 批量设置多个区域绑定的基站,只写入与现有绑定的差异
+     *
+     * @param desired 区域主键 -> 期望绑定的基站主键,空集合表示解除全部绑定
+     * @return 已写入的绑定差异
+     */
+    public SwitchAreaBindingDiff bindAnchors(Map<Long, ? extends Collection<Long>> desired) {
+        if (Objects.nonNull(desired)) {
+            this.lockAreaMaps(desired.keySet());
+        }
+        SwitchAreaBindingDiff diff = bindingWriter.bind(desired);
+        diff.getToAdd().forEach((areaPk, anchorPks) -> anchorPks.forEach(anchorPk -> {
+            groupIndex.addAreaAnchor(areaPk, anchorPk);
+            regionCache.invalidate(anchorPk);
+        }));
+        diff.getToRemove().forEach((areaPk, anchorPks) -> anchorPks.forEach(anchorPk -> {
+            groupIndex.removeAreaAnchor(areaPk, anchorPk);
+            regionCache.invalidate(anchorPk);
+        }));
+        if (!diff.getToAdd().isEmpty() || !diff.getToRemove().isEmpty()) {
+            mapStats.markDirty(null);
+            capacity.apply(diff);
+        }
+        return diff;
+    }
+
+    /**
+     * 按版本号修改区域字段,版本号与数据库不一致时不写入
+     *
+     * @param id      区域主键
+     * @param version 读取区域时的版本号
+     * @param columns 字段名 -> 值
+     * @return 版本冲突时返回OPERATOR_FAILED,区域名称或下发编号已被其他区域使用时返回DATA_EXISTS_ERROR
+     */
+    public int updateAreaColumns(Long id, Long version, Map<String, Object> columns) {
+        if (Objects.isNull(id) || Objects.isNull(version) || Objects.isNull(columns)) {
+            return GlobalVariables.NULL_PARAM;
+        }
+        this.lockAreaMaps(Collections.singletonList(id));
+        if (columns.containsKey("map_id")) {
+            Object mapId = columns.get("map_id");
+            lockManager.lockMapsUntilCompletion(Collections.singletonList(Objects.nonNull(mapId) && NumberUtils.isCreatable(mapId.toString())
+                    ? NumberUtils.createLong(mapId.toString()) : null));
+        }
+        Optional<BusAnchorSwitchArea> areaOpt = switchAreaDao.findById(id);
+        if (!areaOpt.isPresent()) {
+            return GlobalVariables.OPERATOR_NULL_RESULT;
+        }
+        Long oldAreaNo = areaOpt.get().getAreaNo();
+        Long newAreaNo = oldAreaNo;
+        if (columns.containsKey("area_id")) {
+            Object areaId = columns.get("area_id");
+            if (Objects.isNull(areaId) || StringUtils.isBlank(areaId.toString())) {
+                return GlobalVariables.NULL_PARAM;
+            }
+            BusAnchorSwitchArea existsArea = switchAreaDao.getAreaByAreaId(areaId.toString());
+            if (existsArea != null && existsArea.getId().longValue() != id.longValue()) {
+                return GlobalVariables.DATA_EXISTS_ERROR;
+            }
+        }
+        if (columns.containsKey("area_no")) {
+            Object areaNo = columns.get("area_no");
+            if (Objects.isNull(areaNo) || !NumberUtils.isCreatable(areaNo.toString())) {
+                return GlobalVariables.NULL_PARAM;
+            }
+            newAreaNo = NumberUtils.createLong(areaNo.toString());
+            BusAnchorSwitchArea existsArea = switchAreaDao.getAreaByAreaNo(newAreaNo);
+            if (existsArea != null && existsArea.getId().longValue() != id.longValue()) {
+                return GlobalVariables.DATA_EXISTS_ERROR;
+            }
+        }
+        if (Objects.isNull(optimisticEditor.updateColumns(id, version, columns))) {
+            return GlobalVariables.OPERATOR_FAILED;
+        }
+        if (!Objects.equals(oldAreaNo, newAreaNo)) {
+            this.areaRenumbered(id, oldAreaNo, newAreaNo);
+        }
+        this.areaChanged(null);
+        return GlobalVariables.OPERATOR_SUCCESS;
+    }
+
+    /**
+     * 区域下发编号修改后,在ModuleAnchorMap中把区域及其绑定基站移到新编号下
+     */
+    private void areaRenumbered(Long areaPk, Long oldAreaNo, Long newAreaNo) {
+        List<String> anchorIds = entityManager.createQuery("select a.anchorId from BusAnchorSwitchArea sa join sa.anchors a where sa.id = :id", String.class)
+                .setParameter("id", areaPk)
+                .getResultList();
+        TransactionHooks.afterCommit(() -> {
+            ModuleAnchorMap maMap = (ModuleAnchorMap) SpringUtil.getBean(ModuleAnchorMap.class);
+            if (Objects.nonNull(oldAreaNo)) {
+                maMap.removeSwitchArea(oldAreaNo);
+            }
+            maMap.addSwitchArea(newAreaNo);
+            for (String anchorId : anchorIds) {
+                maMap.addSwitchAreaAnchor(newAreaNo, anchorId);
+            }
+        });
+    }
+
+    /**
+     * 合并相邻区域增删,与其他人同时修改同一区域时不会互相覆盖
+     *
+     * @param id     区域主键
+     * @param add    相邻区域主键 -> [sepStartX, sepStartY, sepEndX, sepEndY]
+     * @param remove 相邻区域主键
+     * @return 写入的记录数
+     */
+    public int mergeAreaNeighbors(Long id, Map<Long, long[]> add, Collection<Long> remove) {
+        if (Objects.nonNull(id)) {
+            this.lockAreaMaps(Collections.singletonList(id));
+        }
+        int count = optimisticEditor.mergeNeighbors(id, null == add ? Collections.emptyMap() : add,
+                null == remove ? Collections.emptyList() : remove);
+        areaLocator.invalidateNeighbors();
+        return count;
+    }
+
+    /**
+     * 校验区域重叠、自相交、相邻间隙及分隔线
+     *
+     * @param mapIds 地图ID,以","分割,为空时校验全部地图
+     * @return mapId -> (问题类型 -> 区域编号)
+     */
+    public Map<Long, Map<String, String>> checkAreaTopology(String mapIds) {
+        List<Long> idList = StringUtils.isBlank(mapIds) ? null : this.idTypeChange(mapIds);
+        return areaValidator.validate(idList);
+    }
+
+    /**
+     * 根据区域公共边推断相邻区域,仅预览
+     *
+     * @param mapIds 地图ID,以","分割,为空时处理全部地图
+     * @return 推断出的相邻关系
+     */
+    public List<SwitchAreaNeighborInference.InferredNeighbor> inferNeighbors(String mapIds) {
+        List<Long> idList = StringUtils.isBlank(mapIds) ? null : this.idTypeChange(mapIds);
+        return neighborInference.infer(idList);
+    }
+
+    /**
+     * 根据区域公共边推断相邻区域并批量写入
+     *
+     * @param mapIds 地图ID,以","分割,为空时处理全部地图
+     * @return 新增的相邻记录数
+     */
+    public int applyInferredNeighbors(String mapIds) {
+        List<Long> idList = StringUtils.isBlank(mapIds) ? null : this.idTypeChange(mapIds);
+        return neighborInference.apply(idList);
+    }
+
+    /**
+     * 根据坐标查询所在区域,只检查z所在楼层的区域
+     *
+     * @param mapId 地图ID
+     * @param z     为null时检查该地图所有楼层
+     * @return 所在区域
+     */
+    public List<SwitchAreaShape> locateAreas(Long mapId, Long x, Long y, Long z) {
+        if (Objects.isNull(mapId) || Objects.isNull(x) || Objects.isNull(y)) {
+            return new ArrayList<>();
+        }
+        return areaLocator.locate(mapId, x, y, z);
+    }
+
+    /**
+     * 查询区域有效基站,包括绑定分组的成员,只读内存索引
+     *
+     * @param areaId 区域主键
+     * @return 基站主键
+     */
+    public long[] getEffectiveAnchors(Long areaId) {
+        if (Objects.isNull(areaId)) {
+            return new long[0];
+        }
+        return groupIndex.effectiveAnchors(areaId);
+    }
+
+    /**
+     * 基站配置(定位间隔、版本号等)修改后由基站编辑调用,刷新基站区域列表缓存及区域容量
+     *
+     * @param anchorPk 基站主键
+     */
+    public void anchorConfigChanged(Long anchorPk) {
+        regionCache.invalidate(anchorPk);
+        capacity.anchorChanged(anchorPk);
+    }
+
+    /**
+     * 基站分组新增、修改成员或删除后由分组编辑调用,同步分组索引及基站区域列表缓存
+     *
+     * @param groupId 分组主键
+     */
+    public void anchorGroupChanged(Long groupId) {
+        if (Objects.isNull(groupId)) {
+            return;
+        }
+        Optional<BusAnchorGroup> group = groupDao.findById(groupId);
+        if (group.isPresent()) {
+            Set<BusAnchor> anchors = group.get().getAnchors();
+            groupIndex.setGroupMembers(groupId, null == anchors ? new long[0]
+                    : anchors.stream().mapToLong(BusAnchor::getId).toArray());
+        } else {
+            groupIndex.removeGroup(groupId);
+        }
+        regionCache.areaChanged();
+    }
+
     @Override
     public Set<BusAnchor> getSwitchAreaAnchors(Long areaNo) {
         return switchAreaDao.getAnchorByAreaNo(areaNo);
@@ -565,57 +1149,78 @@ public class SwitchAreaServiceImpl extends BaseService implements ISwitchAreaSer
         return this.areaInfoMap;
     }
 
+    /**
+     * 租约在事务外占有,写入在单独的事务中执行并校验fencing token,事务结束后释放租约
+     *
+     * @throws CannotAcquireLockException 其它节点正在计算,等待超时
+     */
     @Override
+    @Transactional(Transactional.TxType.NOT_SUPPORTED)
     public void calculateSlotInc(Integer maxAnchor, Integer interval) {
+        RedisLeaseLock.Lease lease = leaseLock.tryLock("calculate_slot_inc", JOB_LEASE_MILLIS, 10000L);
+        if (null == lease) {
+            throw new CannotAcquireLockException("calculate_slot_inc is running on another node, maxAnchor=" + maxAnchor + ",interval=" + interval);
+        }
+        try (RedisLeaseLock.Lease held = lease) {
+            new TransactionTemplate(transactionManager).execute(status -> {
+                this.doCalculateSlotInc(maxAnchor, interval, held);
+                return null;
+            });
+        }
+    }
+
+    private void doCalculateSlotInc(Integer maxAnchor, Integer interval, RedisLeaseLock.Lease lease) {
         maxAnchor = Objects.isNull(maxAnchor) || maxAnchor < 6 ? 6 : maxAnchor;
-        SysConfig tempConfig = configService.findConfigByCode("max_anchor");
-        Integer oldMax = Objects.isNull(tempConfig) ? 6 : Integer.valueOf(tempConfig.getCfgVal());
-        if (maxAnchor > oldMax && Objects.nonNull(tempConfig)) {
-            tempConfig.setCfgVal(maxAnchor.toString());
-            configService.updateConfig(tempConfig);
-        }
-        Integer slotNumPeriod = null;
-        Integer slotSix = null;
+        Integer oldMax = Integer.valueOf(configCache.get("max_anchor", "6"));
+        if (maxAnchor > oldMax) {
+            leaseFence.check(lease);
+            configCache.update("max_anchor", maxAnchor.toString());
+        }
         Float locationFerquency;
-        Float slotNumRangeTime = null;
-        Float slotNumRespTime = null;
         Float slotNum;
-        String model = configService.findConfigByCode("slot_inc").getCfgVal();
-        switch (model) {
-            case "0":
-                slotNumPeriod = NumberUtils.toInt(GlobalVariables.SLOT_NUM_0.get("SLOT_NUM_0_PERIOD").toString());
-                slotNumRangeTime = Float.valueOf(GlobalVariables.SLOT_NUM_0.get("SLOT_NUM_0_RANGE_PRE6_TIME").toString());
-                slotNumRespTime = Float.valueOf(GlobalVariables.SLOT_NUM_0.get("SLOT_NUM_0_RESP_TIME").toString());
-                slotSix = NumberUtils.toInt(GlobalVariables.SLOT_NUM_0.get("SLOT_NUM_0_SIX").toString());
-                break;
-            case "1":
-                slotNumPeriod = NumberUtils.toInt(GlobalVariables.SLOT_NUM_10.get("SLOT_NUM_10_PERIOD").toString());
-                slotNumRangeTime = Float.parseFloat(GlobalVariables.SLOT_NUM_10.get("SLOT_NUM_10_RANGE_PRE6_TIME").toString());
-                slotNumRespTime = Float.valueOf(GlobalVariables.SLOT_NUM_10.get("SLOT_NUM_10_RESP_TIME").toString());
-                slotSix = NumberUtils.toInt(GlobalVariables.SLOT_NUM_10.get("SLOT_NUM_10_SIX").toString());
-                break;
-        }
+        String model = configCache.get("slot_inc");
+        SlotPlanner.SlotParams slotParams = SlotPlanner.slotParams(model);
         if (Objects.nonNull(interval)) {
             locationFerquency = NumberUtils.toFloat(interval.toString());
         } else {
-            Map<Integer, Integer> freMap = new HashMap<>();
-            this.anchorDao.findAll().forEach(anchor -> {
-                if (Objects.nonNull(anchor.getAnchorConfig().getAnchorInterval())) {
-                    Integer _interval = anchor.getAnchorConfig().getAnchorInterval();
-                    if (freMap.containsKey(_interval)) {
-                        freMap.put(_interval, freMap.get(_interval) + 1);
-                    } else {
-                        freMap.put(_interval, 1);
-                    }
-                }
-            });
-            locationFerquency = Collections.max(freMap.values()).floatValue();
+            // 取基站使用最多的定位间隔,与SlotPlanner一致
+            Integer dominant = slotPlanner.dominantInterval();
+            if (Objects.isNull(dominant) || dominant <= 0) {
+                log.warn("基站未配置定位间隔,不更新时隙数");
+                return;
+            }
+            locationFerquency = dominant.floatValue();
         }
-        slotNum = slotNumPeriod / (slotNumRangeTime + (maxAnchor - slotSix) * slotNumRespTime);
-        tempConfig = configService.findConfigByCode("timesolt_number");
+        slotNum = slotParams.slotNum(maxAnchor);
         Integer newVal = (int) Math.floor(slotNum / locationFerquency);
-        tempConfig.setCfgVal(newVal.toString());
-        configService.updateConfig(tempConfig);
+        leaseFence.check(lease);
+        configCache.update("timesolt_number", newVal.toString());
+    }
+
+    /**
+     * 模拟不同时隙参数组合,不写数据库
+     *
+     * @param maxAnchors 候选maxAnchor,以","分割,为空时取当前配置及区域最大基站数
+     * @param intervals  候选定位间隔,以","分割,为空时取基站最多使用的间隔
+     * @param models     候选slot_inc模式,以","分割,为空时取全部模式
+     * @return 按可行性、时隙数排序的方案
+     */
+    public List<SlotPlanner.SlotOption> planSlots(String maxAnchors, String intervals, String models) {
+        List<Integer> anchorList = StringUtils.isBlank(maxAnchors) ? null
+                : this.idTypeChange(maxAnchors).stream().map(Long::intValue).collect(Collectors.toList());
+        List<Integer> intervalList = StringUtils.isBlank(intervals) ? null
+                : this.idTypeChange(intervals).stream().map(Long::intValue).collect(Collectors.toList());
+        List<String> modelList = StringUtils.isBlank(models) ? null : Arrays.asList(StringUtils.split(models, ","));
+        return slotPlanner.plan(anchorList, intervalList, modelList);
+    }
+
+    /**
+     * 各区域定位容量报表,按剩余容量由少到多排序
+     *
+     * @return 区域容量
+     */
+    public List<SwitchAreaCapacity.AreaCapacity> getAreaCapacity() {
+        return capacity.report();
     }
 
     @Override
@@ -667,13 +1272,8 @@ public class SwitchAreaServiceImpl extends BaseService implements ISwitchAreaSer
     @Override
     public Map<String, Object> areaGroup() {
         Map<String, Object> result = new HashMap<>();
-        Specification<BusAnchorSwitchArea> area = (Root<BusAnchorSwitchArea> root, CriteriaQuery<?> query, CriteriaBuilder criteriaBuilder) -> {
-            Predicate queryPre = criteriaBuilder.equal(root.get("mapId"), criteriaBuilder.nullLiteral(Long.class));
-            return queryPre;
-        };
-        Long count = switchAreaDao.count(area);
-        Long areaNum = switchAreaDao.count();
-        if (count > 0) {
+        if (mapStats.getUnassigned() > 0) {
+            Long areaNum = mapStats.getTotal();
             Iterator<BusMap> mapIter = mapService.getAllMap().iterator();
             while (mapIter.hasNext()) {
                 BusMap map = mapIter.next();
@@ -681,23 +1281,26 @@ public class SwitchAreaServiceImpl extends BaseService implements ISwitchAreaSer
             }
             result.put("isNull", true);
         } else {
-            List<Map<String, Object>> list = switchAreaDao.areaGroup();
-            for (Map<String, Object> ml : list) {
-                result.put(ml.get("mapId").toString(), ml.get("count"));
-            }
+            mapStats.getStats().forEach((mapId, stats) -> result.put(mapId.toString(), stats.getAreaCount()));
             result.put("isNull", false);
         }
         return result;
     }
 
+    /**
+     * 按地图查询区域数量、绑定基站数量、边界线数量,读取内存中的统计结果
+     *
+     * @return mapId -> 统计结果
+     */
+    public Map<Long, SwitchAreaMapStats.MapStats> getMapStats() {
+        return mapStats.getStats();
+    }
+
     @Override
     public Integer delAreaByMapId(Long mapId) {
-        List<BusAnchorSwitchArea> allBusArea = this.getAreaByMapId(mapId, true);
-        List<Long> ids = new ArrayList<>();
-        for (BusAnchorSwitchArea area : allBusArea) {
-            ids.add(area.getId());
-        }
-        return delArea(ids);
+        lockManager.lockMapsUntilCompletion(Collections.singletonList(mapId));
+        this.areasDeleted(bulkDeleter.deleteByMap(mapId).keySet());
+        return GlobalVariables.OPERATOR_SUCCESS;
     }
 
     public List<BusAnchorSwitchArea> getAreaByMapId(Long mapId, Boolean isDel) {
@@ -773,40 +1376,136 @@ public class SwitchAreaServiceImpl extends BaseService implements ISwitchAreaSer
     @Override
     @Transactional(rollbackOn = Exception.class)
     public void mapLink(BusAnchorSwitchArea switchArea) {
+        if (writeBehindEnabled && Objects.nonNull(switchArea.getId()) && switchAreaDao.existsById(switchArea.getId())) {
+            writeBehind.updateColumn(switchArea.getId(), "map_id", switchArea.getMapId());
+            return;
+        }
+        if (Objects.nonNull(switchArea.getId())) {
+            this.lockAreaMaps(Collections.singletonList(switchArea.getId()));
+        }
+        lockManager.lockMapsUntilCompletion(Collections.singletonList(switchArea.getMapId()));
         switchAreaDao.save(switchArea);
+        this.areaChanged(null);
     }
 
     @Override
     public List<Object[]> getAreasByAnchorId(String ids) {
-        List<Long> idList = this.idTypeChange(ids);
-        List<Long> temp = null;
-        List<Object[]> regionObjArr = new ArrayList<>();
-        List<Object[]> objTemp = null;
-        AnchorVersionVariable anchorVersionVar = (AnchorVersionVariable) SpringUtil.getBean(AnchorVersionVariable.class);
-        BusAnchorVersion version = null;
-        int regionNum = 5;
-        Optional<BusAnchor> anchorOpt = null;
-        BusAnchor anchor = null;
-        BusAnchorConfig anchorConfig = null;
-        for (Long anchorPk : idList) {
-            regionNum = anchorVersionVar.getAnchorRegionNum();
-            anchorOpt = anchorDao.findById(anchorPk);
-            if (anchorOpt.isPresent()) {
-                anchor = anchorOpt.get();
-                anchorConfig = anchor.getAnchorConfig();
-                version = Objects.nonNull(anchorConfig.getVersionCode()) ? anchorVersionVar.getVersionSpecByVersionCode(anchorConfig.getVersionCode()) : null;
-                if (!ObjectUtils.isEmpty(version)) {
-                    regionNum = version.getRegionNum();
-                }
-                temp = new ArrayList<>();
-                temp.add(anchor.getId());
-                objTemp = switchAreaDao.getAreasByAnchorId(temp, regionNum);
-                if (!ObjectUtils.isEmpty(objTemp)) {
-                    regionObjArr.addAll(objTemp);
-                }
-            }
+        return regionCache.getRegions(this.idTypeChange(ids));
+    }
+
+    /**
+     * 区域绑定的基站或分组整体变化后刷新缓存及分组索引
+     */
+    private void bindingsChanged(BusAnchorSwitchArea area) {
+        regionCache.areaChanged();
+        mapStats.markDirty(area.getMapId());
+        capacity.markDirty(Collections.singletonList(area.getId()));
+        Set<BusAnchor> anchors = area.getAnchors();
+        groupIndex.setAreaAnchors(area.getId(), null == anchors ? new long[0]
+                : anchors.stream().mapToLong(BusAnchor::getId).toArray());
+        Set<BusAnchorGroup> groups = area.getAnchorGroups();
+        groupIndex.setAreaGroups(area.getId(), null == groups ? new long[0]
+                : groups.stream().mapToLong(BusAnchorGroup::getId).toArray());
+    }
+
+    /**
+     * 对区域所在地图加写锁直到事务结束,checkSeq的乐观读据此感知修改
+     */
+    private void lockAreaMaps(Collection<Long> areaPks) {
+        Set<Long> mapIds = new HashSet<>();
+        for (List<Long> chunk : SwitchAreaBindingWriter.chunks(areaPks)) {
+            mapIds.addAll(entityManager.createQuery("select distinct a.mapId from BusAnchorSwitchArea a where a.id in :ids", Long.class)
+                    .setParameter("ids", chunk)
+                    .getResultList());
+        }
+        lockManager.lockMapsUntilCompletion(mapIds);
+    }
+
+    /**
+     * 区域删除后同步分组索引及缓存
+     */
+    private void areasDeleted(Collection<Long> areaPks) {
+        if (areaPks.isEmpty()) {
+            return;
+        }
+        for (Long areaPk : areaPks) {
+            groupIndex.removeArea(areaPk);
+        }
+        capacity.markDirty(areaPks);
+        this.areaChanged(null);
+    }
+
+    /**
+     * 区域新增、删除或修改后刷新区域索引、基站区域列表缓存及地图统计
+     *
+     * @param mapId 区域所在地图,为null时全部地图重新统计
+     */
+    private void areaChanged(Long mapId) {
+        areaLocator.invalidate();
+        searchIndex.invalidate();
+        briefCache.invalidate();
+        regionCache.areaChanged();
+        mapStats.markDirty(mapId);
+    }
+
+    /**
+     * @return 包含未写入编辑的 相邻区域主键 -> [sepStartX, sepStartY, sepEndX, sepEndY]
+     */
+    private Map<Long, long[]> neighborSeparators(BusAnchorSwitchArea area) {
+        Map<Long, long[]> persisted = new HashMap<>();
+        for (BusAnchorSwitchAreaNeighbor neighbor : area.getNeighbors()) {
+            persisted.put(neighbor.getNeighborArea().getId(), new long[]{NumberUtils.toLong(String.valueOf(neighbor.getSepStartX())),
+                    NumberUtils.toLong(String.valueOf(neighbor.getSepStartY())), NumberUtils.toLong(String.valueOf(neighbor.getSepEndX())),
+                    NumberUtils.toLong(String.valueOf(neighbor.getSepEndY()))});
+        }
+        return writeBehind.overlayNeighbors(area.getId(), persisted);
+    }
+
+    /**
+     * 区域有未写入的字段修改时,与持久化上下文分离后叠加修改,避免提交时写回
+     */
+    private void overlayColumns(BusAnchorSwitchArea area) {
+        Map<String, Object> columns = writeBehind.pendingColumns(area.getId());
+        if (columns.isEmpty()) {
+            return;
         }
-        return regionObjArr;
+        entityManager.detach(area);
+        columns.forEach((column, value) -> {
+            switch (column) {
+                case "area_id":
+                    area.setAreaId((String) value);
+                    break;
+                case "area_no":
+                    area.setAreaNo((Long) value);
+                    break;
+                case "min_z":
+                    area.setMinZ((Long) value);
+                    break;
+                case "max_z":
+                    area.setMaxZ((Long) value);
+                    break;
+                case "color":
+                    area.setShowColor((String) value);
+                    break;
+                case "type":
+                    area.setType((Integer) value);
+                    break;
+                case "leave_rssi_enable":
+                    area.setLeaveRSSIEnable((Integer) value);
+                    break;
+                case "bs_area_type":
+                    area.setBsAreaType((Integer) value);
+                    break;
+                case "disable_warning":
+                    area.setDisableWarning((Integer) value);
+                    break;
+                case "map_id":
+                    area.setMapId((Long) value);
+                    break;
+                default:
+                    break;
+            }
+        });
     }
 
     public List<Long> idTypeChange(String anchorIds) {
@@ -822,62 +1521,69 @@ public class SwitchAreaServiceImpl extends BaseService implements ISwitchAreaSer
 
     @Override
     public Map<String, Object> checkSeq() {
-        GlobalVariables.rwl.readLock().lock();
-        Map<String, Object> resultMap = null;
         try {
             Thread.sleep(1000L);
-            resultMap = new HashMap<>();
-            List<Object[]> objects = switchAreaDao.checkSeq();
-            List<Long> ids = switchAreaDao.checkIsOneAnchorIII();
-            for (Object[] object : objects) {
-                if (Objects.nonNull(object[1])) {
-                    List<String> seqList = Arrays.asList(object[1].toString().split(","));
-                    Set<String> seqSet = new HashSet<>(seqList);
-                    if (seqList.size() != seqSet.size()) {
-                        if (resultMap.containsKey("Repeat")) {
-                            String _repeat = resultMap.get("Repeat").toString();
-                            _repeat = _repeat.concat("、").concat(object[0].toString());
-                            resultMap.put("Repeat", _repeat);
-                        } else {
-                            resultMap.put("Repeat", object[0].toString());
-                        }
-                    }
-                    if (seqList.contains("0")) {
-                        if (resultMap.containsKey("Zero")) {
-                            String _zero = resultMap.get("Zero").toString();
-                            _zero = _zero.concat("、").concat(object[0].toString());
-                            resultMap.put("Zero", _zero);
-                        } else {
-                            resultMap.put("Zero", object[0].toString());
-                        }
-                    }
-                }
-                if (!object[2].equals(object[3])) {
-                    if (resultMap.containsKey("Null")) {
-                        String _null = resultMap.get("Null").toString();
-                        _null = _null.concat("、").concat(object[0].toString());
-                        resultMap.put("Null", _null);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return null;
+        }
+        // 不再持有GlobalVariables.rwl读锁:校验只读取已提交的数据、不修改任何状态,
+        // 模块外持有rwl写锁的修改在各自事务中原子提交,校验最多读到修改前的结果,下次校验即可发现;
+        // 区域修改持有分段写锁到提交,乐观读期间有修改时重试,仍有修改时返回最近一次结果,不阻塞任何楼层的修改
+        return lockManager.optimisticReadAll(this::collectSeqProblems, 3);
+    }
+
+    /**
+     * 统计下发编号重复、为0、缺失及最大数量问题,可能因写入冲突被执行两次
+     */
+    private Map<String, Object> collectSeqProblems() {
+        Map<String, Object> resultMap = new HashMap<>();
+        List<Object[]> objects = switchAreaDao.checkSeq();
+        List<Long> ids = switchAreaDao.checkIsOneAnchorIII();
+        for (Object[] object : objects) {
+            if (Objects.nonNull(object[1])) {
+                List<String> seqList = Arrays.asList(object[1].toString().split(","));
+                Set<String> seqSet = new HashSet<>(seqList);
+                if (seqList.size() != seqSet.size()) {
+                    if (resultMap.containsKey("Repeat")) {
+                        String _repeat = resultMap.get("Repeat").toString();
+                        _repeat = _repeat.concat("、").concat(object[0].toString());
+                        resultMap.put("Repeat", _repeat);
                     } else {
-                        resultMap.put("Null", object[0].toString());
+                        resultMap.put("Repeat", object[0].toString());
                     }
                 }
-                if (Integer.parseInt(object[4].toString()) > 1) {
-                    if (resultMap.containsKey("MaxCount")) {
-                        String _maxCount = resultMap.get("MaxCount").toString();
-                        _maxCount = _maxCount.concat("、").concat(object[0].toString());
-                        resultMap.put("MaxCount", _maxCount);
+                if (seqList.contains("0")) {
+                    if (resultMap.containsKey("Zero")) {
+                        String _zero = resultMap.get("Zero").toString();
+                        _zero = _zero.concat("、").concat(object[0].toString());
+                        resultMap.put("Zero", _zero);
                     } else {
-                        resultMap.put("MaxCount", object[0].toString());
+                        resultMap.put("Zero", object[0].toString());
                     }
                 }
             }
-            if (Objects.nonNull(ids) && !ids.isEmpty()) {
-                resultMap.put("AnchorIII", StringUtils.join(ids, ","));
+            if (!object[2].equals(object[3])) {
+                if (resultMap.containsKey("Null")) {
+                    String _null = resultMap.get("Null").toString();
+                    _null = _null.concat("、").concat(object[0].toString());
+                    resultMap.put("Null", _null);
+                } else {
+                    resultMap.put("Null", object[0].toString());
+                }
             }
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } finally {
-            GlobalVariables.rwl.readLock().unlock();
+            if (Integer.parseInt(object[4].toString()) > 1) {
+                if (resultMap.containsKey("MaxCount")) {
+                    String _maxCount = resultMap.get("MaxCount").toString();
+                    _maxCount = _maxCount.concat("、").concat(object[0].toString());
+                    resultMap.put("MaxCount", _maxCount);
+                } else {
+                    resultMap.put("MaxCount", object[0].toString());
+                }
+            }
+        }
+        if (Objects.nonNull(ids) && !ids.isEmpty()) {
+            resultMap.put("AnchorIII", StringUtils.join(ids, ","));
         }
         return resultMap;
     }
@@ -0,0 +1,316 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+
+import com.pinpoint.db.model.BusAnchorSwitchArea;
+import com.pinpoint.db.model.BusSwitchLine;
+
+/**
+ * 切换区域几何快照
+ * 由区域的边界线(lineType=1)按polyIndex还原成顶点环,供空间计算使用,不持有JPA实体
+ *
+ * @author jobs
+ */
+public class SwitchAreaShape {
+
+    private final Long id;
+
+    private final Long areaNo;
+
+    private final String areaId;
+
+    private final Long mapId;
+
+    private final long minZ;
+
+    private final long maxZ;
+
+    private final long[] xs;
+
+    private final long[] ys;
+
+    private final long minX;
+
+    private final long minY;
+
+    private final long maxX;
+
+    private final long maxY;
+
+    private boolean disableWarning;
+
+    private Integer type;
+
+    private Integer bsAreaType;
+
+    public SwitchAreaShape(Long id, Long areaNo, String areaId, Long mapId, Long minZ, Long maxZ, long[] xs, long[] ys) {
+        this.id = id;
+        this.areaNo = areaNo;
+        this.areaId = areaId;
+        this.mapId = mapId;
+        this.minZ = Objects.isNull(minZ) ? Long.MIN_VALUE : minZ;
+        this.maxZ = Objects.isNull(maxZ) ? Long.MAX_VALUE : maxZ;
+        this.xs = xs;
+        this.ys = ys;
+        long _minX = Long.MAX_VALUE, _minY = Long.MAX_VALUE;
+        long _maxX = Long.MIN_VALUE, _maxY = Long.MIN_VALUE;
+        for (int i = 0; i < xs.length; i++) {
+            _minX = Math.min(_minX, xs[i]);
+            _minY = Math.min(_minY, ys[i]);
+            _maxX = Math.max(_maxX, xs[i]);
+            _maxY = Math.max(_maxY, ys[i]);
+        }
+        this.minX = _minX;
+        this.minY = _minY;
+        this.maxX = _maxX;
+        this.maxY = _maxY;
+    }
+
+    /**
+     * 根据区域及其边界线构造几何快照
+     *
+     * @param area  区域
+     * @param lines 区域边界线,可以为null
+     * @return 顶点数不足3个时返回null
+     */
+    public static SwitchAreaShape of(BusAnchorSwitchArea area, Collection<BusSwitchLine> lines) {
+        if (null == lines) {
+            return null;
+        }
+        List<BusSwitchLine> ring = new ArrayList<>();
+        for (BusSwitchLine line : lines) {
+            if (Objects.equals(line.getLineType(), 1)) {
+                ring.add(line);
+            }
+        }
+        if (ring.size() < 3) {
+            return null;
+        }
+        ring.sort(Comparator.comparing(BusSwitchLine::getPolyIndex, Comparator.nullsLast(Comparator.naturalOrder())));
+        long[] xs = new long[ring.size()];
+        long[] ys = new long[ring.size()];
+        for (int i = 0; i < ring.size(); i++) {
+            xs[i] = ring.get(i).getSx();
+            ys[i] = ring.get(i).getSy();
+        }
+        SwitchAreaShape shape = new SwitchAreaShape(area.getId(), area.getAreaNo(), area.getAreaId(), area.getMapId(), area.getMinZ(), area.getMaxZ(), xs, ys);
+        shape.setDisableWarning(Objects.equals(area.getDisableWarning(), 1));
+        shape.setType(area.getType());
+        shape.setBsAreaType(area.getBsAreaType());
+        return shape;
+    }
+
+    /**
+     * 判断点是否在区域内(含边界),不校验z
+     */
+    public boolean contains(long x, long y) {
+        if (x < minX || x > maxX || y < minY || y > maxY) {
+            return false;
+        }
+        boolean inside = false;
+        int n = xs.length;
+        for (int i = 0, j = n - 1; i < n; j = i++) {
+            if (onSegment(xs[j], ys[j], xs[i], ys[i], x, y)) {
+                return true;
+            }
+            if ((ys[i] > y) != (ys[j] > y)) {
+                double crossX = (double) (xs[j] - xs[i]) * (y - ys[i]) / (double) (ys[j] - ys[i]) + xs[i];
+                if (x < crossX) {
+                    inside = !inside;
+                }
+            }
+        }
+        return inside;
+    }
+
+    /**
+     * 判断点是否在区域内(含边界),并校验z是否落在[minZ, maxZ]内
+     */
+    public boolean contains(long x, long y, Long z) {
+        return containsZ(z) && contains(x, y);
+    }
+
+    /**
+     * 判断点是否严格在区域内部(不含边界)
+     */
+    public boolean containsStrict(long x, long y) {
+        return !onBoundary(x, y) && contains(x, y);
+    }
+
+    /**
+     * 判断点是否在区域边界上
+     */
+    public boolean onBoundary(long x, long y) {
+        if (x < minX || x > maxX || y < minY || y > maxY) {
+            return false;
+        }
+        int n = xs.length;
+        for (int i = 0, j = n - 1; i < n; j = i++) {
+            if (onSegment(xs[j], ys[j], xs[i], ys[i], x, y)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 判断线段是否完全落在区域边界上(端点及中点均在边界上)
+     */
+    public boolean segmentOnBoundary(long ax, long ay, long bx, long by) {
+        if (!onBoundary(ax, ay) || !onBoundary(bx, by)) {
+            return false;
+        }
+        // 中点坐标可能不是整数,放大两倍后在整数坐标下判断
+        long mx = ax + bx, my = ay + by;
+        int n = xs.length;
+        for (int i = 0, j = n - 1; i < n; j = i++) {
+            if (onSegment(xs[j] * 2, ys[j] * 2, xs[i] * 2, ys[i] * 2, mx, my)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 按两倍坐标判断点的位置,用于中点等非整数坐标
+     *
+     * @param x2 两倍x坐标
+     * @param y2 两倍y坐标
+     * @return 1 严格在内部,0 在边界上,-1 在外部
+     */
+    public int locateDoubled(long x2, long y2) {
+        if (x2 < minX * 2 || x2 > maxX * 2 || y2 < minY * 2 || y2 > maxY * 2) {
+            return -1;
+        }
+        boolean inside = false;
+        int n = xs.length;
+        for (int i = 0, j = n - 1; i < n; j = i++) {
+            long xi = xs[i] * 2, yi = ys[i] * 2, xj = xs[j] * 2, yj = ys[j] * 2;
+            if (onSegment(xj, yj, xi, yi, x2, y2)) {
+                return 0;
+            }
+            if ((yi > y2) != (yj > y2)) {
+                double crossX = (double) (xj - xi) * (y2 - yi) / (double) (yj - yi) + xi;
+                if (x2 < crossX) {
+                    inside = !inside;
+                }
+            }
+        }
+        return inside ? 1 : -1;
+    }
+
+    public boolean containsZ(Long z) {
+        return Objects.isNull(z) || (z >= minZ && z <= maxZ);
+    }
+
+    static boolean onSegment(long ax, long ay, long bx, long by, long px, long py) {
+        if (cross(ax, ay, bx, by, px, py) != 0) {
+            return false;
+        }
+        return px >= Math.min(ax, bx) && px <= Math.max(ax, bx) && py >= Math.min(ay, by) && py <= Math.max(ay, by);
+    }
+
+    /**
+     * 判断两条线段是否在端点以外的位置相交(真相交)
+     */
+    static boolean properCross(long ax, long ay, long bx, long by, long cx, long cy, long dx, long dy) {
+        long d1 = cross(cx, cy, dx, dy, ax, ay);
+        long d2 = cross(cx, cy, dx, dy, bx, by);
+        long d3 = cross(ax, ay, bx, by, cx, cy);
+        long d4 = cross(ax, ay, bx, by, dx, dy);
+        return ((d1 > 0 && d2 < 0) || (d1 < 0 && d2 > 0)) && ((d3 > 0 && d4 < 0) || (d3 < 0 && d4 > 0));
+    }
+
+    /**
+     * 判断两条线段是否有公共点(含端点接触及共线重叠)
+     */
+    static boolean intersects(long ax, long ay, long bx, long by, long cx, long cy, long dx, long dy) {
+        if (properCross(ax, ay, bx, by, cx, cy, dx, dy)) {
+            return true;
+        }
+        return onSegment(cx, cy, dx, dy, ax, ay) || onSegment(cx, cy, dx, dy, bx, by)
+                || onSegment(ax, ay, bx, by, cx, cy) || onSegment(ax, ay, bx, by, dx, dy);
+    }
+
+    static long cross(long ax, long ay, long bx, long by, long px, long py) {
+        return (bx - ax) * (py - ay) - (by - ay) * (px - ax);
+    }
+
+    public int size() {
+        return xs.length;
+    }
+
+    public long x(int i) {
+        return xs[i];
+    }
+
+    public long y(int i) {
+        return ys[i];
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Long getAreaNo() {
+        return areaNo;
+    }
+
+    public String getAreaId() {
+        return areaId;
+    }
+
+    public Long getMapId() {
+        return mapId;
+    }
+
+    public long getMinZ() {
+        return minZ;
+    }
+
+    public long getMaxZ() {
+        return maxZ;
+    }
+
+    public long getMinX() {
+        return minX;
+    }
+
+    public long getMinY() {
+        return minY;
+    }
+
+    public long getMaxX() {
+        return maxX;
+    }
+
+    public long getMaxY() {
+        return maxY;
+    }
+
+    public boolean isDisableWarning() {
+        return disableWarning;
+    }
+
+    public void setDisableWarning(boolean disableWarning) {
+        this.disableWarning = disableWarning;
+    }
+
+    public Integer getType() {
+        return type;
+    }
+
+    public void setType(Integer type) {
+        this.type = type;
+    }
+
+    public Integer getBsAreaType() {
+        return bsAreaType;
+    }
+
+    public void setBsAreaType(Integer bsAreaType) {
+        this.bsAreaType = bsAreaType;
+    }
+}
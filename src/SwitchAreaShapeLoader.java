@@ -0,0 +1,98 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * 批量加载切换区域几何快照
+ * 区域与边界线各一条投影查询,不加载实体,避免EAGER的anchors及逐个区域延迟加载lines
+ *
+ * @author jobs
+ */
+@Component
+public class SwitchAreaShapeLoader {
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * 按地图分组加载区域几何
+     *
+     * @param mapIds 地图ID,为空时加载全部地图
+     * @return mapId -> 区域几何列表
+     */
+    public Map<Long, List<SwitchAreaShape>> loadByMap(Collection<Long> mapIds) {
+        List<Object[]> areas;
+        List<Object[]> lines;
+        if (Objects.isNull(mapIds) || mapIds.isEmpty()) {
+            areas = entityManager.createQuery("select a.id, a.areaNo, a.areaId, a.mapId, a.minZ, a.maxZ, a.disableWarning, a.type, a.bsAreaType from BusAnchorSwitchArea a where a.mapId is not null", Object[].class)
+                    .getResultList();
+            lines = entityManager.createQuery("select l.area.id, l.polyIndex, l.sx, l.sy from BusSwitchLine l where l.lineType = 1", Object[].class)
+                    .getResultList();
+        } else {
+            areas = entityManager.createQuery("select a.id, a.areaNo, a.areaId, a.mapId, a.minZ, a.maxZ, a.disableWarning, a.type, a.bsAreaType from BusAnchorSwitchArea a where a.mapId in :mapIds", Object[].class)
+                    .setParameter("mapIds", mapIds)
+                    .getResultList();
+            lines = entityManager.createQuery("select l.area.id, l.polyIndex, l.sx, l.sy from BusSwitchLine l where l.lineType = 1 and l.area.mapId in :mapIds", Object[].class)
+                    .setParameter("mapIds", mapIds)
+                    .getResultList();
+        }
+        Map<Long, List<Object[]>> lineMap = new HashMap<>();
+        for (Object[] line : lines) {
+            lineMap.computeIfAbsent((Long) line[0], k -> new ArrayList<>()).add(line);
+        }
+        Map<Long, List<SwitchAreaShape>> result = new HashMap<>();
+        for (Object[] area : areas) {
+            List<Object[]> ring = lineMap.get((Long) area[0]);
+            if (null == ring || ring.size() < 3) {
+                continue;
+            }
+            ring.sort(Comparator.comparing(line -> (Integer) line[1], Comparator.nullsLast(Comparator.naturalOrder())));
+            long[] xs = new long[ring.size()];
+            long[] ys = new long[ring.size()];
+            for (int i = 0; i < ring.size(); i++) {
+                xs[i] = (Long) ring.get(i)[2];
+                ys[i] = (Long) ring.get(i)[3];
+            }
+            SwitchAreaShape shape = new SwitchAreaShape((Long) area[0], (Long) area[1], (String) area[2], (Long) area[3], (Long) area[4], (Long) area[5], xs, ys);
+            shape.setDisableWarning(Objects.equals(area[6], 1));
+            shape.setType((Integer) area[7]);
+            shape.setBsAreaType((Integer) area[8]);
+            result.computeIfAbsent(shape.getMapId(), k -> new ArrayList<>()).add(shape);
+        }
+        return result;
+    }
+
+    /**
+     * 按地图分组加载区域相邻关系
+     *
+     * @param mapIds 地图ID,为空时加载全部地图
+     * @return mapId -> [区域主键, 相邻区域主键, sepStartX, sepStartY, sepEndX, sepEndY, mapId]
+     */
+    public Map<Long, List<Object[]>> loadNeighborsByMap(Collection<Long> mapIds) {
+        List<Object[]> rows;
+        if (Objects.isNull(mapIds) || mapIds.isEmpty()) {
+            rows = entityManager.createQuery("select n.switchArea.id, n.neighborArea.id, n.sepStartX, n.sepStartY, n.sepEndX, n.sepEndY, n.switchArea.mapId from BusAnchorSwitchAreaNeighbor n", Object[].class)
+                    .getResultList();
+        } else {
+            rows = entityManager.createQuery("select n.switchArea.id, n.neighborArea.id, n.sepStartX, n.sepStartY, n.sepEndX, n.sepEndY, n.switchArea.mapId from BusAnchorSwitchAreaNeighbor n where n.switchArea.mapId in :mapIds", Object[].class)
+                    .setParameter("mapIds", mapIds)
+                    .getResultList();
+        }
+        Map<Long, List<Object[]>> result = new HashMap<>();
+        for (Object[] row : rows) {
+            if (null != row[6]) {
+                result.computeIfAbsent((Long) row[6], k -> new ArrayList<>()).add(row);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,291 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 基于Redis stream的定位数据及区域事件管道
+ * 定位结果按标签ID散列写入POSITION_PARTITIONS个位置stream,每个分区固定由一个节点按顺序消费
+ * (partition % nodeCount == nodeIndex),同一标签的定位结果始终由同一节点、按写入顺序交给区域事件引擎;
+ * 一批定位结果先写入历史轨迹,在引擎处理完、产生的事件写入事件stream后才确认,节点退出时未确认的消息在重启后重放。
+ * 事件由单独的线程写入事件stream,不占用引擎的分区线程
+ *
+ * @author jobs
+ */
+@Slf4j
+@Component
+public class SwitchAreaStreamPipeline {
+
+    /*** 位置stream前缀,分区号追加在后面*/
+    public static final String POSITION_STREAM = "stream:tag:position";
+
+    /*** 位置stream分区数,修改后需清空原有stream*/
+    public static final int POSITION_PARTITIONS = 16;
+
+    public static final String AREA_EVENT_STREAM = "stream:area:event";
+
+    public static final String ENGINE_GROUP = "area-engine";
+
+    /*** stream保留的最大条数*/
+    private static final long MAX_LEN = 1000000L;
+
+    private static final int BATCH_SIZE = 500;
+
+    /*** 等待一批定位结果处理完成的最长时间,超时不确认并重试*/
+    private static final long ACK_TIMEOUT_MILLIS = 30000L;
+
+    @Autowired
+    private RedisUtils redisUtils;
+
+    @Autowired
+    private SwitchAreaEventEngine eventEngine;
+
+    @Autowired
+    private TagTrackStore trackStore;
+
+    /*** 本节点序号,从0开始*/
+    @Value("${area.stream.node-index:0}")
+    private int nodeIndex;
+
+    /*** 消费位置stream的节点总数*/
+    @Value("${area.stream.node-count:1}")
+    private int nodeCount;
+
+    private final String consumerName = ManagementFactory.getRuntimeMXBean().getName();
+
+    private final List<RedisStreamWorker> workers = new CopyOnWriteArrayList<>();
+
+    /*** 待写入的事件列表或写入屏障;每个分区等待屏障后才读取下一批,队列长度受分区数及批量大小限制*/
+    private final BlockingQueue<Object> eventQueue = new LinkedBlockingQueue<>();
+
+    private volatile boolean running = true;
+
+    @PostConstruct
+    public void init() {
+        eventEngine.addListener(eventQueue::offer);
+        Thread publisher = new Thread(this::publishLoop, "area-event-publisher");
+        publisher.setDaemon(true);
+        publisher.start();
+        for (int partition = 0; partition < POSITION_PARTITIONS; partition++) {
+            if (partition % nodeCount == nodeIndex) {
+                // 分区固定由一个节点消费,消费者名称按分区固定,替换节点后可重放未确认的消息
+                startWorker(positionStream(partition), ENGINE_GROUP, "engine-" + partition, true, this::processPositions);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        running = false;
+        workers.forEach(RedisStreamWorker::stop);
+    }
+
+    public static String positionStream(int partition) {
+        return POSITION_STREAM + ":" + partition;
+    }
+
+    public static int partitionOf(long tagId) {
+        return (AreaTransitionTracker.mix(tagId) & Integer.MAX_VALUE) % POSITION_PARTITIONS;
+    }
+
+    /**
+     * 写入一条定位结果
+     */
+    public void publishPosition(TagPosition position) {
+        Map<String, Object> body = new HashMap<>();
+        body.put("tagId", String.valueOf(position.getTagId()));
+        body.put("mapId", String.valueOf(position.getMapId()));
+        body.put("x", String.valueOf(position.getX()));
+        body.put("y", String.valueOf(position.getY()));
+        body.put("z", Objects.isNull(position.getZ()) ? "" : String.valueOf(position.getZ()));
+        body.put("ts", String.valueOf(position.getTimestamp()));
+        redisUtils.xAdd(positionStream(partitionOf(position.getTagId())), body, MAX_LEN);
+    }
+
+    /**
+     * 写入历史轨迹,引擎处理完这批定位结果、产生的事件写入事件stream后返回全部ID,超时或中断时返回空列表
+     * 轨迹写入失败时抛出异常,整批未进入引擎,重试时重复写入的成员相同不会产生重复轨迹
+     */
+    private List<RecordId> processPositions(List<MapRecord<String, Object, Object>> records) {
+        List<TagPosition> positions = new ArrayList<>(records.size());
+        List<RecordId> ids = new ArrayList<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            positions.add(toPosition(record.getValue()));
+            ids.add(record.getId());
+        }
+        trackStore.append(positions);
+        try {
+            SwitchAreaEventEngine.Barrier processed = eventEngine.submitAll(positions);
+            if (!processed.await(ACK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                log.warn("区域事件引擎处理超时,稍后重试" + records.size() + "条定位结果");
+                return Collections.emptyList();
+            }
+            if (processed.isFailed()) {
+                log.warn("区域事件引擎处理异常,稍后重试" + records.size() + "条定位结果");
+                return Collections.emptyList();
+            }
+            CountDownLatch published = new CountDownLatch(1);
+            eventQueue.offer(published);
+            if (!published.await(ACK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                log.warn("区域事件写入超时,稍后重试" + records.size() + "条定位结果");
+                return Collections.emptyList();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Collections.emptyList();
+        }
+        return ids;
+    }
+
+    /**
+     * 按顺序写入事件,写入失败时重试,屏障之前的事件全部写入后才通知
+     */
+    private void publishLoop() {
+        List<Object> batch = new ArrayList<>();
+        while (running) {
+            try {
+                // 上次失败留下的部分先重试,不等待新的事件
+                if (batch.isEmpty()) {
+                    Object first = eventQueue.poll(100, TimeUnit.MILLISECONDS);
+                    if (null == first) {
+                        continue;
+                    }
+                    batch.add(first);
+                }
+                if (batch.size() < BATCH_SIZE) {
+                    eventQueue.drainTo(batch, BATCH_SIZE - batch.size());
+                }
+                publishBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("区域事件写入异常,稍后重试", e);
+                try {
+                    Thread.sleep(1000L);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 逐段写入到屏障为止并通知屏障,每段写入成功后从batch中移除;写入异常时batch只保留未写入的部分
+     */
+    @SuppressWarnings("unchecked")
+    private void publishBatch(List<Object> batch) {
+        while (!batch.isEmpty()) {
+            int barrier = -1;
+            for (int i = 0; i < batch.size(); i++) {
+                if (batch.get(i) instanceof CountDownLatch) {
+                    barrier = i;
+                    break;
+                }
+            }
+            int end = barrier < 0 ? batch.size() : barrier;
+            List<SwitchAreaEvent> events = new ArrayList<>();
+            for (Object item : batch.subList(0, end)) {
+                events.addAll((List<SwitchAreaEvent>) item);
+            }
+            publishEvents(events);
+            if (barrier >= 0) {
+                ((CountDownLatch) batch.get(barrier)).countDown();
+            }
+            batch.subList(0, barrier < 0 ? end : barrier + 1).clear();
+        }
+    }
+
+    /**
+     * 批量写入区域事件
+     */
+    public void publishEvents(List<SwitchAreaEvent> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        List<Map<String, Object>> bodies = new ArrayList<>(events.size());
+        for (SwitchAreaEvent event : events) {
+            Map<String, Object> body = new HashMap<>();
+            body.put("type", String.valueOf(event.getType()));
+            body.put("tagId", String.valueOf(event.getTagId()));
+            body.put("mapId", String.valueOf(event.getMapId()));
+            body.put("from", String.valueOf(event.getFromArea()));
+            body.put("to", String.valueOf(event.getToArea()));
+            body.put("ts", String.valueOf(event.getTimestamp()));
+            bodies.add(body);
+        }
+        redisUtils.xAddAll(AREA_EVENT_STREAM, bodies, MAX_LEN);
+    }
+
+    /**
+     * 以指定消费组订阅区域事件,同一消费组内多节点分摊消费
+     *
+     * @param group   消费组
+     * @param handler 批量处理区域事件,抛出异常时整批不确认并在超时后重新投递
+     */
+    public void subscribeEvents(String group, Consumer<List<SwitchAreaEvent>> handler) {
+        startWorker(AREA_EVENT_STREAM, group, consumerName, false, records -> {
+            List<SwitchAreaEvent> events = new ArrayList<>(records.size());
+            List<RecordId> ids = new ArrayList<>(records.size());
+            for (MapRecord<String, Object, Object> record : records) {
+                events.add(toEvent(record.getValue()));
+                ids.add(record.getId());
+            }
+            handler.accept(events);
+            return ids;
+        });
+    }
+
+    private void startWorker(String key, String group, String consumer, boolean ordered,
+                             Function<List<MapRecord<String, Object, Object>>, List<RecordId>> handler) {
+        RedisStreamWorker worker = new RedisStreamWorker(redisUtils, key, group, consumer, BATCH_SIZE, handler, ordered);
+        workers.add(worker);
+        Thread thread = new Thread(worker, "stream-" + group + "-" + key);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static TagPosition toPosition(Map<Object, Object> body) {
+        String mapId = String.valueOf(body.get("mapId"));
+        String z = String.valueOf(body.get("z"));
+        return new TagPosition(NumberUtils.toLong(String.valueOf(body.get("tagId"))),
+                NumberUtils.isCreatable(mapId) ? NumberUtils.createLong(mapId) : null,
+                NumberUtils.toLong(String.valueOf(body.get("x"))),
+                NumberUtils.toLong(String.valueOf(body.get("y"))),
+                NumberUtils.isCreatable(z) ? NumberUtils.createLong(z) : null,
+                NumberUtils.toLong(String.valueOf(body.get("ts"))));
+    }
+
+    static SwitchAreaEvent toEvent(Map<Object, Object> body) {
+        String mapId = String.valueOf(body.get("mapId"));
+        return new SwitchAreaEvent(NumberUtils.toInt(String.valueOf(body.get("type"))),
+                NumberUtils.toLong(String.valueOf(body.get("tagId"))),
+                NumberUtils.isCreatable(mapId) ? NumberUtils.createLong(mapId) : null,
+                NumberUtils.toLong(String.valueOf(body.get("from"))),
+                NumberUtils.toLong(String.valueOf(body.get("to"))),
+                NumberUtils.toLong(String.valueOf(body.get("ts"))));
+    }
+}
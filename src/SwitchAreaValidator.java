@@ -0,0 +1,247 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * 切换区域拓扑校验
+ * 检查区域重叠、多边形自相交、相邻区域之间的间隙以及分隔线是否同时落在两区域边界上
+ * 各地图通过fork-join并行校验,区域重叠候选对由网格索引筛选;自相交检查按x排序后只比较x区间重叠的边,最坏仍为O(n²)
+ *
+ * @author jobs
+ */
+@Component
+public class SwitchAreaValidator {
+
+    /*** 区域重叠*/
+    public static final String OVERLAP = "Overlap";
+
+    /*** 多边形自相交*/
+    public static final String SELF_INTERSECT = "SelfIntersect";
+
+    /*** 相邻区域边界不接触*/
+    public static final String GAP = "Gap";
+
+    /*** 分隔线不在两区域公共边界上*/
+    public static final String SEPARATOR = "Separator";
+
+    @Autowired
+    private SwitchAreaShapeLoader shapeLoader;
+
+    /**
+     * 校验地图下所有区域
+     *
+     * @param mapIds 地图ID,为空时校验全部地图
+     * @return mapId -> (问题类型 -> 以"、"分割的区域编号,两区域间的问题以"/"连接)
+     */
+    public Map<Long, Map<String, String>> validate(Collection<Long> mapIds) {
+        Map<Long, List<SwitchAreaShape>> shapeMap = shapeLoader.loadByMap(mapIds);
+        Map<Long, List<Object[]>> neighborMap = shapeLoader.loadNeighborsByMap(mapIds);
+        Set<Long> allMapIds = new HashSet<>(shapeMap.keySet());
+        allMapIds.addAll(neighborMap.keySet());
+        return ForkJoinPool.commonPool().invoke(new ValidateTask(new ArrayList<>(allMapIds), shapeMap, neighborMap));
+    }
+
+    private static class ValidateTask extends RecursiveTask<Map<Long, Map<String, String>>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Long> mapIds;
+
+        private final Map<Long, List<SwitchAreaShape>> shapeMap;
+
+        private final Map<Long, List<Object[]>> neighborMap;
+
+        ValidateTask(List<Long> mapIds, Map<Long, List<SwitchAreaShape>> shapeMap, Map<Long, List<Object[]>> neighborMap) {
+            this.mapIds = mapIds;
+            this.shapeMap = shapeMap;
+            this.neighborMap = neighborMap;
+        }
+
+        @Override
+        protected Map<Long, Map<String, String>> compute() {
+            if (mapIds.size() <= 1) {
+                Map<Long, Map<String, String>> result = new HashMap<>();
+                for (Long mapId : mapIds) {
+                    result.put(mapId, validateMap(shapeMap.getOrDefault(mapId, new ArrayList<>()), neighborMap.getOrDefault(mapId, new ArrayList<>())));
+                }
+                return result;
+            }
+            int mid = mapIds.size() / 2;
+            ValidateTask left = new ValidateTask(mapIds.subList(0, mid), shapeMap, neighborMap);
+            ValidateTask right = new ValidateTask(mapIds.subList(mid, mapIds.size()), shapeMap, neighborMap);
+            left.fork();
+            Map<Long, Map<String, String>> result = right.compute();
+            result.putAll(left.join());
+            return result;
+        }
+    }
+
+    static Map<String, String> validateMap(List<SwitchAreaShape> shapes, List<Object[]> neighbors) {
+        Map<String, Set<String>> issues = new HashMap<>();
+        SwitchAreaGridIndex index = new SwitchAreaGridIndex(shapes);
+        Map<Long, SwitchAreaShape> shapeById = new HashMap<>();
+        for (SwitchAreaShape shape : shapes) {
+            shapeById.put(shape.getId(), shape);
+            if (selfIntersects(shape)) {
+                addIssue(issues, SELF_INTERSECT, shape.getAreaId());
+            }
+            index.forEachCandidate(shape.getMinX(), shape.getMinY(), shape.getMaxX(), shape.getMaxY(), other -> {
+                if (other.getId() > shape.getId() && zOverlaps(shape, other) && overlaps(shape, other)) {
+                    addIssue(issues, OVERLAP, shape.getAreaId() + "/" + other.getAreaId());
+                }
+            });
+        }
+        for (Object[] neighbor : neighbors) {
+            SwitchAreaShape area = shapeById.get((Long) neighbor[0]);
+            SwitchAreaShape other = shapeById.get((Long) neighbor[1]);
+            if (null == area || null == other) {
+                continue;
+            }
+            String pair = area.getAreaId() + "/" + other.getAreaId();
+            if (!touches(area, other)) {
+                addIssue(issues, GAP, pair);
+            }
+            if (null == neighbor[2] || null == neighbor[3] || null == neighbor[4] || null == neighbor[5]) {
+                addIssue(issues, SEPARATOR, pair);
+                continue;
+            }
+            long sx = (Long) neighbor[2], sy = (Long) neighbor[3], ex = (Long) neighbor[4], ey = (Long) neighbor[5];
+            if (!area.segmentOnBoundary(sx, sy, ex, ey) || !other.segmentOnBoundary(sx, sy, ex, ey)) {
+                addIssue(issues, SEPARATOR, pair);
+            }
+        }
+        Map<String, String> result = new HashMap<>();
+        issues.forEach((type, values) -> result.put(type, StringUtils.join(values, "、")));
+        return result;
+    }
+
+    private static void addIssue(Map<String, Set<String>> issues, String type, String value) {
+        issues.computeIfAbsent(type, k -> new LinkedHashSet<>()).add(value);
+    }
+
+    private static boolean zOverlaps(SwitchAreaShape a, SwitchAreaShape b) {
+        return a.getMinZ() <= b.getMaxZ() && b.getMinZ() <= a.getMaxZ();
+    }
+
+    /**
+     * 检查多边形非相邻边是否相交,边按最小x排序,只与x区间仍重叠的边比较
+     */
+    static boolean selfIntersects(SwitchAreaShape shape) {
+        int n = shape.size();
+        if (n < 4) {
+            return false;
+        }
+        Integer[] edges = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            edges[i] = i;
+        }
+        Arrays.sort(edges, Comparator.comparingLong(e -> Math.min(shape.x(e), shape.x((e + 1) % n))));
+        List<Integer> active = new ArrayList<>();
+        for (int e : edges) {
+            long ax = shape.x(e), ay = shape.y(e);
+            long bx = shape.x((e + 1) % n), by = shape.y((e + 1) % n);
+            long minX = Math.min(ax, bx);
+            active.removeIf(o -> Math.max(shape.x(o), shape.x((o + 1) % n)) < minX);
+            for (int o : active) {
+                if ((o + 1) % n == e || (e + 1) % n == o) {
+                    continue;
+                }
+                if (SwitchAreaShape.intersects(ax, ay, bx, by, shape.x(o), shape.y(o), shape.x((o + 1) % n), shape.y((o + 1) % n))) {
+                    return true;
+                }
+            }
+            active.add(e);
+        }
+        return false;
+    }
+
+    /**
+     * 两区域内部是否有重叠,仅共享边界不算重叠
+     * 没有真相交时,把每条边在对方顶点处切开,各小段要么整段在对方边界上,要么整段在对方内部或外部,
+     * 用小段中点判断即可;一方边界全部落在对方边界上时两区域相同,视为重叠
+     */
+    static boolean overlaps(SwitchAreaShape a, SwitchAreaShape b) {
+        int n = a.size(), m = b.size();
+        for (int i = 0; i < n; i++) {
+            long ax = a.x(i), ay = a.y(i), bx = a.x((i + 1) % n), by = a.y((i + 1) % n);
+            for (int j = 0; j < m; j++) {
+                if (SwitchAreaShape.properCross(ax, ay, bx, by, b.x(j), b.y(j), b.x((j + 1) % m), b.y((j + 1) % m))) {
+                    return true;
+                }
+            }
+        }
+        int aInB = boundaryLocation(a, b);
+        if (aInB > 0) {
+            return true;
+        }
+        int bInA = boundaryLocation(b, a);
+        return bInA > 0 || (aInB == 0 && bInA == 0);
+    }
+
+    /**
+     * @return 1 shape的边界有一段在other内部,0 边界全部落在other边界上,-1 其它
+     */
+    private static int boundaryLocation(SwitchAreaShape shape, SwitchAreaShape other) {
+        int n = shape.size(), m = other.size();
+        boolean allOnBoundary = true;
+        List<long[]> cuts = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            long ax = shape.x(i), ay = shape.y(i), bx = shape.x((i + 1) % n), by = shape.y((i + 1) % n);
+            long dx = bx - ax, dy = by - ay;
+            cuts.clear();
+            cuts.add(new long[]{ax, ay, 0L});
+            cuts.add(new long[]{bx, by, dx * dx + dy * dy});
+            for (int j = 0; j < m; j++) {
+                long px = other.x(j), py = other.y(j);
+                if (SwitchAreaShape.onSegment(ax, ay, bx, by, px, py)) {
+                    cuts.add(new long[]{px, py, dx * (px - ax) + dy * (py - ay)});
+                }
+            }
+            cuts.sort(Comparator.comparingLong(cut -> cut[2]));
+            for (int k = 1; k < cuts.size(); k++) {
+                long[] from = cuts.get(k - 1), to = cuts.get(k);
+                if (from[2] == to[2]) {
+                    continue;
+                }
+                int location = other.locateDoubled(from[0] + to[0], from[1] + to[1]);
+                if (location > 0) {
+                    return 1;
+                }
+                allOnBoundary &= location == 0;
+            }
+        }
+        return allOnBoundary ? 0 : -1;
+    }
+
+    /**
+     * 两区域边界是否有公共点
+     */
+    static boolean touches(SwitchAreaShape a, SwitchAreaShape b) {
+        if (a.getMinX() > b.getMaxX() || b.getMinX() > a.getMaxX() || a.getMinY() > b.getMaxY() || b.getMinY() > a.getMaxY()) {
+            return false;
+        }
+        int n = a.size(), m = b.size();
+        for (int i = 0; i < n; i++) {
+            long ax = a.x(i), ay = a.y(i), bx = a.x((i + 1) % n), by = a.y((i + 1) % n);
+            for (int j = 0; j < m; j++) {
+                if (SwitchAreaShape.intersects(ax, ay, bx, by, b.x(j), b.y(j), b.x((j + 1) % m), b.y((j + 1) % m))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,469 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.pinpoint.db.model.BusAnchorSwitchArea;
+import com.pinpoint.db.model.BusAnchorSwitchAreaNeighbor;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 切换区域编辑延迟写入
+ * 编辑先记录在内存中,同一区域在合并窗口内的多次编辑合并为一次,之后在一个事务中按语句批量写入;
+ * 未写入的编辑可通过overlayAnchors、overlayNeighbors、pendingColumns读取,保证读到自己的修改;flush可立即写入。
+ * 写入在单独的事务中执行,不影响调用方事务中的实体。整批写入失败时逐个区域单独写入,
+ * 失败的区域合并回待写入队列(之后的编辑优先)按指数退避重试,连续失败MAX_ATTEMPTS次后丢弃并记录错误日志
+ *
+ * @author jobs
+ */
+@Slf4j
+@Component
+public class SwitchAreaWriteBehind {
+
+    /*** 合并窗口,毫秒*/
+    private static final long WINDOW_MILLIS = 200L;
+
+    /*** 写入失败后的最长重试间隔,毫秒*/
+    private static final long MAX_BACKOFF_MILLIS = 30000L;
+
+    /*** 单个区域的编辑最多写入次数,超过后丢弃*/
+    private static final int MAX_ATTEMPTS = 5;
+
+    /*** 允许延迟修改的字段*/
+    static final Set<String> COLUMNS = new HashSet<>(Arrays.asList("area_id", "area_no", "min_z", "max_z", "color",
+            "type", "leave_rssi_enable", "bs_area_type", "disable_warning", "map_id"));
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private SwitchAreaBindingWriter bindingWriter;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private SwitchAreaLockManager lockManager;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private final List<Consumer<Set<Long>>> flushListeners = new CopyOnWriteArrayList<>();
+
+    private Map<Long, Pending> pending = new HashMap<>();
+
+    /*** 正在写入的编辑,写入提交前仍对读可见*/
+    private Map<Long, Pending> inFlight = Collections.emptyMap();
+
+    private long firstEditMillis;
+
+    /*** 连续写入失败次数*/
+    private int failures;
+
+    /*** 写入失败后,下次定时写入的最早时间*/
+    private long retryAtMillis;
+
+    /**
+     * 写入完成后回调,参数为本次写入的区域主键
+     */
+    public void addFlushListener(Consumer<Set<Long>> listener) {
+        flushListeners.add(listener);
+    }
+
+    /**
+     * 修改区域字段
+     *
+     * @param column 字段名,见COLUMNS
+     */
+    public synchronized void updateColumn(long areaPk, String column, Object value) {
+        if (!COLUMNS.contains(column)) {
+            throw new IllegalArgumentException("unsupported column " + column);
+        }
+        pending(areaPk).columns.put(column, value);
+    }
+
+    public synchronized void addAnchor(long areaPk, long anchorPk) {
+        Pending p = pending(areaPk);
+        p.anchorRemoves.remove(anchorPk);
+        p.anchorAdds.add(anchorPk);
+    }
+
+    public synchronized void removeAnchor(long areaPk, long anchorPk) {
+        Pending p = pending(areaPk);
+        p.anchorAdds.remove(anchorPk);
+        p.anchorRemoves.add(anchorPk);
+    }
+
+    /**
+     * @param separator [sepStartX, sepStartY, sepEndX, sepEndY]
+     */
+    public synchronized void addNeighbor(long areaPk, long neighborPk, long[] separator) {
+        pending(areaPk).neighborAdds.put(neighborPk, separator);
+    }
+
+    public synchronized void removeNeighbor(long areaPk, long neighborPk) {
+        Pending p = pending(areaPk);
+        p.neighborAdds.remove(neighborPk);
+        p.neighborRemoves.add(neighborPk);
+    }
+
+    private Pending pending(long areaPk) {
+        if (pending.isEmpty()) {
+            firstEditMillis = System.currentTimeMillis();
+        }
+        return pending.computeIfAbsent(areaPk, k -> new Pending());
+    }
+
+    public synchronized boolean hasPending(long areaPk) {
+        return pending.containsKey(areaPk) || inFlight.containsKey(areaPk);
+    }
+
+    /**
+     * 在已写入的绑定基站上叠加未写入的编辑
+     *
+     * @param persisted 数据库中的绑定基站主键
+     * @return 包含未写入编辑的绑定基站主键
+     */
+    public synchronized Set<Long> overlayAnchors(long areaPk, Collection<Long> persisted) {
+        Set<Long> result = new LinkedHashSet<>(persisted);
+        for (Map<Long, Pending> layer : Arrays.asList(inFlight, pending)) {
+            Pending p = layer.get(areaPk);
+            if (null != p) {
+                p.anchorRemoves.forEach(result::remove);
+                p.anchorAdds.forEach(result::add);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 在已写入的相邻区域上叠加未写入的编辑
+     *
+     * @param persisted 数据库中的 相邻区域主键 -> [sepStartX, sepStartY, sepEndX, sepEndY]
+     * @return 包含未写入编辑的相邻区域
+     */
+    public synchronized Map<Long, long[]> overlayNeighbors(long areaPk, Map<Long, long[]> persisted) {
+        Map<Long, long[]> result = new HashMap<>(persisted);
+        for (Map<Long, Pending> layer : Arrays.asList(inFlight, pending)) {
+            Pending p = layer.get(areaPk);
+            if (null != p) {
+                p.neighborRemoves.forEach(result::remove);
+                result.putAll(p.neighborAdds);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return 未写入的字段修改,字段名 -> 值
+     */
+    public synchronized Map<String, Object> pendingColumns(long areaPk) {
+        Map<String, Object> result = new TreeMap<>();
+        for (Map<Long, Pending> layer : Arrays.asList(inFlight, pending)) {
+            Pending p = layer.get(areaPk);
+            if (null != p) {
+                result.putAll(p.columns);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 合并窗口到期后写入
+     */
+    @Scheduled(fixedDelay = WINDOW_MILLIS)
+    public void flushExpired() {
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (pending.isEmpty() || now - firstEditMillis < WINDOW_MILLIS || now < retryAtMillis) {
+                return;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * 立即写入全部未写入的编辑
+     *
+     * @return 写入成功的区域数量
+     */
+    public int flush() {
+        Map<Long, Pending> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return 0;
+            }
+            // 同一时间只有一个批次在写入
+            while (!inFlight.isEmpty()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return 0;
+                }
+            }
+            batch = pending;
+            inFlight = batch;
+            pending = new HashMap<>();
+        }
+        Map<Long, Pending> failed = new HashMap<>();
+        RuntimeException error = null;
+        try {
+            try {
+                writeInNewTransaction(batch);
+            } catch (RuntimeException e) {
+                // 逐个区域单独写入,一个区域的错误不影响其它区域
+                log.warn("切换区域延迟写入失败,逐个区域重新写入," + batch.size() + "个区域", e);
+                for (Map.Entry<Long, Pending> entry : batch.entrySet()) {
+                    try {
+                        writeInNewTransaction(Collections.singletonMap(entry.getKey(), entry.getValue()));
+                    } catch (RuntimeException areaError) {
+                        failed.put(entry.getKey(), entry.getValue());
+                        error = areaError;
+                    }
+                }
+            }
+        } finally {
+            synchronized (this) {
+                if (!failed.isEmpty()) {
+                    requeue(failed);
+                    failures++;
+                    long backoff = Math.min(MAX_BACKOFF_MILLIS, WINDOW_MILLIS << Math.min(failures, 16));
+                    retryAtMillis = System.currentTimeMillis() + backoff;
+                    log.error("切换区域延迟写入失败," + failed.keySet() + "的修改" + backoff + "毫秒后重试!", error);
+                } else {
+                    failures = 0;
+                    retryAtMillis = 0;
+                }
+                inFlight = Collections.emptyMap();
+                notifyAll();
+            }
+        }
+        Set<Long> written = new HashSet<>(batch.keySet());
+        written.removeAll(failed.keySet());
+        if (!written.isEmpty()) {
+            Set<Long> areaPks = Collections.unmodifiableSet(written);
+            for (Consumer<Set<Long>> listener : flushListeners) {
+                listener.accept(areaPks);
+            }
+        }
+        if (null != error) {
+            throw error;
+        }
+        return written.size();
+    }
+
+    /**
+     * 在新事务中写入,与其他区域修改一样持有所在地图的写锁到提交之后
+     */
+    private void writeInNewTransaction(Map<Long, Pending> batch) {
+        TransactionTemplate template = new TransactionTemplate(transactionManager);
+        template.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        template.execute(status -> {
+            Set<Long> mapIds = mapIdsOf(batch.keySet());
+            batch.values().stream().filter(p -> p.columns.containsKey("map_id"))
+                    .forEach(p -> {
+                        String mapId = String.valueOf(p.columns.get("map_id"));
+                        mapIds.add(NumberUtils.isCreatable(mapId) ? NumberUtils.createLong(mapId) : null);
+                    });
+            lockManager.lockMapsUntilCompletion(mapIds);
+            write(batch);
+            return null;
+        });
+    }
+
+    /**
+     * 写入失败的区域合并回待写入队列,之后到达的编辑覆盖失败批次中的同一项;
+     * 达到最大写入次数的编辑丢弃,之后到达的编辑保留
+     */
+    private void requeue(Map<Long, Pending> failed) {
+        if (pending.isEmpty()) {
+            firstEditMillis = System.currentTimeMillis();
+        }
+        failed.forEach((areaPk, p) -> {
+            p.attempts++;
+            if (p.attempts >= MAX_ATTEMPTS) {
+                log.error("切换区域" + areaPk + "的修改连续写入失败" + p.attempts + "次,已丢弃:" + p);
+                return;
+            }
+            Pending newer = pending.get(areaPk);
+            if (null != newer) {
+                p.merge(newer);
+            }
+            pending.put(areaPk, p);
+        });
+    }
+
+    private Set<Long> mapIdsOf(Collection<Long> areaPks) {
+        Set<Long> mapIds = new HashSet<>();
+        for (List<Long> chunk : SwitchAreaBindingWriter.chunks(areaPks)) {
+            jdbcTemplate.query("select distinct map_id from bus_anchor_switch_area where id in (" + SwitchAreaBindingWriter.placeholders(chunk.size()) + ")",
+                    rs -> {
+                        long mapId = rs.getLong(1);
+                        mapIds.add(rs.wasNull() ? null : mapId);
+                    }, chunk.toArray());
+        }
+        return mapIds;
+    }
+
+    private void write(Map<Long, Pending> batch) {
+        entityManager.flush();
+        // 字段修改按字段组合分组,每组一条批量update
+        Map<String, List<Object[]>> updates = new HashMap<>();
+        batch.forEach((areaPk, p) -> {
+            if (p.columns.isEmpty()) {
+                return;
+            }
+            String sql = "update bus_anchor_switch_area set " + String.join(" = ?, ", p.columns.keySet()) + " = ?, version = version + 1 where id = ?";
+            List<Object> args = new ArrayList<>(p.columns.values());
+            args.add(areaPk);
+            updates.computeIfAbsent(sql, k -> new ArrayList<>()).add(args.toArray());
+        });
+        updates.forEach((sql, rows) -> jdbcTemplate.batchUpdate(sql, rows));
+
+        // 相邻区域先删后加
+        batch.forEach((areaPk, p) -> {
+            if (!p.neighborRemoves.isEmpty()) {
+                entityManager.createQuery("delete from BusAnchorSwitchAreaNeighbor n where n.switchArea.id = :areaPk and n.neighborArea.id in :ids")
+                        .setParameter("areaPk", areaPk)
+                        .setParameter("ids", p.neighborRemoves)
+                        .executeUpdate();
+            }
+        });
+        // 已存在的相邻关系只更新分隔线,避免重复插入
+        Set<Long> neighborAreas = new HashSet<>();
+        batch.forEach((areaPk, p) -> {
+            if (!p.neighborAdds.isEmpty()) {
+                neighborAreas.add(areaPk);
+            }
+        });
+        Set<List<Long>> existing = new HashSet<>();
+        if (!neighborAreas.isEmpty()) {
+            for (Object[] row : entityManager.createQuery("select n.switchArea.id, n.neighborArea.id from BusAnchorSwitchAreaNeighbor n where n.switchArea.id in :ids", Object[].class)
+                    .setParameter("ids", neighborAreas)
+                    .getResultList()) {
+                existing.add(Arrays.asList((Long) row[0], (Long) row[1]));
+            }
+        }
+        batch.forEach((areaPk, p) -> p.neighborAdds.forEach((neighborPk, sep) -> {
+            if (existing.contains(Arrays.asList(areaPk, neighborPk))) {
+                entityManager.createQuery("update BusAnchorSwitchAreaNeighbor n set n.sepStartX = :sx, n.sepStartY = :sy, n.sepEndX = :ex, n.sepEndY = :ey"
+                        + " where n.switchArea.id = :areaPk and n.neighborArea.id = :neighborPk")
+                        .setParameter("sx", sep[0])
+                        .setParameter("sy", sep[1])
+                        .setParameter("ex", sep[2])
+                        .setParameter("ey", sep[3])
+                        .setParameter("areaPk", areaPk)
+                        .setParameter("neighborPk", neighborPk)
+                        .executeUpdate();
+                return;
+            }
+            BusAnchorSwitchAreaNeighbor neighbor = new BusAnchorSwitchAreaNeighbor();
+            neighbor.setSwitchArea(entityManager.getReference(BusAnchorSwitchArea.class, areaPk));
+            neighbor.setNeighborArea(entityManager.getReference(BusAnchorSwitchArea.class, neighborPk));
+            neighbor.setSepStartX(sep[0]);
+            neighbor.setSepStartY(sep[1]);
+            neighbor.setSepEndX(sep[2]);
+            neighbor.setSepEndY(sep[3]);
+            entityManager.persist(neighbor);
+        }));
+        entityManager.flush();
+
+        // 基站绑定与现有记录对比后只写入差异
+        Set<Long> bindingAreas = new HashSet<>();
+        batch.forEach((areaPk, p) -> {
+            if (!p.anchorAdds.isEmpty() || !p.anchorRemoves.isEmpty()) {
+                bindingAreas.add(areaPk);
+            }
+        });
+        if (!bindingAreas.isEmpty()) {
+            Map<Long, Set<Long>> bound = bindingWriter.loadBindings(bindingAreas);
+            SwitchAreaBindingDiff diff = new SwitchAreaBindingDiff();
+            for (Long areaPk : bindingAreas) {
+                Pending p = batch.get(areaPk);
+                Set<Long> current = bound.getOrDefault(areaPk, Collections.emptySet());
+                Set<Long> add = new HashSet<>(p.anchorAdds);
+                add.removeAll(current);
+                Set<Long> remove = new HashSet<>(p.anchorRemoves);
+                remove.retainAll(current);
+                if (!add.isEmpty()) {
+                    diff.getToAdd().put(areaPk, add);
+                }
+                if (!remove.isEmpty()) {
+                    diff.getToRemove().put(areaPk, remove);
+                }
+            }
+            bindingWriter.apply(Collections.singletonList(diff));
+        }
+    }
+
+    /**
+     * 单个区域合并后的编辑
+     */
+    private static class Pending {
+
+        /*** 字段名按字典序,相同字段组合生成相同语句*/
+        final Map<String, Object> columns = new TreeMap<>();
+
+        final Set<Long> anchorAdds = new LinkedHashSet<>();
+
+        final Set<Long> anchorRemoves = new LinkedHashSet<>();
+
+        final Map<Long, long[]> neighborAdds = new HashMap<>();
+
+        final Set<Long> neighborRemoves = new HashSet<>();
+
+        /*** 已失败的写入次数*/
+        int attempts;
+
+        /**
+         * 在本次编辑之上叠加之后的编辑
+         */
+        void merge(Pending newer) {
+            columns.putAll(newer.columns);
+            newer.anchorRemoves.forEach(anchorPk -> {
+                anchorAdds.remove(anchorPk);
+                anchorRemoves.add(anchorPk);
+            });
+            newer.anchorAdds.forEach(anchorPk -> {
+                anchorRemoves.remove(anchorPk);
+                anchorAdds.add(anchorPk);
+            });
+            newer.neighborRemoves.forEach(neighborPk -> {
+                neighborAdds.remove(neighborPk);
+                neighborRemoves.add(neighborPk);
+            });
+            neighborAdds.putAll(newer.neighborAdds);
+        }
+
+        @Override
+        public String toString() {
+            Map<Long, List<Long>> adds = new TreeMap<>();
+            neighborAdds.forEach((neighborPk, sep) -> adds.put(neighborPk, Arrays.asList(sep[0], sep[1], sep[2], sep[3])));
+            return "columns=" + columns + ",anchorAdds=" + anchorAdds + ",anchorRemoves=" + anchorRemoves
+                    + ",neighborAdds=" + adds + ",neighborRemoves=" + neighborRemoves;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.pinpoint.db.model.SysConfig;
+import com.pinpoint.service.IConfigService;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 系统配置快照
+ * 按配置编码缓存cfgVal,读取不访问数据库;通过update或直接调用IConfigService.updateConfig(由SysConfigServiceHook拦截)
+ * 修改的配置在事务提交后更新快照、通知本节点监听器,并通过redis发布到其它节点,其它节点直接按消息更新快照并通知监听器。
+ * 发布订阅消息不保证送达,定时与数据库核对已缓存的配置作为兜底;每个配置编码有修改序号,
+ * 核对期间已被更新的配置不会被核对时读到的旧值覆盖
+ *
+ * @author jobs
+ */
+@Slf4j
+@Component
+public class SysConfigCache {
+
+    /*** 配置变更频道*/
+    public static final String CHANNEL = "sys_config_changed";
+
+    /*** 本节点标识,忽略自己发布的消息*/
+    private static final String NODE_ID = UUID.randomUUID().toString();
+
+    @Autowired
+    private IConfigService configService;
+
+    @Autowired
+    private RedisUtils redisUtils;
+
+    /*** 配置编码 -> cfgVal,配置不存在时为空*/
+    private final Map<String, Optional<String>> snapshot = new ConcurrentHashMap<>();
+
+    /*** 配置编码 -> 修改序号,快照每次更新加1*/
+    private final Map<String, Long> versions = new ConcurrentHashMap<>();
+
+    private final Map<String, List<Consumer<String>>> listeners = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        redisUtils.subscribe(CHANNEL, (channel, message) -> onMessage(message));
+    }
+
+    /**
+     * @return 配置值,配置不存在时返回null
+     */
+    public String get(String code) {
+        return snapshot.computeIfAbsent(code, this::load).orElse(null);
+    }
+
+    public String get(String code, String defaultValue) {
+        String value = get(code);
+        return null == value ? defaultValue : value;
+    }
+
+    /**
+     * 监听配置变化,参数为新值;本节点及其它节点修改后都会回调
+     */
+    public void addListener(String code, Consumer<String> listener) {
+        listeners.computeIfAbsent(code, k -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    /**
+     * 修改配置,值未变化时不写数据库;事务提交后更新快照并广播
+     *
+     * @return false 配置不存在
+     */
+    public boolean update(String code, String value) {
+        SysConfig config = configService.findConfigByCode(code);
+        if (Objects.isNull(config)) {
+            return false;
+        }
+        if (Objects.equals(config.getCfgVal(), value)) {
+            return true;
+        }
+        config.setCfgVal(value);
+        configService.updateConfig(config);
+        TransactionHooks.afterCommit(() -> {
+            if (apply(code, value, null)) {
+                publish(code, value);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * 配置未通过update修改时调用,重新读取数据库后更新快照并广播
+     */
+    public void refresh(String code) {
+        TransactionHooks.afterCommit(() -> {
+            String value = load(code).orElse(null);
+            apply(code, value, null);
+            publish(code, value);
+        });
+    }
+
+    /**
+     * IConfigService.updateConfig之后调用,事务提交后重新读取已缓存的配置,发生变化的配置通知监听器并广播
+     */
+    void configUpdated() {
+        TransactionHooks.afterCommit(() -> {
+            for (String code : snapshot.keySet()) {
+                String value = load(code).orElse(null);
+                if (apply(code, value, null)) {
+                    publish(code, value);
+                }
+            }
+        });
+    }
+
+    /**
+     * 与数据库核对已缓存的配置,补上丢失的变更消息;读取期间配置已被更新时跳过
+     */
+    @Scheduled(fixedDelay = 60000L)
+    public void reconcile() {
+        for (String code : snapshot.keySet()) {
+            try {
+                long version = versions.getOrDefault(code, 0L);
+                apply(code, load(code).orElse(null), version);
+            } catch (RuntimeException e) {
+                log.error("核对系统配置失败,code=" + code, e);
+            }
+        }
+    }
+
+    private Optional<String> load(String code) {
+        return Optional.ofNullable(configService.findConfigByCode(code)).map(SysConfig::getCfgVal);
+    }
+
+    /**
+     * 更新快照,值变化时通知监听器
+     *
+     * @param expectedVersion 不为null时,只有修改序号仍为该值才更新
+     * @return true 值发生变化
+     */
+    private boolean apply(String code, String value, Long expectedVersion) {
+        Optional<String> old;
+        synchronized (versions) {
+            if (null != expectedVersion && versions.getOrDefault(code, 0L) != expectedVersion.longValue()) {
+                return false;
+            }
+            versions.merge(code, 1L, Long::sum);
+            old = snapshot.put(code, Optional.ofNullable(value));
+        }
+        if (null != old && Objects.equals(old.orElse(null), value)) {
+            return false;
+        }
+        for (Consumer<String> listener : listeners.getOrDefault(code, Collections.emptyList())) {
+            try {
+                listener.accept(value);
+            } catch (RuntimeException e) {
+                log.error("系统配置变更回调异常,code=" + code, e);
+            }
+        }
+        return true;
+    }
+
+    private void publish(String code, String value) {
+        Map<String, Object> message = new HashMap<>();
+        message.put("node", NODE_ID);
+        message.put("code", code);
+        message.put("value", value);
+        try {
+            redisUtils.publish(CHANNEL, message);
+        } catch (RuntimeException e) {
+            log.error("系统配置变更广播失败,其它节点在定时核对时更新,code=" + code, e);
+        }
+    }
+
+    private void onMessage(Object message) {
+        if (!(message instanceof Map)) {
+            return;
+        }
+        Map<?, ?> body = (Map<?, ?>) message;
+        if (NODE_ID.equals(body.get("node")) || !(body.get("code") instanceof String)) {
+            return;
+        }
+        Object value = body.get("value");
+        apply((String) body.get("code"), null == value ? null : value.toString(), null);
+    }
+}
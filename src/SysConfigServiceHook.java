@@ -0,0 +1,50 @@
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationContextAware;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ClassUtils;
+
+import com.pinpoint.service.IConfigService;
+
+/**
+ * 拦截IConfigService.updateConfig
+ * 其它模块直接调用updateConfig修改配置时同样通知SysConfigCache,保证快照更新和跨节点广播。
+ * 注入方需按IConfigService接口注入
+ *
+ * @author jobs
+ */
+@Component
+public class SysConfigServiceHook implements BeanPostProcessor, ApplicationContextAware {
+
+    private ApplicationContext applicationContext;
+
+    @Override
+    public void setApplicationContext(ApplicationContext applicationContext) throws BeansException {
+        this.applicationContext = applicationContext;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+        if (!(bean instanceof IConfigService)) {
+            return bean;
+        }
+        Class<?>[] interfaces = ClassUtils.getAllInterfaces(bean);
+        return Proxy.newProxyInstance(bean.getClass().getClassLoader(), interfaces, (proxy, method, args) -> {
+            Object result;
+            try {
+                result = method.invoke(bean, args);
+            } catch (InvocationTargetException e) {
+                throw e.getTargetException();
+            }
+            if ("updateConfig".equals(method.getName())) {
+                // 配置缓存依赖IConfigService,这里延迟获取避免循环依赖
+                applicationContext.getBean(SysConfigCache.class).configUpdated();
+            }
+            return result;
+        });
+    }
+}
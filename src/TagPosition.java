@@ -0,0 +1,81 @@
+/**
+ * 标签定位结果
+ *
+ * @author jobs
+ */
+public class TagPosition {
+
+    private long tagId;
+
+    private Long mapId;
+
+    private long x;
+
+    private long y;
+
+    private Long z;
+
+    /*** 定位时间(毫秒)*/
+    private long timestamp;
+
+    public TagPosition() {
+        super();
+    }
+
+    public TagPosition(long tagId, Long mapId, long x, long y, Long z, long timestamp) {
+        this.tagId = tagId;
+        this.mapId = mapId;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.timestamp = timestamp;
+    }
+
+    public long getTagId() {
+        return tagId;
+    }
+
+    public void setTagId(long tagId) {
+        this.tagId = tagId;
+    }
+
+    public Long getMapId() {
+        return mapId;
+    }
+
+    public void setMapId(Long mapId) {
+        this.mapId = mapId;
+    }
+
+    public long getX() {
+        return x;
+    }
+
+    public void setX(long x) {
+        this.x = x;
+    }
+
+    public long getY() {
+        return y;
+    }
+
+    public void setY(long y) {
+        this.y = y;
+    }
+
+    public Long getZ() {
+        return z;
+    }
+
+    public void setZ(Long z) {
+        this.z = z;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+}
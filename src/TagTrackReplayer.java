@@ -0,0 +1,256 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * 标签历史轨迹回放
+ * 按时间窗口分段读取历史轨迹,逐点判定所在区域,输出每个区域的停留区间;
+ * 在相邻区域之间切换时,用分隔线与前后两点连线的交点插值出跨越时间
+ * 每个标签只保留当前区域及候选区域状态,内存占用与轨迹长度无关;多个标签在固定大小的线程池中并行回放,
+ * 区域索引及分隔线取自SwitchAreaLocator的缓存
+ *
+ * @author jobs
+ */
+@Component
+public class TagTrackReplayer {
+
+    /*** 每次读取的时间窗口*/
+    private static final long WINDOW_MILLIS = 10 * 60000L;
+
+    /*** 确认切换所需的连续定位次数,与实时事件引擎保持一致*/
+    private static final int THRESHOLD = 3;
+
+    /*** 回放线程数,读取轨迹为阻塞的redis访问,不使用公共ForkJoin线程池*/
+    private static final int THREADS = 4;
+
+    @Autowired
+    private TagTrackStore trackStore;
+
+    @Autowired
+    private SwitchAreaLocator areaLocator;
+
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        executor = Executors.newFixedThreadPool(THREADS, r -> {
+            Thread thread = new Thread(r, "track-replay");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 回放标签轨迹,返回各标签的区域停留区间
+     *
+     * @param tagIds 标签ID
+     * @param from   开始时间(毫秒)
+     * @param to     结束时间(毫秒)
+     * @return tagId -> 按时间排序的停留区间
+     */
+    public Map<Long, List<AreaDwell>> replay(Collection<Long> tagIds, long from, long to) {
+        Map<Long, List<AreaDwell>> result = new HashMap<>();
+        replay(tagIds, from, to, (tagId, dwell) -> {
+            synchronized (result) {
+                result.computeIfAbsent(tagId, k -> new ArrayList<>()).add(dwell);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 回放标签轨迹,每得到一个停留区间即回调,同一标签的回调按时间顺序进行
+     *
+     * @param consumer 回调,不同标签可能在不同线程中并发回调
+     */
+    public void replay(Collection<Long> tagIds, long from, long to, BiConsumer<Long, AreaDwell> consumer) {
+        SwitchAreaLayeredIndex index = areaLocator.getIndex();
+        Map<String, long[]> separators = areaLocator.getSeparators();
+        List<Future<?>> futures = new ArrayList<>(tagIds.size());
+        for (Long tagId : tagIds) {
+            futures.add(executor.submit(() -> {
+                TagReplay replay = new TagReplay(tagId, index, separators, consumer);
+                for (long start = from; start <= to; start += WINDOW_MILLIS) {
+                    for (TagPosition position : trackStore.range(tagId, start, Math.min(to, start + WINDOW_MILLIS - 1))) {
+                        replay.accept(position);
+                    }
+                }
+                replay.finish(to);
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("track replay interrupted", e);
+        } catch (ExecutionException e) {
+            futures.forEach(future -> future.cancel(true));
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static class TagReplay {
+
+        final long tagId;
+
+        final SwitchAreaLayeredIndex index;
+
+        final Map<String, long[]> separators;
+
+        final BiConsumer<Long, AreaDwell> consumer;
+
+        long currentArea;
+
+        long enterTime;
+
+        TagPosition lastInCurrent;
+
+        long candidateArea;
+
+        TagPosition candidateFirst;
+
+        int hits;
+
+        TagReplay(long tagId, SwitchAreaLayeredIndex index, Map<String, long[]> separators, BiConsumer<Long, AreaDwell> consumer) {
+            this.tagId = tagId;
+            this.index = index;
+            this.separators = separators;
+            this.consumer = consumer;
+        }
+
+        void accept(TagPosition position) {
+            if (null == position.getMapId()) {
+                return;
+            }
+            long located = SwitchAreaEventEngine.resolveArea(index, position, currentArea);
+            if (located == currentArea) {
+                hits = 0;
+                lastInCurrent = position;
+                return;
+            }
+            if (hits > 0 && located == candidateArea) {
+                hits++;
+            } else {
+                candidateArea = located;
+                candidateFirst = position;
+                hits = 1;
+            }
+            if (hits < THRESHOLD) {
+                return;
+            }
+            long switchTime = crossingTime(currentArea, located, lastInCurrent, candidateFirst);
+            if (currentArea != 0) {
+                emit(currentArea, enterTime, switchTime);
+            }
+            currentArea = located;
+            enterTime = switchTime;
+            lastInCurrent = position;
+            hits = 0;
+        }
+
+        void finish(long to) {
+            if (currentArea != 0) {
+                emit(currentArea, enterTime, null == lastInCurrent ? to : Math.min(to, lastInCurrent.getTimestamp()));
+            }
+        }
+
+        private void emit(long areaPk, long enter, long leave) {
+            SwitchAreaShape shape = index.getShape(areaPk);
+            consumer.accept(tagId, new AreaDwell(areaPk, null == shape ? null : shape.getAreaId(), enter, leave));
+        }
+
+        /**
+         * 相邻区域间切换时,以两点连线与分隔线的交点按距离比例插值跨越时间;否则取新区域第一个点的时间
+         */
+        private long crossingTime(long fromArea, long toArea, TagPosition before, TagPosition after) {
+            if (null == before || fromArea == 0 || toArea == 0) {
+                return after.getTimestamp();
+            }
+            long[] sep = separators.get(SwitchAreaLocator.separatorKey(fromArea, toArea));
+            if (null == sep) {
+                sep = separators.get(SwitchAreaLocator.separatorKey(toArea, fromArea));
+            }
+            if (null == sep) {
+                return after.getTimestamp();
+            }
+            double px = before.getX(), py = before.getY();
+            double rx = after.getX() - px, ry = after.getY() - py;
+            double qx = sep[0], qy = sep[1];
+            double sx = sep[2] - qx, sy = sep[3] - qy;
+            double denom = rx * sy - ry * sx;
+            if (denom == 0) {
+                return after.getTimestamp();
+            }
+            double t = ((qx - px) * sy - (qy - py) * sx) / denom;
+            if (t < 0 || t > 1) {
+                return after.getTimestamp();
+            }
+            return before.getTimestamp() + Math.round(t * (after.getTimestamp() - before.getTimestamp()));
+        }
+    }
+
+    /**
+     * 区域停留区间
+     */
+    public static class AreaDwell {
+
+        private final long areaPk;
+
+        private final String areaId;
+
+        private final long enterTime;
+
+        private final long leaveTime;
+
+        public AreaDwell(long areaPk, String areaId, long enterTime, long leaveTime) {
+            this.areaPk = areaPk;
+            this.areaId = areaId;
+            this.enterTime = enterTime;
+            this.leaveTime = leaveTime;
+        }
+
+        public long getAreaPk() {
+            return areaPk;
+        }
+
+        public String getAreaId() {
+            return areaId;
+        }
+
+        public long getEnterTime() {
+            return enterTime;
+        }
+
+        public long getLeaveTime() {
+            return leaveTime;
+        }
+
+        public long getDuration() {
+            return leaveTime - enterTime;
+        }
+    }
+}
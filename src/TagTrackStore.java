@@ -0,0 +1,121 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * 标签历史轨迹存储
+ * 每个标签每分钟一个有序集合,分值为定位时间,到期自动删除;
+ * 按时间查询时只访问区间覆盖的分钟桶,所有桶在一个管道内读取
+ *
+ * @author jobs
+ */
+@Component
+public class TagTrackStore {
+
+    private static final String KEY_PREFIX = "track:";
+
+    private static final long BUCKET_MILLIS = 60000L;
+
+    /*** 轨迹保留时间(秒)*/
+    private static final long RETENTION_SECONDS = 24 * 3600L;
+
+    @Autowired
+    private RedisUtils redisUtils;
+
+    /**
+     * 批量写入定位结果,按分钟桶分组后一次管道写入
+     */
+    public void append(Collection<TagPosition> positions) {
+        Map<String, Map<Object, Double>> tuples = new HashMap<>();
+        for (TagPosition position : positions) {
+            tuples.computeIfAbsent(bucketKey(position.getTagId(), position.getTimestamp()), k -> new HashMap<>())
+                    .put(encode(position), (double) position.getTimestamp());
+        }
+        redisUtils.zAddAll(tuples, RETENTION_SECONDS);
+    }
+
+    /**
+     * 查询标签在时间区间内的轨迹
+     *
+     * @param tagId 标签ID
+     * @param from  开始时间(毫秒,含)
+     * @param to    结束时间(毫秒,含)
+     * @return 按时间排序的定位结果
+     */
+    public List<TagPosition> range(long tagId, long from, long to) {
+        return range(tagId, from, to, 0);
+    }
+
+    /**
+     * 查询标签在时间区间内的轨迹并降采样
+     *
+     * @param tagId          标签ID
+     * @param from           开始时间(毫秒,含)
+     * @param to             结束时间(毫秒,含)
+     * @param intervalMillis 降采样间隔,每个间隔内只保留第一个点,小于等于0时不降采样
+     * @return 按时间排序的定位结果
+     */
+    public List<TagPosition> range(long tagId, long from, long to, long intervalMillis) {
+        List<TagPosition> result = new ArrayList<>();
+        if (from > to) {
+            return result;
+        }
+        List<String> keys = new ArrayList<>();
+        for (long bucket = from / BUCKET_MILLIS; bucket <= to / BUCKET_MILLIS; bucket++) {
+            keys.add(KEY_PREFIX + tagId + ":" + bucket);
+        }
+        List<Set<Object>> buckets = redisUtils.zRangeByScore(keys, from, to);
+        long nextSlot = Long.MIN_VALUE;
+        for (Set<Object> bucket : buckets) {
+            for (Object member : bucket) {
+                TagPosition position = decode(tagId, member.toString());
+                if (null == position) {
+                    continue;
+                }
+                if (intervalMillis > 0) {
+                    if (position.getTimestamp() < nextSlot) {
+                        continue;
+                    }
+                    nextSlot = (position.getTimestamp() / intervalMillis + 1) * intervalMillis;
+                }
+                result.add(position);
+            }
+        }
+        return result;
+    }
+
+    private String bucketKey(long tagId, long timestamp) {
+        return KEY_PREFIX + tagId + ":" + (timestamp / BUCKET_MILLIS);
+    }
+
+    /**
+     * 成员格式 ts,x,y,z,mapId,时间戳在前保证同一毫秒内不同位置不互相覆盖
+     */
+    static String encode(TagPosition position) {
+        return position.getTimestamp() + "," + position.getX() + "," + position.getY() + ","
+                + (Objects.isNull(position.getZ()) ? "" : position.getZ()) + ","
+                + (Objects.isNull(position.getMapId()) ? "" : position.getMapId());
+    }
+
+    static TagPosition decode(long tagId, String member) {
+        String[] arr = StringUtils.splitPreserveAllTokens(member, ",");
+        if (arr.length < 5) {
+            return null;
+        }
+        return new TagPosition(tagId,
+                NumberUtils.isCreatable(arr[4]) ? NumberUtils.createLong(arr[4]) : null,
+                NumberUtils.toLong(arr[1]),
+                NumberUtils.toLong(arr[2]),
+                NumberUtils.isCreatable(arr[3]) ? NumberUtils.createLong(arr[3]) : null,
+                NumberUtils.toLong(arr[0]));
+    }
+}
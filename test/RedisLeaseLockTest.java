@@ -0,0 +1,151 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * 租约锁、主节点选举,使用内存租约存储
+ *
+ * @author jobs
+ */
+public class RedisLeaseLockTest {
+
+    private final AtomicLong now = new AtomicLong(1000L);
+
+    private final InMemoryLeaseStore manualStore = new InMemoryLeaseStore(now::get);
+
+    private RedisLeaseLock lock;
+
+    @AfterEach
+    public void destroy() {
+        if (null != lock) {
+            lock.destroy();
+        }
+    }
+
+    @Test
+    public void storeGrantsIncreasingTokens() {
+        assertEquals(Long.valueOf(1L), manualStore.tryAcquireLease("job", "a", 100L));
+        assertNull(manualStore.tryAcquireLease("job", "b", 100L));
+        assertFalse(manualStore.releaseLease("job", "b"));
+        assertTrue(manualStore.releaseLease("job", "a"));
+        assertEquals(Long.valueOf(2L), manualStore.tryAcquireLease("job", "b", 100L));
+        assertEquals(Long.valueOf(1L), manualStore.tryAcquireLease("other", "a", 100L));
+    }
+
+    @Test
+    public void storeReissuesTokenAboveRecorded() {
+        assertEquals(Long.valueOf(1L), manualStore.tryAcquireLease("job", "a", 100L));
+        assertNull(manualStore.reissueToken("job", "b", 57L));
+        assertEquals(Long.valueOf(58L), manualStore.reissueToken("job", "a", 57L));
+        assertEquals(Long.valueOf(59L), manualStore.reissueToken("job", "a", 3L));
+        assertTrue(manualStore.releaseLease("job", "a"));
+        assertEquals(Long.valueOf(60L), manualStore.tryAcquireLease("job", "b", 100L));
+    }
+
+    @Test
+    public void storeExpiresLease() {
+        manualStore.tryAcquireLease("job", "a", 100L);
+        now.addAndGet(50L);
+        assertTrue(manualStore.renewLease("job", "a", 100L));
+        now.addAndGet(99L);
+        assertNull(manualStore.tryAcquireLease("job", "b", 100L));
+        now.addAndGet(1L);
+        assertFalse(manualStore.renewLease("job", "a", 100L));
+        assertEquals(Long.valueOf(2L), manualStore.tryAcquireLease("job", "b", 100L));
+        assertFalse(manualStore.releaseLease("job", "a"));
+    }
+
+    @Test
+    public void lockIsExclusiveUntilClosed() {
+        lock = new RedisLeaseLock(new InMemoryLeaseStore());
+        RedisLeaseLock.Lease first = lock.tryLock("job", 10000L);
+        assertNotNull(first);
+        assertTrue(first.isHeld());
+        assertNull(lock.tryLock("job", 10000L));
+        first.close();
+        assertFalse(first.isHeld());
+        RedisLeaseLock.Lease second = lock.tryLock("job", 10000L, 1000L);
+        assertNotNull(second);
+        assertTrue(second.getToken() > first.getToken());
+        second.close();
+    }
+
+    @Test
+    public void renewalKeepsLease() throws InterruptedException {
+        lock = new RedisLeaseLock(new InMemoryLeaseStore());
+        try (RedisLeaseLock.Lease lease = lock.tryLock("job", 300L)) {
+            Thread.sleep(900L);
+            assertTrue(lease.isHeld());
+            assertNull(lock.tryLock("job", 300L));
+        }
+    }
+
+    @Test
+    public void leaseTakenOverIsLost() throws InterruptedException {
+        lock = new RedisLeaseLock(manualStore);
+        RedisLeaseLock.Lease lease = lock.tryLock("job", 300L);
+        assertNotNull(lease);
+        // 存储中的租约过期并被其它节点占有,下次续期失败
+        now.addAndGet(300L);
+        Long token = manualStore.tryAcquireLease("job", "other", 10000L);
+        assertNotNull(token);
+        assertTrue(token > lease.getToken());
+        long deadline = System.currentTimeMillis() + 2000L;
+        while (lease.isHeld() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20L);
+        }
+        assertFalse(lease.isHeld());
+        // 释放不会删除其它节点的租约
+        lease.close();
+        assertTrue(manualStore.renewLease("job", "other", 10000L));
+    }
+
+    @Test
+    public void runExclusiveSkipsWhenBusy() {
+        lock = new RedisLeaseLock(new InMemoryLeaseStore());
+        AtomicReference<RedisLeaseLock.Lease> inner = new AtomicReference<>();
+        assertTrue(lock.runExclusive("job", 10000L, lease -> inner.set(lock.tryLock("job", 10000L))));
+        assertNull(inner.get());
+        assertNotNull(lock.tryLock("job", 10000L));
+    }
+
+    @Test
+    public void slowListenerDoesNotBlockRenewal() throws InterruptedException {
+        lock = new RedisLeaseLock(new InMemoryLeaseStore());
+        AtomicReference<String> callbackThread = new AtomicReference<>();
+        CountDownLatch elected = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        RedisLeaderElector elector = lock.elect("leader", 300L, leader -> {
+            if (leader) {
+                callbackThread.set(Thread.currentThread().getName());
+                elected.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(elected.await(2, TimeUnit.SECONDS));
+        assertEquals("lease-callback", callbackThread.get());
+        // 回调阻塞超过租约时长,续期不受影响
+        Thread.sleep(900L);
+        assertTrue(elector.isLeader());
+        Long token = elector.getToken();
+        assertNotNull(token);
+        release.countDown();
+        elector.stop();
+        assertFalse(elector.isLeader());
+        assertNotNull(lock.tryLock("leader", 300L));
+    }
+}
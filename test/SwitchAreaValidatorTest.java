@@ -0,0 +1,70 @@
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * 切换区域重叠、自相交校验
+ *
+ * @author jobs
+ */
+public class SwitchAreaValidatorTest {
+
+    private static SwitchAreaShape rect(long x0, long y0, long x1, long y1) {
+        return new SwitchAreaShape(1L, 1L, "a", 1L, null, null, new long[]{x0, x1, x1, x0}, new long[]{y0, y0, y1, y1});
+    }
+
+    private static SwitchAreaShape polygon(long[] xs, long[] ys) {
+        return new SwitchAreaShape(2L, 2L, "b", 1L, null, null, xs, ys);
+    }
+
+    @Test
+    public void overlapSharingTwoEdges() {
+        SwitchAreaShape a = rect(0, 0, 10, 10);
+        assertTrue(SwitchAreaValidator.overlaps(a, rect(0, 5, 10, 15)));
+        assertTrue(SwitchAreaValidator.overlaps(rect(0, 5, 10, 15), a));
+    }
+
+    @Test
+    public void containedSharingThreeEdges() {
+        SwitchAreaShape a = rect(0, 0, 10, 10);
+        assertTrue(SwitchAreaValidator.overlaps(a, rect(0, 0, 10, 5)));
+        assertTrue(SwitchAreaValidator.overlaps(rect(0, 0, 10, 5), a));
+    }
+
+    @Test
+    public void identicalAreasOverlap() {
+        assertTrue(SwitchAreaValidator.overlaps(rect(0, 0, 10, 10), rect(0, 0, 10, 10)));
+    }
+
+    @Test
+    public void sharedEdgeIsNotOverlap() {
+        SwitchAreaShape a = rect(0, 0, 10, 10);
+        assertFalse(SwitchAreaValidator.overlaps(a, rect(0, 10, 10, 20)));
+        assertFalse(SwitchAreaValidator.overlaps(a, rect(10, 0, 20, 10)));
+        assertFalse(SwitchAreaValidator.overlaps(a, rect(10, 3, 20, 7)));
+        assertFalse(SwitchAreaValidator.overlaps(a, rect(10, 10, 20, 20)));
+    }
+
+    @Test
+    public void crossingAndContainedAreasOverlap() {
+        SwitchAreaShape a = rect(0, 0, 10, 10);
+        assertTrue(SwitchAreaValidator.overlaps(a, rect(5, -5, 7, 15)));
+        assertTrue(SwitchAreaValidator.overlaps(a, rect(2, 2, 4, 4)));
+        assertFalse(SwitchAreaValidator.overlaps(a, rect(20, 20, 30, 30)));
+    }
+
+    @Test
+    public void trianglesSplitBySharedDiagonal() {
+        SwitchAreaShape upper = polygon(new long[]{0, 10, 0}, new long[]{0, 10, 10});
+        SwitchAreaShape lower = polygon(new long[]{0, 10, 10}, new long[]{0, 0, 10});
+        assertFalse(SwitchAreaValidator.overlaps(upper, lower));
+        assertTrue(SwitchAreaValidator.overlaps(rect(0, 0, 10, 10), upper));
+    }
+
+    @Test
+    public void selfIntersection() {
+        assertTrue(SwitchAreaValidator.selfIntersects(polygon(new long[]{0, 10, 0, 10}, new long[]{0, 10, 10, 0})));
+        assertFalse(SwitchAreaValidator.selfIntersects(rect(0, 0, 10, 10)));
+    }
+}